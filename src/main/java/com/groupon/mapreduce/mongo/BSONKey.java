@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A BSON document which can be used as a map output key. It is serialized as the encoded document, like a
+ * LazyWritableBSONObject, and sorted by BSONKeyComparator on those bytes without being decoded, in the order Mongo
+ * would sort it. By default whole documents are compared, and a sort spec such as {a: 1, b: -1} can be set with
+ * BSONKeyComparator.setSortSpec, with BSONKeyComparator as the job's sort comparator class, along with
+ * BSONKeyPartitioner and BSONKeyGroupingComparator for secondary sorts.
+ *
+ * compareTo, equals and hashCode follow the order of whole documents, so {_id: 1} and {_id: 1.0} are the same key.
+ */
+public class BSONKey extends LazyWritableBSONObject implements WritableComparable<BSONKey> {
+    static {
+        WritableComparator.define(BSONKey.class, new BSONKeyComparator());
+    }
+
+    /**
+     * Construct with no document, to be filled in by readFields.
+     */
+    public BSONKey() {
+        super();
+    }
+
+    /**
+     * Construct over an encoded document. The buffer is not copied.
+     * @param buffer Little endian buffer holding the document.
+     * @param offset Offset of the document in the buffer.
+     */
+    public BSONKey(ByteBuffer buffer, int offset) {
+        super(buffer, offset);
+    }
+
+    /**
+     * Construct from a document, which is encoded straight away.
+     * @param obj Document to use as the key, such as {_id: id}.
+     */
+    public BSONKey(BSONObject obj) {
+        super(encode(obj), 0);
+    }
+
+    private static ByteBuffer encode(BSONObject obj) {
+        return ByteBuffer.wrap(new BasicBSONEncoder().encode(obj)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return Buffer holding the encoded document, which is encoded afresh if it has been decoded, since it may
+     *         have been modified.
+     */
+    ByteBuffer encoded() {
+        return isDecoded() ? encode(getBSONObject()) : getBuffer();
+    }
+
+    /**
+     * @return Offset of the document in the buffer returned by encoded.
+     */
+    int encodedOffset() {
+        return isDecoded() ? 0 : getOffset();
+    }
+
+    /**
+     * Compare whole documents in Mongo's order.
+     */
+    @Override
+    public int compareTo(BSONKey other) {
+        int offset = encodedOffset();
+        int otherOffset = other.encodedOffset();
+        return BSONOrder.NATURAL.compare(encoded(), offset, other.encoded(), otherOffset);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BSONKey)) return false;
+
+        return compareTo((BSONKey) o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int offset = encodedOffset();
+        return BSONOrder.NATURAL.hash(encoded(), offset);
+    }
+}
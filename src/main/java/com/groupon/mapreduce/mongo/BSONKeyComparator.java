@@ -0,0 +1,132 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * This is a RawComparator for BSONKeys which compares the serialized documents in Mongo's sort order, as described
+ * in BSONOrder, without deserializing them. It is registered for BSONKey, so it sorts map output keys of that class
+ * by default, comparing whole documents. The registered instance is never configured, so the sort spec is only
+ * used when the job names this class with job.setSortComparatorClass(BSONKeyComparator.class), and Hadoop then
+ * creates one with the job's configuration. Options are taken from the Hadoop configuration:
+ * - BSONKeyComparator.SORT_SPEC  - sort spec such as {a: 1, b: -1} to sort keys by
+ * - BSONKeyComparator.GROUP_SPEC - sort spec of the fields which group keys into one reduce call, used by
+ *                                  BSONKeyGroupingComparator and BSONKeyPartitioner
+ *
+ * For a secondary sort, such as every event of a user in time order, set the sort spec to {user: 1, ts: 1} and
+ * the group spec to {user: 1}, and use BSONKeyPartitioner and BSONKeyGroupingComparator.
+ */
+public class BSONKeyComparator extends WritableComparator implements Configurable {
+    public static final String SORT_SPEC = "mongoKeySortSpec";
+    public static final String GROUP_SPEC = "mongoKeyGroupSpec";
+
+    private Configuration conf = null;
+    private BSONOrder order = BSONOrder.NATURAL;
+
+    public BSONKeyComparator() {
+        super(BSONKey.class);
+    }
+
+    /**
+     * Helper to configure Hadoop to sort BSONKeys by the given fields rather than by whole documents. The job
+     * must also call job.setSortComparatorClass(BSONKeyComparator.class), or the spec is ignored.
+     * @param conf Configuration object in which to set the sort spec.
+     * @param spec Sort spec as JSON, such as {a: 1, b: -1}.
+     */
+    public static void setSortSpec(Configuration conf, String spec) {
+        // fail when configuring the job rather than in every task
+        new BSONOrder(spec);
+        conf.set(SORT_SPEC, spec);
+    }
+
+    /**
+     * Helper to configure Hadoop to group BSONKeys into reduce calls, and to partition them, by the given fields,
+     * which should be the first fields of the sort spec.
+     * @param conf Configuration object in which to set the group spec.
+     * @param spec Sort spec as JSON, such as {a: 1}.
+     */
+    public static void setGroupSpec(Configuration conf, String spec) {
+        new BSONOrder(spec);
+        conf.set(GROUP_SPEC, spec);
+    }
+
+    /**
+     * @return Order keys are compared in.
+     */
+    public BSONOrder getOrder() {
+        return order;
+    }
+
+    /**
+     * Pick the order from the configuration.
+     */
+    protected BSONOrder getOrder(Configuration conf) {
+        return new BSONOrder(conf.get(SORT_SPEC));
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        order = getOrder(conf);
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        // the instance registered for BSONKey is shared by the merge threads of a reduce, so nothing is kept between
+        // calls
+        ByteBuffer x = ByteBuffer.wrap(b1).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer y = b1 == b2 ? x : ByteBuffer.wrap(b2).order(ByteOrder.LITTLE_ENDIAN);
+        return order.compare(x, s1, y, s2);
+    }
+
+    @Override
+    public int compare(WritableComparable a, WritableComparable b) {
+        BSONKey x = (BSONKey) a;
+        BSONKey y = (BSONKey) b;
+        int offsetX = x.encodedOffset();
+        int offsetY = y.encodedOffset();
+        return order.compare(x.encoded(), offsetX, y.encoded(), offsetY);
+    }
+}
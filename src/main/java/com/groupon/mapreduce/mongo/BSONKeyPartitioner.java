@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * This partitions BSONKeys by a hash of their encoded bytes, without decoding them. Only the fields of the group spec
+ * set with BSONKeyComparator.setGroupSpec are hashed, or of the sort spec if there is none, or else the whole
+ * document. Keys which compare as equal on those fields always hash the same way, even when their numbers have
+ * different types, so every key of a reduce group goes to the same Reducer.
+ */
+public class BSONKeyPartitioner<V> extends Partitioner<BSONKey, V> implements Configurable {
+    private Configuration conf = null;
+    private BSONOrder order = BSONOrder.NATURAL;
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        order = new BSONOrder(conf.get(BSONKeyComparator.GROUP_SPEC, conf.get(BSONKeyComparator.SORT_SPEC)));
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public int getPartition(BSONKey key, V value, int numPartitions) {
+        int offset = key.encodedOffset();
+        return (order.hash(key.encoded(), offset) & Integer.MAX_VALUE) % numPartitions;
+    }
+}
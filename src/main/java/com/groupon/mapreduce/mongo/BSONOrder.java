@@ -0,0 +1,488 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An ordering of encoded BSON documents which follows Mongo's sort order, compiled from a sort spec such as
+ * {a: 1, "b.c": -1}, and compared on the raw bytes without decoding either document. Without a spec whole documents
+ * are compared, element by element, as Mongo compares them.
+ *
+ * Values of different types are ordered by Mongo's canonical type order: MinKey, null, numbers, strings, documents,
+ * arrays, binary data, ObjectIds, booleans, dates, timestamps, regular expressions, code and MaxKey. Numbers of
+ * every type compare by value, so 1, 1L and 1.0 are equal. A missing field sorts as null, and an array field sorts
+ * by its smallest element in ascending order or its largest in descending order, with an empty array taken as
+ * missing.
+ *
+ * hash is consistent with compare, so documents which compare as equal, such as {a: 1} and {a: 1.0}, always hash
+ * the same way and can be partitioned by it.
+ */
+public class BSONOrder {
+    /**
+     * Order of whole documents.
+     */
+    public static final BSONOrder NATURAL = new BSONOrder((BSONObject) null);
+
+    private final BSONObject spec;
+    private final byte[][][] paths;
+    private final int[] directions;
+
+    /**
+     * Parse a sort spec given as JSON.
+     * @param spec Sort spec in the JSON syntax accepted by the Mongo shell, e.g. {a: 1, b: -1}, or null to compare
+     *             whole documents.
+     */
+    public BSONOrder(String spec) {
+        this(spec == null ? null : (BSONObject) JSON.parse(spec));
+    }
+
+    /**
+     * Compile a sort spec.
+     * @param spec Sort spec document with a direction of 1 or -1 for each field, or null to compare whole
+     *             documents.
+     */
+    public BSONOrder(BSONObject spec) {
+        this.spec = spec;
+        if (spec == null || spec.keySet().isEmpty()) {
+            paths = null;
+            directions = null;
+            return;
+        }
+
+        paths = new byte[spec.keySet().size()][][];
+        directions = new int[paths.length];
+        int i = 0;
+        for (String field : spec.keySet()) {
+            Object direction = spec.get(field);
+            if (!(direction instanceof Number) || Math.abs(((Number) direction).doubleValue()) != 1)
+                throw new RuntimeException("Sort direction of " + field + " must be 1 or -1, not " + direction);
+
+            paths[i] = RawBSON.compilePath(field);
+            directions[i] = ((Number) direction).intValue();
+            i++;
+        }
+    }
+
+    /**
+     * Compare two documents.
+     * @param a Little endian buffer holding the first document.
+     * @param documentA Offset of the first document.
+     * @param b Little endian buffer holding the second document.
+     * @param documentB Offset of the second document.
+     * @return Negative, zero or positive as the first document sorts before, with or after the second.
+     */
+    public int compare(ByteBuffer a, int documentA, ByteBuffer b, int documentB) {
+        if (paths == null)
+            return compareDocuments(a, documentA, b, documentB);
+
+        for (int i = 0; i < paths.length; i++) {
+            int direction = directions[i];
+            int elementA = sortElement(a, documentA, paths[i], 0, direction);
+            int elementB = sortElement(b, documentB, paths[i], 0, direction);
+
+            int c = compareElements(a, elementA, b, elementB);
+            if (c != 0)
+                return direction * c;
+        }
+        return 0;
+    }
+
+    /**
+     * Hash the fields of a document which this order compares.
+     * @param buffer Little endian buffer holding the document.
+     * @param document Offset of the document.
+     * @return Hash code, which is the same for every document that compares as equal.
+     */
+    public int hash(ByteBuffer buffer, int document) {
+        if (paths == null)
+            return hashDocument(buffer, document);
+
+        int hash = 1;
+        for (int i = 0; i < paths.length; i++)
+            hash = 31 * hash + hashElement(buffer, sortElement(buffer, document, paths[i], 0, directions[i]));
+        return hash;
+    }
+
+    /**
+     * Find the element a document sorts by for one field: the value at the path, or the smallest or largest
+     * element of an array there, or of every document in an array along the path.
+     * @return Offset of the element, or -1 if there is none.
+     */
+    private static int sortElement(ByteBuffer buffer, int document, byte[][] path, int index, int direction) {
+        int element = RawBSON.find(buffer, document, path[index]);
+        if (element < 0)
+            return -1;
+
+        byte type = RawBSON.type(buffer, element);
+        int value = RawBSON.valueOffset(buffer, element);
+        if (index == path.length - 1)
+            return type == RawBSON.ARRAY ? extreme(buffer, value, path, -1, direction) : element;
+        if (type == RawBSON.DOCUMENT)
+            return sortElement(buffer, value, path, index + 1, direction);
+        if (type == RawBSON.ARRAY)
+            return extreme(buffer, value, path, index + 1, direction);
+        return -1;
+    }
+
+    /**
+     * Pick the smallest or largest candidate from an array, either its elements when index is -1, or the values
+     * found by following the rest of the path through each document in it.
+     */
+    private static int extreme(ByteBuffer buffer, int array, byte[][] path, int index, int direction) {
+        int best = -1;
+        for (int e = RawBSON.firstElement(buffer, array); !RawBSON.isEnd(buffer, e);
+             e = RawBSON.nextElement(buffer, e)) {
+            int candidate = e;
+            if (index >= 0) {
+                byte type = RawBSON.type(buffer, e);
+                if (type == RawBSON.DOCUMENT)
+                    candidate = sortElement(buffer, RawBSON.valueOffset(buffer, e), path, index, direction);
+                else if (type == RawBSON.ARRAY)
+                    candidate = extreme(buffer, RawBSON.valueOffset(buffer, e), path, index, direction);
+                else
+                    candidate = -1;
+            }
+
+            if (candidate >= 0 && (best < 0 || direction * compareElements(buffer, candidate, buffer, best) < 0))
+                best = candidate;
+        }
+        return best;
+    }
+
+    /**
+     * Compare two documents, or two arrays, element by element: by canonical type, then field name, then value.
+     */
+    public static int compareDocuments(ByteBuffer a, int documentA, ByteBuffer b, int documentB) {
+        int elementA = RawBSON.firstElement(a, documentA);
+        int elementB = RawBSON.firstElement(b, documentB);
+
+        while (true) {
+            boolean endA = RawBSON.isEnd(a, elementA);
+            boolean endB = RawBSON.isEnd(b, elementB);
+            if (endA || endB)
+                return endA == endB ? 0 : (endA ? -1 : 1);
+
+            byte typeA = RawBSON.type(a, elementA);
+            byte typeB = RawBSON.type(b, elementB);
+            int c = canonicalType(typeA) - canonicalType(typeB);
+            if (c != 0)
+                return c < 0 ? -1 : 1;
+
+            int valueA = RawBSON.valueOffset(a, elementA);
+            int valueB = RawBSON.valueOffset(b, elementB);
+            c = compareBytes(a, elementA + 1, valueA - elementA - 2, b, elementB + 1, valueB - elementB - 2);
+            if (c != 0)
+                return c;
+
+            c = compareValues(a, typeA, valueA, b, typeB, valueB);
+            if (c != 0)
+                return c;
+
+            elementA = valueA + RawBSON.valueSize(a, typeA, valueA);
+            elementB = valueB + RawBSON.valueSize(b, typeB, valueB);
+        }
+    }
+
+    /**
+     * Compare the values of two elements, where an offset of -1 stands for a missing value, which sorts as null.
+     */
+    private static int compareElements(ByteBuffer a, int elementA, ByteBuffer b, int elementB) {
+        byte typeA = elementA < 0 ? RawBSON.NULL : RawBSON.type(a, elementA);
+        byte typeB = elementB < 0 ? RawBSON.NULL : RawBSON.type(b, elementB);
+        int c = canonicalType(typeA) - canonicalType(typeB);
+        if (c != 0)
+            return c < 0 ? -1 : 1;
+        if (elementA < 0 || elementB < 0)
+            return 0;
+
+        return compareValues(a, typeA, RawBSON.valueOffset(a, elementA), b, typeB, RawBSON.valueOffset(b, elementB));
+    }
+
+    /**
+     * Compare two values of the same canonical type.
+     */
+    private static int compareValues(ByteBuffer a, byte typeA, int valueA, ByteBuffer b, byte typeB, int valueB) {
+        switch (typeA) {
+            case RawBSON.DOUBLE:
+            case RawBSON.INT32:
+            case RawBSON.INT64:
+            case RawBSON.DECIMAL128:
+                return compareNumbers(a, typeA, valueA, b, typeB, valueB);
+            case RawBSON.STRING:
+            case RawBSON.SYMBOL:
+            case RawBSON.CODE:
+                return compareBytes(a, valueA + 4, a.getInt(valueA) - 1, b, valueB + 4, b.getInt(valueB) - 1);
+            case RawBSON.DOCUMENT:
+            case RawBSON.ARRAY:
+                return compareDocuments(a, valueA, b, valueB);
+            case RawBSON.BINARY: {
+                int lengthA = a.getInt(valueA);
+                int lengthB = b.getInt(valueB);
+                if (lengthA != lengthB)
+                    return lengthA < lengthB ? -1 : 1;
+                return compareBytes(a, valueA + 4, lengthA + 1, b, valueB + 4, lengthB + 1);
+            }
+            case RawBSON.OBJECT_ID:
+                return compareBytes(a, valueA, 12, b, valueB, 12);
+            case RawBSON.BOOLEAN: {
+                boolean x = a.get(valueA) != 0;
+                boolean y = b.get(valueB) != 0;
+                return x == y ? 0 : (x ? 1 : -1);
+            }
+            case RawBSON.DATE:
+                return compareLongs(a.getLong(valueA), b.getLong(valueB));
+            case RawBSON.TIMESTAMP:
+                return compareLongs(a.getLong(valueA) ^ Long.MIN_VALUE, b.getLong(valueB) ^ Long.MIN_VALUE);
+            case RawBSON.REGEX:
+            case RawBSON.DB_POINTER:
+                return compareBytes(a, valueA, RawBSON.valueSize(a, typeA, valueA),
+                        b, valueB, RawBSON.valueSize(b, typeB, valueB));
+            case RawBSON.CODE_W_SCOPE: {
+                int codeA = a.getInt(valueA + 4);
+                int codeB = b.getInt(valueB + 4);
+                int c = compareBytes(a, valueA + 8, codeA - 1, b, valueB + 8, codeB - 1);
+                return c != 0 ? c : compareDocuments(a, valueA + 8 + codeA, b, valueB + 8 + codeB);
+            }
+            default:
+                // MinKey, MaxKey, null and undefined have no value
+                return 0;
+        }
+    }
+
+    private static int compareNumbers(ByteBuffer a, byte typeA, int valueA, ByteBuffer b, byte typeB, int valueB) {
+        boolean integralA = typeA == RawBSON.INT32 || typeA == RawBSON.INT64;
+        boolean integralB = typeB == RawBSON.INT32 || typeB == RawBSON.INT64;
+
+        if (integralA && integralB)
+            return compareLongs(longValue(a, typeA, valueA), longValue(b, typeB, valueB));
+        if (integralA)
+            return compareLongDouble(longValue(a, typeA, valueA), doubleValue(b, typeB, valueB));
+        if (integralB)
+            return -compareLongDouble(longValue(b, typeB, valueB), doubleValue(a, typeA, valueA));
+        return compareDoubles(doubleValue(a, typeA, valueA), doubleValue(b, typeB, valueB));
+    }
+
+    private static long longValue(ByteBuffer buffer, byte type, int value) {
+        return type == RawBSON.INT32 ? buffer.getInt(value) : buffer.getLong(value);
+    }
+
+    /**
+     * @return Value of a double, or of a decimal128 to the nearest double.
+     */
+    private static double doubleValue(ByteBuffer buffer, byte type, int value) {
+        if (type == RawBSON.DOUBLE)
+            return buffer.getDouble(value);
+        return Double.parseDouble(JsonTranscoder.decimalString(buffer.getLong(value), buffer.getLong(value + 8)));
+    }
+
+    /**
+     * Compare doubles as Mongo does, with NaN below every other number and -0.0 equal to 0.0.
+     */
+    static int compareDoubles(double x, double y) {
+        if (x < y)
+            return -1;
+        if (x > y)
+            return 1;
+        if (x == y)
+            return 0;
+        return Double.isNaN(x) ? (Double.isNaN(y) ? 0 : -1) : 1;
+    }
+
+    /**
+     * Compare a long with a double exactly, rather than through a conversion which loses precision.
+     */
+    private static int compareLongDouble(long x, double y) {
+        if (Double.isNaN(y))
+            return 1;
+        if (y >= 9.223372036854775807E18)
+            return -1;
+        if (y < -9.223372036854775808E18)
+            return 1;
+
+        long truncated = (long) y;
+        if (x != truncated)
+            return x < truncated ? -1 : 1;
+        double fraction = y - truncated;
+        return fraction > 0 ? -1 : (fraction < 0 ? 1 : 0);
+    }
+
+    private static int compareLongs(long x, long y) {
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
+    private static int compareBytes(ByteBuffer a, int offsetA, int lengthA, ByteBuffer b, int offsetB, int lengthB) {
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            int x = a.get(offsetA + i) & 0xFF;
+            int y = b.get(offsetB + i) & 0xFF;
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return compareLongs(lengthA, lengthB);
+    }
+
+    /**
+     * Mongo's canonical type order of a BSON type byte.
+     */
+    public static int canonicalType(byte type) {
+        switch (type) {
+            case RawBSON.MIN_KEY:
+                return -1;
+            case RawBSON.UNDEFINED:
+                return 0;
+            case RawBSON.NULL:
+                return 5;
+            case RawBSON.DOUBLE:
+            case RawBSON.INT32:
+            case RawBSON.INT64:
+            case RawBSON.DECIMAL128:
+                return 10;
+            case RawBSON.STRING:
+            case RawBSON.SYMBOL:
+                return 15;
+            case RawBSON.DOCUMENT:
+                return 20;
+            case RawBSON.ARRAY:
+                return 25;
+            case RawBSON.BINARY:
+                return 30;
+            case RawBSON.OBJECT_ID:
+                return 35;
+            case RawBSON.BOOLEAN:
+                return 40;
+            case RawBSON.DATE:
+                return 45;
+            case RawBSON.TIMESTAMP:
+                return 47;
+            case RawBSON.REGEX:
+                return 50;
+            case RawBSON.DB_POINTER:
+                return 55;
+            case RawBSON.CODE:
+                return 60;
+            case RawBSON.CODE_W_SCOPE:
+                return 65;
+            case RawBSON.MAX_KEY:
+                return 127;
+            default:
+                throw new RuntimeException("Unknown BSON type " + type);
+        }
+    }
+
+    private static int hashDocument(ByteBuffer buffer, int document) {
+        int hash = 1;
+        for (int e = RawBSON.firstElement(buffer, document); !RawBSON.isEnd(buffer, e);
+             e = RawBSON.nextElement(buffer, e)) {
+            int value = RawBSON.valueOffset(buffer, e);
+            hash = 31 * hash + hashBytes(buffer, e + 1, value - e - 2);
+            hash = 31 * hash + hashElement(buffer, e);
+        }
+        return hash;
+    }
+
+    /**
+     * Hash the value of an element, along with its canonical type, so that values which compare as equal hash
+     * the same way. An offset of -1 stands for a missing value, which hashes as null.
+     */
+    private static int hashElement(ByteBuffer buffer, int element) {
+        byte type = element < 0 ? RawBSON.NULL : RawBSON.type(buffer, element);
+        int hash = canonicalType(type);
+        if (element < 0)
+            return hash;
+
+        int value = RawBSON.valueOffset(buffer, element);
+        switch (type) {
+            case RawBSON.NULL:
+            case RawBSON.UNDEFINED:
+            case RawBSON.MIN_KEY:
+            case RawBSON.MAX_KEY:
+                return hash;
+            case RawBSON.DOUBLE:
+            case RawBSON.INT32:
+            case RawBSON.INT64:
+            case RawBSON.DECIMAL128:
+                return 31 * hash + hashNumber(buffer, type, value);
+            case RawBSON.STRING:
+            case RawBSON.SYMBOL:
+            case RawBSON.CODE:
+            case RawBSON.CODE_W_SCOPE:
+                // the scope of code with scope is left out, as it compares by value rather than by its bytes
+                int string = type == RawBSON.CODE_W_SCOPE ? value + 4 : value;
+                return 31 * hash + hashBytes(buffer, string + 4, buffer.getInt(string) - 1);
+            case RawBSON.DOCUMENT:
+            case RawBSON.ARRAY:
+                return 31 * hash + hashDocument(buffer, value);
+            case RawBSON.BOOLEAN:
+                return 31 * hash + (buffer.get(value) != 0 ? 1 : 0);
+            default:
+                return 31 * hash + hashBytes(buffer, value, RawBSON.valueSize(buffer, type, value));
+        }
+    }
+
+    /**
+     * Hash a number by its value, as a long when it is a whole number that fits in one, and otherwise by the bits
+     * of its double value.
+     */
+    private static int hashNumber(ByteBuffer buffer, byte type, int value) {
+        long bits;
+        if (type == RawBSON.INT32 || type == RawBSON.INT64) {
+            bits = longValue(buffer, type, value);
+        }
+        else {
+            double d = doubleValue(buffer, type, value);
+            if (Double.isNaN(d))
+                bits = 0x7ff8000000000000L;
+            else if (d == Math.rint(d) && d >= -9.223372036854775808E18 && d < 9.223372036854775807E18)
+                bits = (long) d;
+            else
+                bits = Double.doubleToLongBits(d);
+        }
+        return (int) (bits ^ (bits >>> 32));
+    }
+
+    private static int hashBytes(ByteBuffer buffer, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + buffer.get(i);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return spec == null ? "{}" : JSON.serialize(spec);
+    }
+}
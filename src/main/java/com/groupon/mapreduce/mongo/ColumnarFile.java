@@ -0,0 +1,509 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.WritableUtils;
+import org.bson.types.ObjectId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The layout and encodings of a columnar file, as written by ColumnarOutputFormat and read by
+ * ColumnarInputFormat. Documents are stored in row groups, and each row group holds one chunk per column of the
+ * schema, so a reader only reads and decodes the columns it needs. The footer holds the schema and, for each row
+ * group, its row count and the offset, length, minimum and maximum of each chunk, so a reader can also skip row
+ * groups whose values can't match:
+ *
+ * "MDMRCOL1"
+ * row group: chunk...
+ * ...
+ * footer: schema count (offset rows (offset length min max)...)...
+ * footerOffset "MDMRCOL1"
+ *
+ * A chunk starts with the runs of present and missing values, then an encoding and the present values:
+ * - PLAIN      - each value in turn
+ * - DICTIONARY - the distinct values, then runs of indexes into them, used for strings repeating a few values
+ * - RLE        - runs of equal values, used for booleans and numbers which change rarely
+ * - DELTA      - the first value then the difference from each value to the next, used for other integers and
+ *                dates, and for the timestamps of ObjectIds, which are followed by the rest of each ObjectId
+ * Counts and deltas are written as Hadoop variable length integers.
+ */
+public class ColumnarFile {
+    public static final String MAGIC = "MDMRCOL1";
+
+    public static final byte PLAIN = 0;
+    public static final byte DICTIONARY = 1;
+    public static final byte RLE = 2;
+    public static final byte DELTA = 3;
+
+    /**
+     * The location and statistics of the chunks of a row group.
+     */
+    public static class RowGroup {
+        public long offset;
+        public int rows;
+        public long[] offsets;
+        public int[] lengths;
+        public Object[] mins;
+        public Object[] maxes;
+
+        public RowGroup() {}
+
+        public RowGroup(long offset, int rows, int columns) {
+            this.offset = offset;
+            this.rows = rows;
+            this.offsets = new long[columns];
+            this.lengths = new int[columns];
+            this.mins = new Object[columns];
+            this.maxes = new Object[columns];
+        }
+    }
+
+    /**
+     * The schema and row groups of a file.
+     */
+    public static class Footer {
+        public ColumnarSchema schema;
+        public List<RowGroup> rowGroups = new ArrayList<RowGroup>();
+
+        public Footer() {}
+
+        public Footer(ColumnarSchema schema) {
+            this.schema = schema;
+        }
+
+        public void write(DataOutput dataOutput) throws IOException {
+            schema.write(dataOutput);
+            dataOutput.writeInt(rowGroups.size());
+
+            for (RowGroup group : rowGroups) {
+                dataOutput.writeLong(group.offset);
+                dataOutput.writeInt(group.rows);
+                for (int i = 0; i < schema.size(); i++) {
+                    dataOutput.writeLong(group.offsets[i]);
+                    dataOutput.writeInt(group.lengths[i]);
+                    dataOutput.writeBoolean(group.mins[i] != null);
+                    if (group.mins[i] != null) {
+                        writeValue(dataOutput, schema.getType(i), group.mins[i]);
+                        writeValue(dataOutput, schema.getType(i), group.maxes[i]);
+                    }
+                }
+            }
+        }
+
+        public void readFields(DataInput dataInput) throws IOException {
+            schema = new ColumnarSchema();
+            schema.readFields(dataInput);
+            rowGroups = new ArrayList<RowGroup>();
+
+            int count = dataInput.readInt();
+            for (int g = 0; g < count; g++) {
+                RowGroup group = new RowGroup(dataInput.readLong(), dataInput.readInt(), schema.size());
+                for (int i = 0; i < schema.size(); i++) {
+                    group.offsets[i] = dataInput.readLong();
+                    group.lengths[i] = dataInput.readInt();
+                    if (dataInput.readBoolean()) {
+                        group.mins[i] = readValue(dataInput, schema.getType(i));
+                        group.maxes[i] = readValue(dataInput, schema.getType(i));
+                    }
+                }
+                rowGroups.add(group);
+            }
+        }
+    }
+
+    /**
+     * Read the footer at the end of a file.
+     * @param stream Stream of the file.
+     * @param length Length of the file.
+     */
+    public static Footer readFooter(FSDataInputStream stream, long length) throws IOException {
+        byte[] trailer = new byte[8 + MAGIC.length()];
+        if (length < MAGIC.length() + trailer.length)
+            throw new IOException("File of " + length + " bytes is too short to be a columnar file");
+
+        stream.readFully(length - trailer.length, trailer);
+        if (!new String(trailer, 8, MAGIC.length(), "US-ASCII").equals(MAGIC))
+            throw new IOException("Did not find the footer of a columnar file, it may be truncated");
+
+        stream.seek(new DataInputStream(new ByteArrayInputStream(trailer)).readLong());
+        Footer footer = new Footer();
+        footer.readFields(stream);
+        return footer;
+    }
+
+    /**
+     * Encode the values of a column in one row group.
+     * @param type Type of the column.
+     * @param values Values of the column, which are null where documents didn't have one.
+     * @return The chunk.
+     */
+    public static byte[] encode(ColumnarSchema.Type type, List<Object> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        // runs of present and missing values, starting with present ones
+        List<Integer> runs = new ArrayList<Integer>();
+        List<Object> present = new ArrayList<Object>();
+        boolean current = true;
+        int run = 0;
+        for (Object value : values) {
+            if ((value != null) != current) {
+                runs.add(run);
+                current = !current;
+                run = 0;
+            }
+            run++;
+            if (value != null)
+                present.add(value);
+        }
+        runs.add(run);
+
+        WritableUtils.writeVInt(out, runs.size());
+        for (int length : runs)
+            WritableUtils.writeVInt(out, length);
+
+        byte encoding = chooseEncoding(type, present);
+        out.writeByte(encoding);
+
+        switch (encoding) {
+            case DICTIONARY: {
+                Map<Object, Integer> dictionary = new HashMap<Object, Integer>();
+                List<Object> distinct = new ArrayList<Object>();
+                List<Object> indexes = new ArrayList<Object>();
+                for (Object value : present) {
+                    Integer index = dictionary.get(value);
+                    if (index == null) {
+                        index = distinct.size();
+                        dictionary.put(value, index);
+                        distinct.add(value);
+                    }
+                    indexes.add(index);
+                }
+
+                WritableUtils.writeVInt(out, distinct.size());
+                for (Object value : distinct)
+                    writeValue(out, type, value);
+                writeRuns(out, ColumnarSchema.Type.INT, indexes);
+                break;
+            }
+            case RLE:
+                writeRuns(out, type, present);
+                break;
+            case DELTA: {
+                long previous = 0;
+                for (Object value : present) {
+                    long number = toLong(type, value);
+                    WritableUtils.writeVLong(out, number - previous);
+                    previous = number;
+                }
+                if (type == ColumnarSchema.Type.OBJECTID) {
+                    for (Object value : present)
+                        out.write(((ObjectId) value).toByteArray(), 4, 8);
+                }
+                break;
+            }
+            default:
+                for (Object value : present)
+                    writeValue(out, type, value);
+        }
+
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte chooseEncoding(ColumnarSchema.Type type, List<Object> values) {
+        switch (type) {
+            case STRING:
+            case JSON: {
+                Set<Object> distinct = new HashSet<Object>();
+                for (Object value : values) {
+                    distinct.add(value);
+                    if (distinct.size() > values.size() / 2)
+                        return PLAIN;
+                }
+                return DICTIONARY;
+            }
+            case BOOL:
+                return RLE;
+            case OBJECTID:
+                return DELTA;
+            default:
+                int runs = 0;
+                for (int i = 0; i < values.size(); i++) {
+                    if (i == 0 || !values.get(i).equals(values.get(i - 1)))
+                        runs++;
+                }
+                if (runs * 2 <= values.size())
+                    return RLE;
+                return type == ColumnarSchema.Type.DOUBLE ? PLAIN : DELTA;
+        }
+    }
+
+    private static void writeRuns(DataOutput out, ColumnarSchema.Type type, List<Object> values) throws IOException {
+        List<Object> runValues = new ArrayList<Object>();
+        List<Integer> runLengths = new ArrayList<Integer>();
+        for (Object value : values) {
+            if (!runValues.isEmpty() && runValues.get(runValues.size() - 1).equals(value)) {
+                runLengths.set(runLengths.size() - 1, runLengths.get(runLengths.size() - 1) + 1);
+            }
+            else {
+                runValues.add(value);
+                runLengths.add(1);
+            }
+        }
+
+        WritableUtils.writeVInt(out, runValues.size());
+        for (int i = 0; i < runValues.size(); i++) {
+            WritableUtils.writeVInt(out, runLengths.get(i));
+            writeValue(out, type, runValues.get(i));
+        }
+    }
+
+    private static long toLong(ColumnarSchema.Type type, Object value) {
+        switch (type) {
+            case DATE:
+                return ((Date) value).getTime();
+            case OBJECTID:
+                return ((ObjectId) value).getTimeSecond() & 0xffffffffL;
+            default:
+                return ((Number) value).longValue();
+        }
+    }
+
+    /**
+     * Decode a chunk.
+     * @param type Type of the column.
+     * @param chunk The chunk.
+     * @param rows Number of rows in the row group.
+     * @return Values of the column, with null where documents didn't have one.
+     */
+    public static Object[] decode(ColumnarSchema.Type type, byte[] chunk, int rows) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunk));
+        Object[] values = new Object[rows];
+
+        boolean[] isPresent = new boolean[rows];
+        int count = WritableUtils.readVInt(in);
+        int position = 0;
+        int presentCount = 0;
+        for (int r = 0; r < count; r++) {
+            int length = WritableUtils.readVInt(in);
+            for (int i = 0; i < length; i++)
+                isPresent[position++] = r % 2 == 0;
+            if (r % 2 == 0)
+                presentCount += length;
+        }
+        if (position != rows)
+            throw new IOException("Chunk holds " + position + " rows, expected " + rows);
+
+        Object[] present = new Object[presentCount];
+        byte encoding = in.readByte();
+
+        switch (encoding) {
+            case DICTIONARY: {
+                Object[] distinct = new Object[WritableUtils.readVInt(in)];
+                for (int i = 0; i < distinct.length; i++)
+                    distinct[i] = readValue(in, type);
+                Object[] indexes = readRuns(in, ColumnarSchema.Type.INT, presentCount);
+                for (int i = 0; i < presentCount; i++)
+                    present[i] = distinct[(Integer) indexes[i]];
+                break;
+            }
+            case RLE:
+                present = readRuns(in, type, presentCount);
+                break;
+            case DELTA: {
+                long previous = 0;
+                long[] numbers = new long[presentCount];
+                for (int i = 0; i < presentCount; i++) {
+                    previous += WritableUtils.readVLong(in);
+                    numbers[i] = previous;
+                }
+                for (int i = 0; i < presentCount; i++)
+                    present[i] = fromLong(type, numbers[i], in);
+                break;
+            }
+            case PLAIN:
+                for (int i = 0; i < presentCount; i++)
+                    present[i] = readValue(in, type);
+                break;
+            default:
+                throw new IOException("Unknown column encoding " + encoding);
+        }
+
+        for (int i = 0, p = 0; i < rows; i++)
+            values[i] = isPresent[i] ? present[p++] : null;
+        return values;
+    }
+
+    private static Object[] readRuns(DataInput in, ColumnarSchema.Type type, int count) throws IOException {
+        Object[] values = new Object[count];
+        int runs = WritableUtils.readVInt(in);
+        int position = 0;
+
+        for (int r = 0; r < runs; r++) {
+            int length = WritableUtils.readVInt(in);
+            Object value = readValue(in, type);
+            for (int i = 0; i < length; i++)
+                values[position++] = value;
+        }
+
+        return values;
+    }
+
+    private static Object fromLong(ColumnarSchema.Type type, long number, DataInput in) throws IOException {
+        switch (type) {
+            case INT:
+                return (int) number;
+            case DATE:
+                return new Date(number);
+            case OBJECTID: {
+                byte[] id = new byte[12];
+                id[0] = (byte) (number >> 24);
+                id[1] = (byte) (number >> 16);
+                id[2] = (byte) (number >> 8);
+                id[3] = (byte) number;
+                in.readFully(id, 4, 8);
+                return new ObjectId(id);
+            }
+            default:
+                return number;
+        }
+    }
+
+    static void writeValue(DataOutput out, ColumnarSchema.Type type, Object value) throws IOException {
+        switch (type) {
+            case INT:
+                out.writeInt((Integer) value);
+                break;
+            case LONG:
+                out.writeLong((Long) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case BOOL:
+                out.writeBoolean((Boolean) value);
+                break;
+            case DATE:
+                out.writeLong(((Date) value).getTime());
+                break;
+            case OBJECTID:
+                out.write(((ObjectId) value).toByteArray());
+                break;
+            default:
+                byte[] bytes = ((String) value).getBytes(RawBSON.UTF8);
+                WritableUtils.writeVInt(out, bytes.length);
+                out.write(bytes);
+        }
+    }
+
+    static Object readValue(DataInput in, ColumnarSchema.Type type) throws IOException {
+        switch (type) {
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOL:
+                return in.readBoolean();
+            case DATE:
+                return new Date(in.readLong());
+            case OBJECTID: {
+                byte[] id = new byte[12];
+                in.readFully(id);
+                return new ObjectId(id);
+            }
+            default:
+                byte[] bytes = new byte[WritableUtils.readVInt(in)];
+                in.readFully(bytes);
+                return new String(bytes, RawBSON.UTF8);
+        }
+    }
+
+    /**
+     * Find the smallest and largest values of a column in a row group, for columns whose values can be ordered.
+     * Strings are ordered by code point, which is the order of their UTF-8 bytes, as Mongo orders them.
+     * @return The minimum and maximum, or nulls if there are no values or the column is json.
+     */
+    public static Object[] minMax(ColumnarSchema.Type type, List<Object> values) {
+        Object min = null;
+        Object max = null;
+        if (type == ColumnarSchema.Type.JSON)
+            return new Object[] {null, null};
+
+        for (Object value : values) {
+            if (value == null)
+                continue;
+            if (min == null || compare(value, min) < 0)
+                min = value;
+            if (max == null || compare(value, max) > 0)
+                max = value;
+        }
+
+        return new Object[] {min, max};
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if (a instanceof String) {
+            String x = (String) a;
+            String y = (String) b;
+            for (int i = 0, j = 0; i < x.length() && j < y.length(); ) {
+                int cx = x.codePointAt(i);
+                int cy = y.codePointAt(j);
+                if (cx != cy)
+                    return cx < cy ? -1 : 1;
+                i += Character.charCount(cx);
+                j += Character.charCount(cy);
+            }
+            return x.codePointCount(0, x.length()) - y.codePointCount(0, y.length());
+        }
+        return ((Comparable) a).compareTo(b);
+    }
+}
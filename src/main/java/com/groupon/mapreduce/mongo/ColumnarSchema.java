@@ -0,0 +1,262 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.ObjectId;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The columns of a columnar file, each a dot-delimited path into the documents and a type. A schema is given as
+ * JSON mapping each path to a type name, such as {_id: "objectid", "user.name": "string", ts: "date"}, or inferred
+ * from a sample of documents. The types are:
+ * - int, long, double - numbers, converted to the column's type when written
+ * - string            - strings
+ * - bool              - booleans
+ * - date              - dates
+ * - objectid          - ObjectIds
+ * - json              - anything else, such as arrays or a mix of types, stored as Mongo's JSON
+ * Paths only descend through documents, not arrays, so an array is stored whole in a json column.
+ */
+public class ColumnarSchema {
+    public static enum Type {
+        INT, LONG, DOUBLE, STRING, BOOL, DATE, OBJECTID, JSON
+    }
+
+    private List<String> paths = new ArrayList<String>();
+    private List<Type> types = new ArrayList<Type>();
+
+    public ColumnarSchema() {}
+
+    /**
+     * @param schema Schema as JSON, such as {_id: "objectid", "user.name": "string"}.
+     */
+    public ColumnarSchema(String schema) {
+        BSONObject columns = (BSONObject) JSON.parse(schema);
+        for (String path : columns.keySet()) {
+            Object type = columns.get(path);
+            try {
+                add(path, Type.valueOf(type.toString().toUpperCase()));
+            }
+            catch (IllegalArgumentException e) {
+                throw new RuntimeException("Unknown column type " + type + " for " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Infer a schema from a sample of documents, with a column for every path that leads to something other than
+     * a document. Numbers of different types share the widest type, and paths holding values of several other
+     * types, or arrays, become json columns.
+     * @param documents Sample of documents.
+     * @return Columns in the order their paths were first seen.
+     */
+    public static ColumnarSchema infer(List<BSONObject> documents) {
+        Map<String, Type> found = new LinkedHashMap<String, Type>();
+        for (BSONObject document : documents)
+            infer(document, "", found);
+
+        ColumnarSchema schema = new ColumnarSchema();
+        for (Map.Entry<String, Type> column : found.entrySet())
+            schema.add(column.getKey(), column.getValue() == null ? Type.JSON : column.getValue());
+        return schema;
+    }
+
+    private static void infer(BSONObject document, String prefix, Map<String, Type> found) {
+        for (String field : document.keySet()) {
+            Object value = document.get(field);
+            String path = prefix + field;
+
+            if (value instanceof BSONObject && !(value instanceof List)) {
+                infer((BSONObject) value, path + ".", found);
+                continue;
+            }
+
+            Type type = typeOf(value);
+            if (!found.containsKey(path))
+                found.put(path, type);
+            else
+                found.put(path, widen(found.get(path), type));
+        }
+    }
+
+    /**
+     * @return Type of a value, or null for null, which fits any type.
+     */
+    static Type typeOf(Object value) {
+        if (value == null)
+            return null;
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            return Type.INT;
+        if (value instanceof Long)
+            return Type.LONG;
+        if (value instanceof Number)
+            return Type.DOUBLE;
+        if (value instanceof String)
+            return Type.STRING;
+        if (value instanceof Boolean)
+            return Type.BOOL;
+        if (value instanceof Date)
+            return Type.DATE;
+        if (value instanceof ObjectId)
+            return Type.OBJECTID;
+        return Type.JSON;
+    }
+
+    private static Type widen(Type a, Type b) {
+        if (a == null || a == b)
+            return b;
+        if (b == null)
+            return a;
+        if (a == Type.DOUBLE || b == Type.DOUBLE)
+            return isNumber(a) && isNumber(b) ? Type.DOUBLE : Type.JSON;
+        if (a == Type.LONG || b == Type.LONG)
+            return isNumber(a) && isNumber(b) ? Type.LONG : Type.JSON;
+        return Type.JSON;
+    }
+
+    private static boolean isNumber(Type type) {
+        return type == Type.INT || type == Type.LONG || type == Type.DOUBLE;
+    }
+
+    public void add(String path, Type type) {
+        paths.add(path);
+        types.add(type);
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    public String getPath(int column) {
+        return paths.get(column);
+    }
+
+    public Type getType(int column) {
+        return types.get(column);
+    }
+
+    /**
+     * @return Index of the column with the given path, or -1 if there isn't one.
+     */
+    public int indexOf(String path) {
+        return paths.indexOf(path);
+    }
+
+    /**
+     * Get the value of a column from a document, converted to the column's type.
+     * @return The value, or null if the document doesn't have it or it can't be converted.
+     */
+    public Object getValue(BSONObject document, int column) {
+        Object value = document;
+        for (String field : paths.get(column).split("\\.")) {
+            if (!(value instanceof BSONObject) || value instanceof List)
+                return null;
+            value = ((BSONObject) value).get(field);
+        }
+
+        if (value == null)
+            return null;
+
+        switch (types.get(column)) {
+            case INT:
+                return value instanceof Number ? (Object) ((Number) value).intValue() : null;
+            case LONG:
+                return value instanceof Number ? (Object) ((Number) value).longValue() : null;
+            case DOUBLE:
+                return value instanceof Number ? (Object) ((Number) value).doubleValue() : null;
+            case JSON:
+                return JSON.serialize(value);
+            default:
+                return typeOf(value) == types.get(column) ? value : null;
+        }
+    }
+
+    /**
+     * Set a value in a document at the path of a column, creating the documents along the way.
+     */
+    public void setValue(BSONObject document, int column, Object value) {
+        String[] fields = paths.get(column).split("\\.");
+        BSONObject parent = document;
+
+        for (int i = 0; i < fields.length - 1; i++) {
+            Object child = parent.get(fields[i]);
+            if (!(child instanceof BSONObject)) {
+                child = new BasicBSONObject();
+                parent.put(fields[i], child);
+            }
+            parent = (BSONObject) child;
+        }
+
+        parent.put(fields[fields.length - 1], types.get(column) == Type.JSON && value != null ?
+                JSON.parse((String) value) : value);
+    }
+
+    public void write(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            dataOutput.writeUTF(paths.get(i));
+            dataOutput.writeByte(types.get(i).ordinal());
+        }
+    }
+
+    public void readFields(DataInput dataInput) throws IOException {
+        paths = new ArrayList<String>();
+        types = new ArrayList<Type>();
+
+        int count = dataInput.readInt();
+        for (int i = 0; i < count; i++)
+            add(dataInput.readUTF(), Type.values()[dataInput.readByte()]);
+    }
+
+    /**
+     * @return Schema as JSON, which can be passed back to the constructor.
+     */
+    @Override
+    public String toString() {
+        BasicBSONObject schema = new BasicBSONObject();
+        for (int i = 0; i < paths.size(); i++)
+            schema.put(paths.get(i), types.get(i).name().toLowerCase());
+        return JSON.serialize(schema);
+    }
+}
@@ -0,0 +1,523 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.apache.hadoop.io.Text;
+import org.bson.BasicBSONEncoder;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes encoded BSON documents as MongoDB Extended JSON, reading the raw bytes and writing straight into an output
+ * buffer which is reused from one document to the next. Nothing is decoded into Java objects on the way, and
+ * strings are copied through as the UTF-8 bytes they already are, with only the characters JSON needs escaped.
+ *
+ * Two modes are supported, as in the Extended JSON specification:
+ * - STRICT  - the canonical form, which keeps every type, such as {"$numberInt": "1"} and
+ *             {"$date": {"$numberLong": "0"}}
+ * - RELAXED - plain JSON numbers for int32, int64 and finite doubles, and ISO-8601 strings for dates between the
+ *             years 1970 and 9999, which is easier to read and to load into tools that don't know Extended JSON
+ *
+ * A transcoder isn't thread safe, and the bytes it returns are only valid until the next document is transcoded.
+ */
+public class JsonTranscoder {
+    public enum Mode { STRICT, RELAXED }
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(RawBSON.UTF8);
+    private static final byte[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(RawBSON.UTF8);
+    private static final long MAX_ISO_DATE = 253402300799999L;
+    private static final BigInteger MAX_DECIMAL_COEFFICIENT = BigInteger.TEN.pow(34);
+
+    private final Mode mode;
+    private byte[] out = new byte[4096];
+    private int length = 0;
+
+    public JsonTranscoder(Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * @return Mode of Extended JSON written.
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Transcode one document, replacing whatever was in the output buffer.
+     * @param buffer Little endian buffer holding the document.
+     * @param document Offset of the document in the buffer.
+     * @return Number of bytes of JSON in the buffer returned by getBytes.
+     */
+    public int transcode(ByteBuffer buffer, int document) {
+        length = 0;
+        writeDocument(buffer, document);
+        return length;
+    }
+
+    /**
+     * Transcode a WritableBSONObject. A LazyWritableBSONObject which hasn't been decoded is read from its encoded
+     * bytes, and anything else is encoded first.
+     * @param value Document to transcode.
+     * @return Number of bytes of JSON in the buffer returned by getBytes.
+     */
+    public int transcode(WritableBSONObject value) {
+        if (value instanceof LazyWritableBSONObject && !((LazyWritableBSONObject) value).isDecoded()) {
+            LazyWritableBSONObject lazy = (LazyWritableBSONObject) value;
+            return transcode(lazy.getBuffer(), lazy.getOffset());
+        }
+
+        byte[] bytes = new BasicBSONEncoder().encode(value.getBSONObject());
+        return transcode(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0);
+    }
+
+    /**
+     * Transcode a WritableBSONObject into a Text, which keeps its own buffer so it can be reused as well.
+     * @param value Document to transcode.
+     * @param text Text to hold the JSON.
+     */
+    public void transcode(WritableBSONObject value, Text text) {
+        transcode(value);
+        text.set(out, 0, length);
+    }
+
+    /**
+     * @return Output buffer, holding the JSON of the last document transcoded in its first getLength bytes.
+     */
+    public byte[] getBytes() {
+        return out;
+    }
+
+    /**
+     * @return Number of bytes of JSON in the output buffer.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(out, 0, length, RawBSON.UTF8);
+    }
+
+    private void writeDocument(ByteBuffer buffer, int document) {
+        write('{');
+        boolean first = true;
+        for (int e = RawBSON.firstElement(buffer, document); !RawBSON.isEnd(buffer, e);
+             e = RawBSON.nextElement(buffer, e)) {
+            if (!first)
+                write(',');
+            first = false;
+
+            int value = RawBSON.valueOffset(buffer, e);
+            writeString(buffer, e + 1, value - e - 2);
+            write(':');
+            writeValue(buffer, RawBSON.type(buffer, e), value);
+        }
+        write('}');
+    }
+
+    private void writeArray(ByteBuffer buffer, int array) {
+        write('[');
+        boolean first = true;
+        for (int e = RawBSON.firstElement(buffer, array); !RawBSON.isEnd(buffer, e);
+             e = RawBSON.nextElement(buffer, e)) {
+            if (!first)
+                write(',');
+            first = false;
+            writeValue(buffer, RawBSON.type(buffer, e), RawBSON.valueOffset(buffer, e));
+        }
+        write(']');
+    }
+
+    private void writeValue(ByteBuffer buffer, byte type, int value) {
+        switch (type) {
+            case RawBSON.DOUBLE:
+                writeDouble(buffer.getDouble(value));
+                break;
+            case RawBSON.STRING:
+                writeString(buffer, value + 4, buffer.getInt(value) - 1);
+                break;
+            case RawBSON.DOCUMENT:
+                writeDocument(buffer, value);
+                break;
+            case RawBSON.ARRAY:
+                writeArray(buffer, value);
+                break;
+            case RawBSON.BINARY:
+                writeBinary(buffer, value);
+                break;
+            case RawBSON.UNDEFINED:
+                write("{\"$undefined\":true}");
+                break;
+            case RawBSON.OBJECT_ID:
+                writeObjectId(buffer, value);
+                break;
+            case RawBSON.BOOLEAN:
+                write(buffer.get(value) != 0 ? "true" : "false");
+                break;
+            case RawBSON.DATE:
+                writeDate(buffer.getLong(value));
+                break;
+            case RawBSON.NULL:
+                write("null");
+                break;
+            case RawBSON.REGEX: {
+                int options = value;
+                while (buffer.get(options) != 0)
+                    options++;
+                options++;
+                int end = options;
+                while (buffer.get(end) != 0)
+                    end++;
+
+                write("{\"$regularExpression\":{\"pattern\":");
+                writeString(buffer, value, options - value - 1);
+                write(",\"options\":");
+                writeString(buffer, options, end - options);
+                write("}}");
+                break;
+            }
+            case RawBSON.DB_POINTER: {
+                int nameLength = buffer.getInt(value);
+                write("{\"$dbPointer\":{\"$ref\":");
+                writeString(buffer, value + 4, nameLength - 1);
+                write(",\"$id\":");
+                writeObjectId(buffer, value + 4 + nameLength);
+                write("}}");
+                break;
+            }
+            case RawBSON.CODE:
+                write("{\"$code\":");
+                writeString(buffer, value + 4, buffer.getInt(value) - 1);
+                write('}');
+                break;
+            case RawBSON.SYMBOL:
+                write("{\"$symbol\":");
+                writeString(buffer, value + 4, buffer.getInt(value) - 1);
+                write('}');
+                break;
+            case RawBSON.CODE_W_SCOPE: {
+                int codeLength = buffer.getInt(value + 4);
+                write("{\"$code\":");
+                writeString(buffer, value + 8, codeLength - 1);
+                write(",\"$scope\":");
+                writeDocument(buffer, value + 8 + codeLength);
+                write('}');
+                break;
+            }
+            case RawBSON.INT32:
+                writeInteger("$numberInt", buffer.getInt(value));
+                break;
+            case RawBSON.TIMESTAMP:
+                write("{\"$timestamp\":{\"t\":");
+                writeLong(buffer.getInt(value + 4) & 0xFFFFFFFFL);
+                write(",\"i\":");
+                writeLong(buffer.getInt(value) & 0xFFFFFFFFL);
+                write("}}");
+                break;
+            case RawBSON.INT64:
+                writeInteger("$numberLong", buffer.getLong(value));
+                break;
+            case RawBSON.DECIMAL128:
+                write("{\"$numberDecimal\":\"");
+                write(decimalString(buffer.getLong(value), buffer.getLong(value + 8)));
+                write("\"}");
+                break;
+            case RawBSON.MIN_KEY:
+                write("{\"$minKey\":1}");
+                break;
+            case RawBSON.MAX_KEY:
+                write("{\"$maxKey\":1}");
+                break;
+            default:
+                throw new RuntimeException("Unknown BSON type " + type + " at offset " + value);
+        }
+    }
+
+    private void writeInteger(String wrapper, long value) {
+        if (mode == Mode.RELAXED) {
+            writeLong(value);
+            return;
+        }
+        write("{\"");
+        write(wrapper);
+        write("\":\"");
+        writeLong(value);
+        write("\"}");
+    }
+
+    private void writeDouble(double value) {
+        boolean finite = !Double.isNaN(value) && !Double.isInfinite(value);
+        if (mode == Mode.RELAXED && finite) {
+            write(Double.toString(value));
+            return;
+        }
+
+        write("{\"$numberDouble\":\"");
+        if (finite)
+            write(Double.toString(value));
+        else if (Double.isNaN(value))
+            write("NaN");
+        else
+            write(value > 0 ? "Infinity" : "-Infinity");
+        write("\"}");
+    }
+
+    private void writeDate(long millis) {
+        if (mode == Mode.RELAXED && millis >= 0 && millis <= MAX_ISO_DATE) {
+            write("{\"$date\":\"");
+            writeIsoDate(millis);
+            write("\"}");
+            return;
+        }
+
+        write("{\"$date\":{\"$numberLong\":\"");
+        writeLong(millis);
+        write("\"}}");
+    }
+
+    /**
+     * Write a UTC date as yyyy-MM-ddTHH:mm:ss.SSSZ without going through Calendar, using the civil-from-days
+     * conversion for the proleptic Gregorian calendar.
+     */
+    private void writeIsoDate(long millis) {
+        long days = millis / 86400000L;
+        int msOfDay = (int) (millis % 86400000L);
+
+        long z = days + 719468;
+        long era = z / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        writeDigits(year, 4);
+        write('-');
+        writeDigits(month, 2);
+        write('-');
+        writeDigits(day, 2);
+        write('T');
+        writeDigits(msOfDay / 3600000, 2);
+        write(':');
+        writeDigits(msOfDay / 60000 % 60, 2);
+        write(':');
+        writeDigits(msOfDay / 1000 % 60, 2);
+        write('.');
+        writeDigits(msOfDay % 1000, 3);
+        write('Z');
+    }
+
+    private void writeObjectId(ByteBuffer buffer, int value) {
+        write("{\"$oid\":\"");
+        ensure(24);
+        for (int i = 0; i < 12; i++) {
+            int b = buffer.get(value + i);
+            out[length++] = HEX[(b >> 4) & 0xF];
+            out[length++] = HEX[b & 0xF];
+        }
+        write("\"}");
+    }
+
+    private void writeBinary(ByteBuffer buffer, int value) {
+        int size = buffer.getInt(value);
+        int subtype = buffer.get(value + 4) & 0xFF;
+        int data = value + 5;
+        if (subtype == 0x02 && size >= 4) {
+            data += 4;
+            size -= 4;
+        }
+
+        write("{\"$binary\":{\"base64\":\"");
+        ensure((size + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 2 < size; i += 3) {
+            int bits = (buffer.get(data + i) & 0xFF) << 16 | (buffer.get(data + i + 1) & 0xFF) << 8
+                    | (buffer.get(data + i + 2) & 0xFF);
+            out[length++] = BASE64[bits >> 18];
+            out[length++] = BASE64[(bits >> 12) & 0x3F];
+            out[length++] = BASE64[(bits >> 6) & 0x3F];
+            out[length++] = BASE64[bits & 0x3F];
+        }
+        if (i < size) {
+            int bits = (buffer.get(data + i) & 0xFF) << 16;
+            if (i + 1 < size)
+                bits |= (buffer.get(data + i + 1) & 0xFF) << 8;
+            out[length++] = BASE64[bits >> 18];
+            out[length++] = BASE64[(bits >> 12) & 0x3F];
+            out[length++] = i + 1 < size ? BASE64[(bits >> 6) & 0x3F] : (byte) '=';
+            out[length++] = '=';
+        }
+        write("\",\"subType\":\"");
+        write(HEX[subtype >> 4]);
+        write(HEX[subtype & 0xF]);
+        write("\"}}");
+    }
+
+    /**
+     * Write a UTF-8 string as a quoted JSON string. Bytes are copied as they are apart from quotes, backslashes and
+     * control characters, which can never be part of a multi-byte character.
+     */
+    private void writeString(ByteBuffer buffer, int offset, int size) {
+        ensure(size + 2);
+        out[length++] = '"';
+        for (int i = offset; i < offset + size; i++) {
+            byte b = buffer.get(i);
+            if (b >= 0x20 && b != '"' && b != '\\' || b < 0) {
+                write(b);
+                continue;
+            }
+
+            switch (b) {
+                case '"':
+                    write("\\\"");
+                    break;
+                case '\\':
+                    write("\\\\");
+                    break;
+                case '\b':
+                    write("\\b");
+                    break;
+                case '\f':
+                    write("\\f");
+                    break;
+                case '\n':
+                    write("\\n");
+                    break;
+                case '\r':
+                    write("\\r");
+                    break;
+                case '\t':
+                    write("\\t");
+                    break;
+                default:
+                    write("\\u00");
+                    write(HEX[b >> 4]);
+                    write(HEX[b & 0xF]);
+            }
+        }
+        write('"');
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            write("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void writeDigits(int value, int digits) {
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            out[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    /**
+     * Format an IEEE 754-2008 decimal128 in its binary integer decimal encoding, following the string conversion in
+     * the BSON decimal128 specification, which BigDecimal.toString matches for finite values.
+     */
+    static String decimalString(long low, long high) {
+        boolean negative = high < 0;
+        int exponent;
+        BigInteger coefficient;
+
+        if ((high & 0x6000000000000000L) == 0x6000000000000000L) {
+            if ((high & 0x7C00000000000000L) == 0x7C00000000000000L)
+                return "NaN";
+            if ((high & 0x7800000000000000L) == 0x7800000000000000L)
+                return negative ? "-Infinity" : "Infinity";
+            // The coefficient is at least 2^113 in this form, which is over the limit, so it's taken as zero
+            exponent = (int) ((high >>> 47) & 0x3FFF) - 6176;
+            coefficient = BigInteger.ZERO;
+        }
+        else {
+            exponent = (int) ((high >>> 49) & 0x3FFF) - 6176;
+            coefficient = BigInteger.valueOf(high & 0x1FFFFFFFFFFFFL).shiftLeft(64)
+                    .or(BigInteger.valueOf(low >>> 1).shiftLeft(1).or(BigInteger.valueOf(low & 1)));
+            if (coefficient.compareTo(MAX_DECIMAL_COEFFICIENT) >= 0)
+                coefficient = BigInteger.ZERO;
+        }
+
+        String formatted = new BigDecimal(coefficient, -exponent).toString();
+        return negative ? "-" + formatted : formatted;
+    }
+
+    private void write(String ascii) {
+        int size = ascii.length();
+        ensure(size);
+        for (int i = 0; i < size; i++)
+            out[length++] = (byte) ascii.charAt(i);
+    }
+
+    private void write(char c) {
+        write((byte) c);
+    }
+
+    private void write(byte b) {
+        ensure(1);
+        out[length++] = b;
+    }
+
+    private void ensure(int extra) {
+        if (length + extra <= out.length)
+            return;
+
+        byte[] grown = new byte[Math.max(out.length * 2, length + extra)];
+        System.arraycopy(out, 0, grown, 0, length);
+        out = grown;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.bson.BSONObject;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A WritableBSONObject which keeps the encoded document and only decodes the fields that are asked for. It
+ * can point straight into the buffer a Record was read from, so a Mapper which reads a couple of fields of a
+ * large document never copies or decodes the rest. The whole document is decoded the first time it is
+ * modified or getBSONObject is called, and from then on this behaves like a WritableBSONObject.
+ *
+ * When handed out by MongoRecordReader the buffer belongs to the reader, so the object is only valid until
+ * the next Record is read. Call getBSONObject to keep its contents for longer.
+ *
+ * As a map output value it carries the encoded bytes through the shuffle as they are. write copies them out without
+ * encoding, and readFields reads them into an array this object keeps and reuses, without decoding, so a Reducer
+ * which passes most documents through pays for neither. Like any Writable Hadoop reuses, the contents are then only
+ * valid until the next readFields.
+ */
+public class LazyWritableBSONObject extends WritableBSONObject {
+    private ByteBuffer buffer;
+    private int offset;
+    // length of the encoded document, kept when it is decoded and the buffer dropped
+    private int length = 0;
+
+    // array filled by readFields, which is reused by the next call rather than reallocated
+    private byte[] owned = new byte[0];
+    private ByteBuffer ownedBuffer = null;
+
+    /**
+     * Construct with no document, to be filled in by readFields.
+     */
+    public LazyWritableBSONObject() {
+        super(null);
+    }
+
+    /**
+     * Construct over an encoded document. The buffer is not copied.
+     * @param buffer Little endian buffer holding the document.
+     * @param offset Offset of the document in the buffer.
+     */
+    public LazyWritableBSONObject(ByteBuffer buffer, int offset) {
+        super(null);
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    /**
+     * Point this object at another encoded document, dropping any decoded copy, so that it can be reused.
+     * @param buffer Little endian buffer holding the document.
+     * @param offset Offset of the document in the buffer.
+     */
+    public void set(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.obj = null;
+    }
+
+    /**
+     * @return Length of the encoded document as it was read. Once decoded this is still the length it was read
+     * with, even if the document has been modified since.
+     */
+    public int getLength() {
+        return buffer == null ? length : buffer.getInt(offset);
+    }
+
+    /**
+     * @return Buffer holding the encoded document, or null once it has been decoded.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Offset of the encoded document in its buffer.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return True if the document has been decoded, in which case the encoded bytes are no longer used.
+     */
+    public boolean isDecoded() {
+        return obj != null;
+    }
+
+    /**
+     * Get a top-level field, decoding only that field.
+     * @param key Key to fetch.
+     * @return Object corresponding to that key, or null if there is none.
+     */
+    @Override
+    public Object get(String key) {
+        if (obj != null)
+            return obj.get(key);
+
+        int element = RawBSON.find(buffer, offset, key);
+        return element < 0 ? null : RawBSON.read(buffer, element);
+    }
+
+    /**
+     * Fetch values with the same semantics as JobUtil.get, decoding only the values found.
+     * @param path JSONPath-like dot-delimited path within the document.
+     * @return Values found, which may be several if the path goes through an array.
+     */
+    @Override
+    public List getPath(String path) {
+        return getPath(RawBSON.compilePath(path));
+    }
+
+    /**
+     * Fetch values with a path compiled once by RawBSON.compilePath, which saves splitting and encoding the path
+     * for every document.
+     * @param path Compiled path.
+     * @return Values found, which may be several if the path goes through an array.
+     */
+    public List getPath(byte[][] path) {
+        if (obj != null) {
+            StringBuilder dotted = new StringBuilder();
+            for (byte[] field : path) {
+                if (dotted.length() > 0)
+                    dotted.append('.');
+                dotted.append(new String(field, RawBSON.UTF8));
+            }
+            return super.getPath(dotted.toString());
+        }
+
+        List<Object> found = new ArrayList<Object>();
+        RawBSON.get(buffer, offset, path, found);
+        return found;
+    }
+
+    @Override
+    public void put(String key, Object value) {
+        getBSONObject().put(key, value);
+    }
+
+    /**
+     * Decode the whole document if that hasn't been done yet.
+     * @return Contained BSONObject.
+     */
+    @Override
+    public BSONObject getBSONObject() {
+        if (obj == null) {
+            obj = RawBSON.readDocument(buffer, offset);
+            length = getLength();
+            buffer = null;
+        }
+        return obj;
+    }
+
+    /**
+     * Write the encoded bytes as they are, unless the document has been decoded.
+     * @param dataOutput Output to accept serialized BSON.
+     * @throws IOException
+     */
+    @Override
+    public void write(DataOutput dataOutput) throws IOException {
+        if (obj != null) {
+            super.write(dataOutput);
+            return;
+        }
+
+        int length = getLength();
+        if (buffer.hasArray()) {
+            dataOutput.write(buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            RawBSON.copy(buffer, offset, bytes, 0, length);
+            dataOutput.write(bytes);
+        }
+    }
+
+    /**
+     * Read the encoded document without decoding it, into an array which is reused by the next call.
+     * @param dataInput DataInput from which we read the BSONObject.
+     * @throws IOException
+     */
+    @Override
+    public void readFields(DataInput dataInput) throws IOException {
+        byte[] bytes = readDocument(dataInput, owned);
+        if (bytes != owned || ownedBuffer == null) {
+            owned = bytes;
+            ownedBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer = ownedBuffer;
+        offset = 0;
+        obj = null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof WritableBSONObject)) return false;
+
+        return getBSONObject().equals(((WritableBSONObject) o).getBSONObject());
+    }
+}
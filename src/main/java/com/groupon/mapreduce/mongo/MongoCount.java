@@ -33,59 +33,75 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.groupon.mapreduce.mongo;
 
 import com.groupon.mapreduce.mongo.in.MongoInputFormat;
+import com.groupon.mapreduce.mongo.in.MongoStatsInputFormat;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
-import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Iterator;
 
 /**
- * This is a MapReduce job that demonstrates counting a collection that has been loaded into HDFS. It
- * uses the MongoInputFormat and doesn't need any Reducers.
- * It expects the path of the mongo files, database name, and collection name.
+ * This is a MapReduce job that demonstrates counting a collection that has been loaded into HDFS. The counts are
+ * kept in Hadoop counters, so it doesn't write any output or need any Reducers.
+ * It expects the path of the mongo files, database name, and collection name, and optionally a mode:
+ * - stats - the default, which reads the record count and data size Mongo keeps in the namespace file using the
+ *           MongoStatsInputFormat, and finishes in seconds however large the collection is
+ * - scan  - which reads every Record with lazy values, so documents are counted without being decoded
+ * The two modes don't measure size the same way. Mongo's data size counts whole Records, including their headers
+ * and padding, while a scan only sees the documents, so it adds up their BSON lengths in a counter of its own.
  * With the run script this looks like:
- * ./run com.groupon.mapreduce.mongo.MongoCount hadoophost.com /mongo/files dbname collname
+ * ./run com.groupon.mapreduce.mongo.MongoCount hadoophost.com /mongo/files dbname collname [stats|scan]
  */
 public class MongoCount extends Configured implements Tool {
     final Logger logger = LoggerFactory.getLogger(MongoCount.class);
 
-    private static final IntWritable one = new IntWritable(1);
+    public static enum Counters {
+        COLLECTIONS,
+        RECORDS,
+        DATA_SIZE,
+        BSON_SIZE
+    }
 
-    public static class Map extends Mapper<Text, WritableBSONObject, Text, IntWritable> {
+    /**
+     * Counts each Record read from the collection, along with the length of its document.
+     */
+    public static class Map extends Mapper<Text, WritableBSONObject, NullWritable, NullWritable> {
         @Override
         public void map(Text key, WritableBSONObject value, Context context)
                 throws IOException, InterruptedException {
-            context.write(new Text("count"), one);
+            context.getCounter(Counters.RECORDS).increment(1);
+            // lazy values are the default in scan mode, but a job may read decoded ones
+            int length = value instanceof LazyWritableBSONObject ? ((LazyWritableBSONObject) value).getLength() :
+                    new BasicBSONEncoder().encode(value.getBSONObject()).length;
+            context.getCounter(Counters.BSON_SIZE).increment(length);
         }
     }
 
-    public static class Reduce extends Reducer<Text, IntWritable, Text, IntWritable> {
+    /**
+     * Adds up the statistics of each collection, and of the same collection on each shard.
+     */
+    public static class StatsMap extends Mapper<Text, WritableBSONObject, NullWritable, NullWritable> {
         @Override
-        public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        public void map(Text key, WritableBSONObject value, Context context)
                 throws IOException, InterruptedException {
-
-            int sum = 0;
-            Iterator<IntWritable> iterator = values.iterator();
-
-            while (iterator.hasNext())
-                sum += iterator.next().get();
-            context.write(key, new IntWritable(sum));
+            BSONObject stats = value.getBSONObject();
+            context.getCounter(Counters.COLLECTIONS).increment(1);
+            context.getCounter(Counters.RECORDS).increment((Long) stats.get("count"));
+            context.getCounter(Counters.DATA_SIZE).increment((Long) stats.get("size"));
         }
     }
 
-
     public static void main(String[] args) throws Exception {
         ToolRunner.run(new Configuration(), new MongoCount(), args);
     }
@@ -93,43 +109,51 @@ public class MongoCount extends Configured implements Tool {
     @Override
     public int run(String[] args) throws Exception {
         if (args.length < 3) {
-            logger.error("Expects arguments: <path>, <db>, <collection>");
-            logger.error("    path: HDFS path to directory holding Mongo files");
+            logger.error("Expects arguments: <path>, <db>, <collection>, [mode]");
+            logger.error("    path: HDFS path to directory holding Mongo files, or a glob such as /mongo/* to read");
+            logger.error("          every shard in one job");
             logger.error("    db: name of database, this will search for <path>/<db>.ns");
             logger.error("    collection: name of collection, this should be in the DB <db>");
+            logger.error("    mode: stats to read the counts kept in <db>.ns, which is the default, or scan to");
+            logger.error("          count every Record");
         }
         Configuration conf = getConf();
 
         Path path = new Path(args[0]);
         String dbname = args[1];
         String collname = args[2];
+        boolean scan = args.length > 3 && args[3].equals("scan");
 
         MongoInputFormat.setMongoDirectory(path);
         MongoInputFormat.setDatabase(dbname);
         MongoInputFormat.setCollection(collname);
+        if (scan) {
+            MongoInputFormat.setLazyValues(conf, true);
+            MongoInputFormat.setReuseObjects(conf, true);
+        }
 
         Job job = new Job(conf);
 
         job.setJarByClass(MongoCount.class);
         job.setJobName("Count Mongo collection");
         job.setNumReduceTasks(0);
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(IntWritable.class);
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
-        job.setOutputFormatClass(TextOutputFormat.class);
-        job.setMapperClass(Map.class);
-        job.setReducerClass(Reduce.class);
-        job.setInputFormatClass(MongoInputFormat.class);
-
-        Path outPath = new Path("/tmp/mongocount");
-        TextOutputFormat.setOutputPath(job, outPath);
-        FileSystem fs = outPath.getFileSystem(conf);
-        if (fs.exists(outPath))
-            fs.delete(outPath, true);
+        job.setOutputKeyClass(NullWritable.class);
+        job.setOutputValueClass(NullWritable.class);
+        job.setOutputFormatClass(NullOutputFormat.class);
+        job.setMapperClass(scan ? Map.class : StatsMap.class);
+        job.setInputFormatClass(scan ? MongoInputFormat.class : MongoStatsInputFormat.class);
 
         logger.info("Starting job...");
 
-        return job.waitForCompletion(true) ? 0 : 1;
+        if (!job.waitForCompletion(true))
+            return 1;
+
+        org.apache.hadoop.mapreduce.Counters counters = job.getCounters();
+        logger.info("count " + counters.findCounter(Counters.RECORDS).getValue());
+        if (scan)
+            logger.info("bson size " + counters.findCounter(Counters.BSON_SIZE).getValue());
+        else
+            logger.info("size " + counters.findCounter(Counters.DATA_SIZE).getValue());
+        return 0;
     }
 }
@@ -0,0 +1,123 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.groupon.mapreduce.mongo.in.PackedMongoFile;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This packs the collections of Mongo files in HDFS into a PackedMongoFile in each directory, which
+ * MongoInputFormat reads in place of the data files. It runs in the client rather than as a MapReduce job, and
+ * expects the path of the mongo files, database name, collection names and output path, and optionally the class of
+ * the Hadoop CompressionCodec to use, which defaults to DefaultCodec. Each directory matched by the path is written
+ * to a directory of the same name under the output path.
+ * With the run script this looks like:
+ * ./run com.groupon.mapreduce.mongo.MongoPack hadoophost.com /mongo/* dbname coll1,coll2 /packed
+ */
+public class MongoPack extends Configured implements Tool {
+    final Logger logger = LoggerFactory.getLogger(MongoPack.class);
+
+    public static void main(String[] args) throws Exception {
+        ToolRunner.run(new Configuration(), new MongoPack(), args);
+    }
+
+    @Override
+    public int run(String[] args) throws Exception {
+        if (args.length < 4) {
+            logger.error("Expects arguments: <path>, <db>, <collection>, <outpath>, [codec]");
+            logger.error("    path: HDFS path to directory holding Mongo files, or a glob such as /mongo/* to pack");
+            logger.error("          every shard");
+            logger.error("    db: name of database, this will search for <path>/<db>.ns");
+            logger.error("    collection: name of collection, several names separated by commas, or * for every");
+            logger.error("          collection");
+            logger.error("    outpath: HDFS path to output directory, which gets a directory holding <db>.packed for");
+            logger.error("          each directory matched by path");
+            logger.error("    codec: class of the CompressionCodec to use, such as");
+            logger.error("          org.apache.hadoop.io.compress.SnappyCodec, which defaults to DefaultCodec");
+            return 1;
+        }
+        Configuration conf = getConf();
+
+        Path path = new Path(args[0]);
+        String dbname = args[1];
+        String collname = args[2];
+        Path outPath = new Path(args[3]);
+        Class<?> codecClass = args.length > 4 ? conf.getClassByName(args[4]) : DefaultCodec.class;
+        CompressionCodec codec = (CompressionCodec) ReflectionUtils.newInstance(codecClass, conf);
+
+        List<String> namespaces = null;
+        if (!collname.equals("*")) {
+            namespaces = Arrays.asList(collname.split(","));
+            for (int i = 0; i < namespaces.size(); i++)
+                namespaces.set(i, dbname + "." + namespaces.get(i));
+        }
+
+        FileSystem fs = path.getFileSystem(conf);
+        FileSystem outFs = outPath.getFileSystem(conf);
+        FileStatus[] matches = fs.globStatus(path);
+        if (matches == null || matches.length == 0) {
+            logger.error("Could not find Mongo directory " + path.toString());
+            return 1;
+        }
+
+        for (FileStatus match : matches) {
+            Path namespacePath = new Path(match.getPath(), dbname + ".ns");
+            if (!fs.exists(namespacePath)) {
+                logger.info("Could not find Mongo DB at " + namespacePath.toString());
+                continue;
+            }
+
+            Path out = new Path(new Path(outPath, match.getPath().getName()), dbname + PackedMongoFile.EXTENSION);
+            logger.info("Packing " + namespacePath.toString() + " into " + out.toString());
+            long length = PackedMongoFile.pack(fs, namespacePath, namespaces, outFs, out, codec,
+                    PackedMongoFile.DEFAULT_CHUNK_SIZE);
+            logger.info("Wrote " + length + " bytes to " + out.toString());
+        }
+
+        return 0;
+    }
+}
@@ -37,11 +37,13 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -53,18 +55,32 @@ import java.io.IOException;
 /**
  * This is a MapReduce job for reading Mongo files in HDFS and outputting their JSON representation.
  * Its a basic ETL than enables other things in Hadoop that work with JSON, but not BSON.
- * It expects the path of the mongo files, database name, collection name, and output path (in HDFS)
+ * It expects the path of the mongo files, database name, collection name, and output path (in HDFS), and
+ * optionally the Extended JSON mode, strict or relaxed, and a CompressionCodec for the output. Records are read as
+ * lazy values and transcoded by JsonTranscoder straight from the extent, without decoding them.
  * An example of using this with the run script is:
  * ./run com.groupon.mapreduce.mongo.MongoToJSON hadoophost.com /mongo/files dbname collname /json/files
  */
 public class MongoToJson extends Configured implements Tool {
     final Logger logger = LoggerFactory.getLogger(MongoToJson.class);
 
-    public static class Map extends Mapper<Text, WritableBSONObject, Text, Text> {
+    public static final String MODE = "mongoJsonMode";
+
+    public static class Map extends Mapper<Text, WritableBSONObject, NullWritable, Text> {
+        private JsonTranscoder transcoder;
+        private Text json = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            String mode = context.getConfiguration().get(MODE, JsonTranscoder.Mode.RELAXED.name());
+            transcoder = new JsonTranscoder(JsonTranscoder.Mode.valueOf(mode.toUpperCase()));
+        }
+
         @Override
         public void map(Text key, WritableBSONObject value, Context context)
                 throws IOException, InterruptedException {
-            context.write(null, new Text(value.getBSONObject().toString()));
+            transcoder.transcode(value, json);
+            context.write(NullWritable.get(), json);
         }
     }
 
@@ -78,11 +94,17 @@ public class MongoToJson extends Configured implements Tool {
     @Override
     public int run(String[] args) throws Exception {
         if (args.length < 4) {
-            logger.error("Expects arguments: <path>, <db>, <collection>, <outpath>");
-            logger.error("    path: HDFS path to directory holding Mongo files");
+            logger.error("Expects arguments: <path>, <db>, <collection>, <outpath>, [mode], [codec]");
+            logger.error("    path: HDFS path to directory holding Mongo files, or a glob such as /mongo/* to read");
+            logger.error("          every shard in one job");
             logger.error("    db: name of database, this will search for <path>/<db>.ns");
-            logger.error("    collection: name of collection, this should be in the DB <db>");
+            logger.error("    collection: name of collection, this should be in the DB <db>, several names separated");
+            logger.error("          by commas, or * for every collection");
             logger.error("    outpath: HDFS path to output directory for JSON");
+            logger.error("    mode: relaxed for plain JSON numbers and ISO dates, which is the default, or strict to");
+            logger.error("          keep every BSON type in canonical Extended JSON");
+            logger.error("    codec: class of the CompressionCodec for the output, such as");
+            logger.error("          org.apache.hadoop.io.compress.BZip2Codec, which can be split when read back");
         }
         Configuration conf = getConf();
 
@@ -90,10 +112,17 @@ public class MongoToJson extends Configured implements Tool {
         String dbname = args[1];
         String collname = args[2];
         Path outPath = new Path(args[3]);
+        if (args.length > 4)
+            conf.set(MODE, args[4]);
 
         MongoInputFormat.setMongoDirectory(path);
         MongoInputFormat.setDatabase(dbname);
-        MongoInputFormat.setCollection(collname);
+        if (collname.equals("*"))
+            MongoInputFormat.setAllCollections();
+        else
+            MongoInputFormat.setCollections(collname.split(","));
+        MongoInputFormat.setLazyValues(conf, true);
+        MongoInputFormat.setReuseObjects(conf, true);
 
         Job job = new Job(conf);
 
@@ -101,9 +130,9 @@ public class MongoToJson extends Configured implements Tool {
         job.setJobName("Mongo to JSON");
         job.setNumReduceTasks(0);
 
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(IntWritable.class);
-        job.setOutputKeyClass(Text.class);
+        job.setMapOutputKeyClass(NullWritable.class);
+        job.setMapOutputValueClass(Text.class);
+        job.setOutputKeyClass(NullWritable.class);
         job.setOutputValueClass(Text.class);
         job.setOutputFormatClass(TextOutputFormat.class);
         job.setMapperClass(Map.class);
@@ -111,6 +140,11 @@ public class MongoToJson extends Configured implements Tool {
         job.setInputFormatClass(MongoInputFormat.class);
 
         TextOutputFormat.setOutputPath(job, outPath);
+        if (args.length > 5) {
+            FileOutputFormat.setCompressOutput(job, true);
+            FileOutputFormat.setOutputCompressorClass(job,
+                    conf.getClassByName(args[5]).asSubclass(CompressionCodec.class));
+        }
         FileSystem fs = outPath.getFileSystem(conf);
         if (fs.exists(outPath))
             fs.delete(outPath, true);
@@ -0,0 +1,258 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Mongo style field projection, such as {a: 1, "b.c": 1}, which is applied to encoded BSON. Fields which are
+ * kept are copied as they are, and fields which are dropped are stepped over by their length without being
+ * decoded. As in Mongo a projection either includes or excludes fields, _id is kept unless it is explicitly
+ * excluded, and a path through an array applies to each document in the array.
+ *
+ * A Projection reuses its output buffer, so it should only be used by one thread.
+ */
+public class Projection {
+    private final boolean inclusive;
+    private final boolean includeId;
+    private final Node root;
+
+    private byte[] out = new byte[1024];
+    private int position;
+
+    private static class Node {
+        final Map<String, Node> children = new LinkedHashMap<String, Node>();
+        boolean leaf = false;
+        byte[][] names;
+        Node[] nodes;
+
+        Node get(ByteBuffer buffer, int element) {
+            for (int i = 0; i < names.length; i++) {
+                if (RawBSON.nameEquals(buffer, element, names[i]))
+                    return nodes[i];
+            }
+            return null;
+        }
+
+        void compile() {
+            names = new byte[children.size()][];
+            nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<String, Node> child : children.entrySet()) {
+                names[i] = child.getKey().getBytes(RawBSON.UTF8);
+                nodes[i] = child.getValue();
+                nodes[i].compile();
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Parse a projection given as JSON.
+     * @param projection Projection in the JSON syntax accepted by the Mongo shell, e.g. {a: 1, "b.c": 1}.
+     */
+    public Projection(String projection) {
+        this((BSONObject) JSON.parse(projection));
+    }
+
+    /**
+     * Compile a projection document.
+     * @param projection Document mapping dotted paths to 1 or true to include them, or 0 or false to exclude them.
+     */
+    public Projection(BSONObject projection) {
+        List<String> included = new ArrayList<String>();
+        List<String> excluded = new ArrayList<String>();
+        boolean id = true;
+        boolean explicitId = false;
+
+        for (String path : projection.keySet()) {
+            boolean include = isTrue(projection.get(path));
+            if (path.equals("_id")) {
+                id = include;
+                explicitId = true;
+            }
+            else if (include)
+                included.add(path);
+            else
+                excluded.add(path);
+        }
+
+        if (!included.isEmpty() && !excluded.isEmpty())
+            throw new RuntimeException("Projection " + projection + " mixes included and excluded fields");
+
+        // {} keeps everything and {_id: 0} only drops _id, but {_id: 1} on its own keeps only _id, while with
+        // excluded fields as in {a: 0, _id: 1} it just keeps _id
+        inclusive = !included.isEmpty() || (explicitId && id && excluded.isEmpty());
+        includeId = id;
+
+        root = new Node();
+        for (String path : inclusive ? included : excluded) {
+            add(path);
+        }
+        if (inclusive == includeId)
+            add("_id");
+        root.compile();
+    }
+
+    private void add(String path) {
+        Node node = root;
+        for (String field : path.split("\\.")) {
+            Node child = node.children.get(field);
+            if (child == null) {
+                child = new Node();
+                node.children.put(field, child);
+            }
+            else if (child.leaf) {
+                // a shorter path covers the whole field, e.g. "a" wins over "a.b"
+                return;
+            }
+            node = child;
+        }
+        node.leaf = true;
+        node.children.clear();
+    }
+
+    private static boolean isTrue(Object value) {
+        if (value instanceof Boolean)
+            return (Boolean) value;
+        if (value instanceof Number)
+            return ((Number) value).doubleValue() != 0;
+        throw new RuntimeException("Projection values must be numbers or booleans, found " + value);
+    }
+
+    /**
+     * @return True if the projected document keeps its _id.
+     */
+    public boolean includesId() {
+        return includeId;
+    }
+
+    /**
+     * Project an encoded document.
+     * @param buffer Little endian buffer holding the document.
+     * @param document Offset of the document in the buffer.
+     * @return Little endian buffer holding the projected document at offset 0, which is overwritten by the next
+     * call to apply.
+     */
+    public ByteBuffer apply(ByteBuffer buffer, int document) {
+        position = 0;
+        writeDocument(buffer, document, root, false);
+        return ByteBuffer.wrap(out, 0, position).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeDocument(ByteBuffer buffer, int document, Node node, boolean isArray) {
+        int start = position;
+        reserve(4);
+        position += 4;
+
+        int index = 0;
+        for (int e = RawBSON.firstElement(buffer, document); !RawBSON.isEnd(buffer, e); ) {
+            int next = RawBSON.nextElement(buffer, e);
+            Node child = isArray ? node : node.get(buffer, e);
+            byte type = RawBSON.type(buffer, e);
+
+            if (isArray && (type == RawBSON.DOCUMENT || type == RawBSON.ARRAY)) {
+                writeIndexName(type, index++);
+                writeDocument(buffer, RawBSON.valueOffset(buffer, e), node, type == RawBSON.ARRAY);
+            }
+            else if (isArray) {
+                // scalars in an array under a projected path are only kept when excluding fields
+                if (!inclusive) {
+                    writeIndexName(type, index++);
+                    int value = RawBSON.valueOffset(buffer, e);
+                    write(buffer, value, next - value);
+                }
+            }
+            else if (child == null) {
+                if (!inclusive)
+                    write(buffer, e, next - e);
+            }
+            else if (child.leaf) {
+                if (inclusive)
+                    write(buffer, e, next - e);
+            }
+            else if (type == RawBSON.DOCUMENT || type == RawBSON.ARRAY) {
+                int value = RawBSON.valueOffset(buffer, e);
+                write(buffer, e, value - e);
+                writeDocument(buffer, value, child, type == RawBSON.ARRAY);
+            }
+            else if (!inclusive)
+                write(buffer, e, next - e);
+
+            e = next;
+        }
+
+        reserve(1);
+        out[position++] = 0;
+        writeInt(start, position - start);
+    }
+
+    private void writeIndexName(byte type, int index) {
+        String name = Integer.toString(index);
+        reserve(name.length() + 2);
+        out[position++] = type;
+        for (int i = 0; i < name.length(); i++)
+            out[position++] = (byte) name.charAt(i);
+        out[position++] = 0;
+    }
+
+    private void write(ByteBuffer buffer, int offset, int length) {
+        reserve(length);
+        RawBSON.copy(buffer, offset, out, position, length);
+        position += length;
+    }
+
+    private void writeInt(int offset, int x) {
+        out[offset] = (byte) x;
+        out[offset + 1] = (byte) (x >> 8);
+        out[offset + 2] = (byte) (x >> 16);
+        out[offset + 3] = (byte) (x >> 24);
+    }
+
+    private void reserve(int length) {
+        if (position + length <= out.length)
+            return;
+
+        byte[] bigger = new byte[Math.max(out.length * 2, position + length)];
+        System.arraycopy(out, 0, bigger, 0, position);
+        out = bigger;
+    }
+}
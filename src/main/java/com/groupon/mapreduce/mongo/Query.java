@@ -0,0 +1,463 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A Mongo style query document, such as {a: {$gt: 5}, "b.c": {$in: ["x", "y"]}}, compiled into a matcher which
+ * runs on encoded BSON. Numbers, strings, ObjectIds, booleans, dates and nulls are compared on the raw bytes,
+ * and only values of other types are decoded.
+ *
+ * This supports $eq, $ne, $gt, $gte, $lt, $lte, $in, $nin, $exists, $and and $or, with Mongo's rules for
+ * dotted paths and arrays: a condition on a path matches if any value found along the path matches, and values
+ * are only ordered against values of the same kind, so {a: {$gt: 5}} never matches a string.
+ */
+public class Query {
+    private final Matcher matcher;
+
+    private interface Matcher {
+        boolean matches(ByteBuffer buffer, int document);
+    }
+
+    private interface Test {
+        boolean test(ByteBuffer buffer, int element);
+    }
+
+    /**
+     * Parse a query given as JSON.
+     * @param query Query in the JSON syntax accepted by the Mongo shell, e.g. {a: {$gt: 5}}.
+     */
+    public Query(String query) {
+        this((BSONObject) JSON.parse(query));
+    }
+
+    /**
+     * Compile a query document.
+     * @param query Query document.
+     */
+    public Query(BSONObject query) {
+        matcher = compile(query);
+    }
+
+    /**
+     * @param buffer Little endian buffer holding the document.
+     * @param document Offset of the document in the buffer.
+     * @return True if the document matches the query.
+     */
+    public boolean matches(ByteBuffer buffer, int document) {
+        return matcher.matches(buffer, document);
+    }
+
+    private static Matcher compile(BSONObject query) {
+        final List<Matcher> matchers = new ArrayList<Matcher>();
+
+        for (String key : query.keySet()) {
+            Object value = query.get(key);
+
+            if (key.equals("$and") || key.equals("$or")) {
+                final List<Matcher> clauses = new ArrayList<Matcher>();
+                for (Object clause : asList(key, value))
+                    clauses.add(compile((BSONObject) clause));
+
+                if (key.equals("$and"))
+                    matchers.add(and(clauses));
+                else
+                    matchers.add(new Matcher() {
+                        @Override
+                        public boolean matches(ByteBuffer buffer, int document) {
+                            for (Matcher clause : clauses) {
+                                if (clause.matches(buffer, document))
+                                    return true;
+                            }
+                            return false;
+                        }
+                    });
+            }
+            else if (key.startsWith("$"))
+                throw new RuntimeException("Query operator " + key + " is not supported");
+            else if (isOperators(value)) {
+                BSONObject operators = (BSONObject) value;
+                for (String operator : operators.keySet())
+                    matchers.add(compileOperator(key, operator, operators.get(operator)));
+            }
+            else
+                matchers.add(compileOperator(key, "$eq", value));
+        }
+
+        return and(matchers);
+    }
+
+    private static Matcher and(final List<Matcher> matchers) {
+        return new Matcher() {
+            @Override
+            public boolean matches(ByteBuffer buffer, int document) {
+                for (Matcher matcher : matchers) {
+                    if (!matcher.matches(buffer, document))
+                        return false;
+                }
+                return true;
+            }
+        };
+    }
+
+    private static boolean isOperators(Object value) {
+        if (!(value instanceof BSONObject) || value instanceof List)
+            return false;
+        for (String key : ((BSONObject) value).keySet())
+            return key.startsWith("$");
+        return false;
+    }
+
+    private static List asList(String operator, Object value) {
+        if (!(value instanceof List))
+            throw new RuntimeException(operator + " needs an array, found " + value);
+        return (List) value;
+    }
+
+    private static Matcher compileOperator(String path, String operator, Object value) {
+        byte[][] fields = RawBSON.compilePath(path);
+
+        if (operator.equals("$exists")) {
+            boolean exists = value instanceof Boolean ? (Boolean) value : ((Number) value).doubleValue() != 0;
+            Matcher any = new FieldMatcher(fields, new Test() {
+                @Override
+                public boolean test(ByteBuffer buffer, int element) {
+                    return true;
+                }
+            }, false);
+            return exists ? any : not(any);
+        }
+        if (operator.equals("$eq"))
+            return equals(fields, value);
+        if (operator.equals("$ne"))
+            return not(equals(fields, value));
+        if (operator.equals("$in"))
+            return in(fields, asList(operator, value));
+        if (operator.equals("$nin"))
+            return not(in(fields, asList(operator, value)));
+
+        final Constant constant = new Constant(value);
+        if (operator.equals("$gt"))
+            return new FieldMatcher(fields, new Test() {
+                @Override
+                public boolean test(ByteBuffer buffer, int element) {
+                    return constant.comparable(buffer, element) && constant.compare(buffer, element) > 0;
+                }
+            }, false);
+        if (operator.equals("$gte"))
+            return new FieldMatcher(fields, new Test() {
+                @Override
+                public boolean test(ByteBuffer buffer, int element) {
+                    return constant.comparable(buffer, element) && constant.compare(buffer, element) >= 0;
+                }
+            }, false);
+        if (operator.equals("$lt"))
+            return new FieldMatcher(fields, new Test() {
+                @Override
+                public boolean test(ByteBuffer buffer, int element) {
+                    return constant.comparable(buffer, element) && constant.compare(buffer, element) < 0;
+                }
+            }, false);
+        if (operator.equals("$lte"))
+            return new FieldMatcher(fields, new Test() {
+                @Override
+                public boolean test(ByteBuffer buffer, int element) {
+                    return constant.comparable(buffer, element) && constant.compare(buffer, element) <= 0;
+                }
+            }, false);
+
+        throw new RuntimeException("Query operator " + operator + " is not supported");
+    }
+
+    private static Matcher equals(byte[][] fields, Object value) {
+        final Constant constant = new Constant(value);
+        return new FieldMatcher(fields, new Test() {
+            @Override
+            public boolean test(ByteBuffer buffer, int element) {
+                return constant.equals(buffer, element);
+            }
+        }, value == null);
+    }
+
+    private static Matcher in(byte[][] fields, List values) {
+        final List<Constant> constants = new ArrayList<Constant>();
+        boolean matchMissing = false;
+        for (Object value : values) {
+            constants.add(new Constant(value));
+            matchMissing |= value == null;
+        }
+
+        return new FieldMatcher(fields, new Test() {
+            @Override
+            public boolean test(ByteBuffer buffer, int element) {
+                for (Constant constant : constants) {
+                    if (constant.equals(buffer, element))
+                        return true;
+                }
+                return false;
+            }
+        }, matchMissing);
+    }
+
+    private static Matcher not(final Matcher matcher) {
+        return new Matcher() {
+            @Override
+            public boolean matches(ByteBuffer buffer, int document) {
+                return !matcher.matches(buffer, document);
+            }
+        };
+    }
+
+    /**
+     * Applies a Test to each value found along a dotted path, expanding arrays as Mongo does.
+     */
+    private static class FieldMatcher implements Matcher {
+        private final byte[][] fields;
+        private final Test test;
+        private final boolean matchMissing;
+
+        FieldMatcher(byte[][] fields, Test test, boolean matchMissing) {
+            this.fields = fields;
+            this.test = test;
+            this.matchMissing = matchMissing;
+        }
+
+        @Override
+        public boolean matches(ByteBuffer buffer, int document) {
+            int result = matches(buffer, document, 0, false);
+            return result > 0 || (result < 0 && matchMissing);
+        }
+
+        /**
+         * @return 1 if a value matched, 0 if values were found but none matched, -1 if no value was found.
+         */
+        private int matches(ByteBuffer buffer, int document, int index, boolean isArray) {
+            int result = -1;
+            int element = RawBSON.find(buffer, document, fields[index]);
+
+            if (element >= 0) {
+                byte type = RawBSON.type(buffer, element);
+                int value = RawBSON.valueOffset(buffer, element);
+
+                if (index == fields.length - 1) {
+                    if (test.test(buffer, element))
+                        return 1;
+                    result = type == RawBSON.UNDEFINED ? -1 : 0;
+                    if (type == RawBSON.ARRAY) {
+                        for (int e = RawBSON.firstElement(buffer, value); !RawBSON.isEnd(buffer, e);
+                             e = RawBSON.nextElement(buffer, e)) {
+                            if (test.test(buffer, e))
+                                return 1;
+                        }
+                    }
+                }
+                else if (type == RawBSON.DOCUMENT || type == RawBSON.ARRAY)
+                    result = matches(buffer, value, index + 1, type == RawBSON.ARRAY);
+                if (result > 0)
+                    return result;
+            }
+
+            // a field name which isn't an array index applies to each document in an array
+            if (isArray) {
+                for (int e = RawBSON.firstElement(buffer, document); !RawBSON.isEnd(buffer, e);
+                     e = RawBSON.nextElement(buffer, e)) {
+                    if (RawBSON.type(buffer, e) != RawBSON.DOCUMENT)
+                        continue;
+                    int r = matches(buffer, RawBSON.valueOffset(buffer, e), index, false);
+                    if (r > 0)
+                        return r;
+                    result = Math.max(result, r);
+                }
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A value from the query, encoded so that it can be compared to BSON values without decoding them.
+     */
+    private static class Constant {
+        private static final int NUMBER = 1;
+        private static final int STRING = 2;
+        private static final int OBJECT_ID = 3;
+        private static final int BOOLEAN = 4;
+        private static final int DATE = 5;
+        private static final int NULL = 6;
+        private static final int OTHER = 7;
+
+        private final Object value;
+        private final int kind;
+        private boolean integral;
+        private long longValue;
+        private double doubleValue;
+        private byte[] bytes;
+
+        Constant(Object value) {
+            this.value = value;
+
+            if (value instanceof Integer || value instanceof Long || value instanceof Short ||
+                    value instanceof Byte) {
+                kind = NUMBER;
+                integral = true;
+                longValue = ((Number) value).longValue();
+                doubleValue = longValue;
+            }
+            else if (value instanceof Number) {
+                kind = NUMBER;
+                doubleValue = ((Number) value).doubleValue();
+            }
+            else if (value instanceof String) {
+                kind = STRING;
+                bytes = ((String) value).getBytes(RawBSON.UTF8);
+            }
+            else if (value instanceof ObjectId) {
+                kind = OBJECT_ID;
+                bytes = ((ObjectId) value).toByteArray();
+            }
+            else if (value instanceof Boolean) {
+                kind = BOOLEAN;
+                longValue = (Boolean) value ? 1 : 0;
+            }
+            else if (value instanceof Date) {
+                kind = DATE;
+                longValue = ((Date) value).getTime();
+            }
+            else if (value == null)
+                kind = NULL;
+            else if (value instanceof Pattern)
+                throw new RuntimeException("Regular expressions are not supported in queries");
+            else
+                kind = OTHER;
+        }
+
+        private static int kindOf(byte type) {
+            switch (type) {
+                case RawBSON.DOUBLE:
+                case RawBSON.INT32:
+                case RawBSON.INT64:
+                    return NUMBER;
+                case RawBSON.STRING:
+                case RawBSON.SYMBOL:
+                    return STRING;
+                case RawBSON.OBJECT_ID:
+                    return OBJECT_ID;
+                case RawBSON.BOOLEAN:
+                    return BOOLEAN;
+                case RawBSON.DATE:
+                    return DATE;
+                case RawBSON.NULL:
+                    return NULL;
+                default:
+                    return OTHER;
+            }
+        }
+
+        /**
+         * @return True if the element can be ordered against this constant.
+         */
+        boolean comparable(ByteBuffer buffer, int element) {
+            return kind != OTHER && kind != NULL && kindOf(RawBSON.type(buffer, element)) == kind;
+        }
+
+        boolean equals(ByteBuffer buffer, int element) {
+            byte type = RawBSON.type(buffer, element);
+            if (kind == OTHER)
+                return kindOf(type) == OTHER && value.equals(RawBSON.read(buffer, element));
+            if (kind == NULL)
+                return type == RawBSON.NULL;
+            return kindOf(type) == kind && compare(buffer, element) == 0;
+        }
+
+        /**
+         * Compare an element of the same kind with this constant.
+         * @return Negative, zero or positive as the element is less than, equal to or greater than the constant.
+         */
+        int compare(ByteBuffer buffer, int element) {
+            byte type = RawBSON.type(buffer, element);
+            int value = RawBSON.valueOffset(buffer, element);
+
+            switch (kind) {
+                case NUMBER:
+                    if (integral && type == RawBSON.INT32)
+                        return compare(buffer.getInt(value), longValue);
+                    if (integral && type == RawBSON.INT64)
+                        return compare(buffer.getLong(value), longValue);
+                    // the same rules as sorting, so NaN is below every number and -0.0 equals 0.0
+                    return BSONOrder.compareDoubles(number(buffer, type, value), doubleValue);
+                case STRING:
+                    return compareBytes(buffer, value + 4, buffer.getInt(value) - 1);
+                case OBJECT_ID:
+                    return compareBytes(buffer, value, 12);
+                case BOOLEAN:
+                    return compare(buffer.get(value) != 0 ? 1 : 0, longValue);
+                case DATE:
+                    return compare(buffer.getLong(value), longValue);
+                default:
+                    throw new RuntimeException("Can't compare " + this.value);
+            }
+        }
+
+        private static double number(ByteBuffer buffer, byte type, int value) {
+            if (type == RawBSON.INT32)
+                return buffer.getInt(value);
+            if (type == RawBSON.INT64)
+                return buffer.getLong(value);
+            return buffer.getDouble(value);
+        }
+
+        private static int compare(long a, long b) {
+            return a < b ? -1 : (a == b ? 0 : 1);
+        }
+
+        private int compareBytes(ByteBuffer buffer, int offset, int length) {
+            int n = Math.min(length, bytes.length);
+            for (int i = 0; i < n; i++) {
+                int a = buffer.get(offset + i) & 0xff;
+                int b = bytes[i] & 0xff;
+                if (a != b)
+                    return a - b;
+            }
+            return length - bytes.length;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static functions which read encoded BSON directly from a little endian ByteBuffer, without decoding the
+ * whole document. Documents and elements are addressed by their absolute offset in the buffer. An element is
+ * its type byte, followed by its name as a C string, followed by its value.
+ */
+public class RawBSON {
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final byte DOUBLE = 0x01;
+    public static final byte STRING = 0x02;
+    public static final byte DOCUMENT = 0x03;
+    public static final byte ARRAY = 0x04;
+    public static final byte BINARY = 0x05;
+    public static final byte UNDEFINED = 0x06;
+    public static final byte OBJECT_ID = 0x07;
+    public static final byte BOOLEAN = 0x08;
+    public static final byte DATE = 0x09;
+    public static final byte NULL = 0x0A;
+    public static final byte REGEX = 0x0B;
+    public static final byte DB_POINTER = 0x0C;
+    public static final byte CODE = 0x0D;
+    public static final byte SYMBOL = 0x0E;
+    public static final byte CODE_W_SCOPE = 0x0F;
+    public static final byte INT32 = 0x10;
+    public static final byte TIMESTAMP = 0x11;
+    public static final byte INT64 = 0x12;
+    public static final byte DECIMAL128 = 0x13;
+    public static final byte MIN_KEY = (byte) 0xFF;
+    public static final byte MAX_KEY = 0x7F;
+
+    /**
+     * Split a dotted path such as "key1.key2" into encoded field names, which can be reused for any number of
+     * lookups.
+     * @param path JSONPath-like dot-delimited path.
+     * @return UTF-8 encoded name of each field in the path.
+     */
+    public static byte[][] compilePath(String path) {
+        String[] fields = path.split("\\.");
+        byte[][] compiled = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++)
+            compiled[i] = fields[i].getBytes(UTF8);
+        return compiled;
+    }
+
+    /**
+     * @return Length of the document at the given offset, including its length and terminating byte.
+     */
+    public static int documentLength(ByteBuffer buffer, int document) {
+        return buffer.getInt(document);
+    }
+
+    /**
+     * @return Offset of the first element of the document, or of its terminating byte if it is empty.
+     */
+    public static int firstElement(ByteBuffer buffer, int document) {
+        return document + 4;
+    }
+
+    /**
+     * @return Offset of the element following the given one, or of the terminating byte of the document.
+     */
+    public static int nextElement(ByteBuffer buffer, int element) {
+        int value = valueOffset(buffer, element);
+        return value + valueSize(buffer, buffer.get(element), value);
+    }
+
+    /**
+     * @return True if the offset points at the terminating byte of a document rather than an element.
+     */
+    public static boolean isEnd(ByteBuffer buffer, int element) {
+        return buffer.get(element) == 0;
+    }
+
+    /**
+     * @return BSON type byte of the element.
+     */
+    public static byte type(ByteBuffer buffer, int element) {
+        return buffer.get(element);
+    }
+
+    /**
+     * @return Offset of the value of the element, just past its name.
+     */
+    public static int valueOffset(ByteBuffer buffer, int element) {
+        int i = element + 1;
+        while (buffer.get(i) != 0)
+            i++;
+        return i + 1;
+    }
+
+    /**
+     * @return Name of the element.
+     */
+    public static String name(ByteBuffer buffer, int element) {
+        return string(buffer, element + 1, valueOffset(buffer, element) - element - 2);
+    }
+
+    /**
+     * @return True if the element has exactly the given UTF-8 encoded name.
+     */
+    public static boolean nameEquals(ByteBuffer buffer, int element, byte[] name) {
+        int i = element + 1;
+        for (byte b : name) {
+            if (buffer.get(i++) != b)
+                return false;
+        }
+        return buffer.get(i) == 0;
+    }
+
+    /**
+     * @return Number of bytes taken by a value of the given type starting at the given offset.
+     */
+    public static int valueSize(ByteBuffer buffer, byte type, int value) {
+        switch (type) {
+            case DOUBLE:
+            case DATE:
+            case TIMESTAMP:
+            case INT64:
+                return 8;
+            case STRING:
+            case CODE:
+            case SYMBOL:
+                return 4 + buffer.getInt(value);
+            case DOCUMENT:
+            case ARRAY:
+            case CODE_W_SCOPE:
+                return buffer.getInt(value);
+            case BINARY:
+                return 5 + buffer.getInt(value);
+            case UNDEFINED:
+            case NULL:
+            case MIN_KEY:
+            case MAX_KEY:
+                return 0;
+            case OBJECT_ID:
+                return 12;
+            case BOOLEAN:
+                return 1;
+            case REGEX: {
+                int i = value;
+                while (buffer.get(i) != 0)
+                    i++;
+                i++;
+                while (buffer.get(i) != 0)
+                    i++;
+                return i + 1 - value;
+            }
+            case DB_POINTER:
+                return 4 + buffer.getInt(value) + 12;
+            case INT32:
+                return 4;
+            case DECIMAL128:
+                return 16;
+            default:
+                throw new RuntimeException("Unknown BSON type " + type + " at offset " + value);
+        }
+    }
+
+    /**
+     * Find a field among the top-level elements of a document.
+     * @param buffer Buffer holding the document.
+     * @param document Offset of the document in the buffer.
+     * @param name UTF-8 encoded field name.
+     * @return Offset of the matching element, or -1 if there is none.
+     */
+    public static int find(ByteBuffer buffer, int document, byte[] name) {
+        for (int e = firstElement(buffer, document); !isEnd(buffer, e); e = nextElement(buffer, e)) {
+            if (nameEquals(buffer, e, name))
+                return e;
+        }
+        return -1;
+    }
+
+    /**
+     * Find a top-level field of a document by name.
+     * @return Offset of the matching element, or -1 if there is none.
+     */
+    public static int find(ByteBuffer buffer, int document, String name) {
+        return find(buffer, document, name.getBytes(UTF8));
+    }
+
+    /**
+     * Fetch values from a document with the same semantics as JobUtil.get, decoding only the values found.
+     * @param buffer Buffer holding the document.
+     * @param document Offset of the document in the buffer.
+     * @param path Path compiled by compilePath.
+     * @param found List to which values are added.
+     */
+    public static void get(ByteBuffer buffer, int document, byte[][] path, List<Object> found) {
+        get(buffer, document, path, 0, found);
+    }
+
+    private static void get(ByteBuffer buffer, int document, byte[][] path, int index, List<Object> found) {
+        int element = find(buffer, document, path[index]);
+        if (element < 0)
+            return;
+
+        byte type = type(buffer, element);
+        int value = valueOffset(buffer, element);
+
+        if (index == path.length - 1) {
+            if (type == ARRAY) {
+                for (int e = firstElement(buffer, value); !isEnd(buffer, e); e = nextElement(buffer, e))
+                    found.add(read(buffer, e));
+            }
+            else if (type != NULL && type != UNDEFINED)
+                found.add(read(buffer, element));
+        }
+        else if (type == DOCUMENT)
+            get(buffer, value, path, index + 1, found);
+        else if (type == ARRAY)
+            getFromArray(buffer, value, path, index + 1, found);
+    }
+
+    private static void getFromArray(ByteBuffer buffer, int array, byte[][] path, int index, List<Object> found) {
+        for (int e = firstElement(buffer, array); !isEnd(buffer, e); e = nextElement(buffer, e)) {
+            byte type = type(buffer, e);
+            if (type == DOCUMENT)
+                get(buffer, valueOffset(buffer, e), path, index, found);
+            else if (type == ARRAY)
+                getFromArray(buffer, valueOffset(buffer, e), path, index, found);
+        }
+    }
+
+    /**
+     * Decode the value of one element. The common types, including documents and arrays, are read directly, and
+     * anything else is decoded by the driver from a copy of just this element, so values are the same as from a
+     * document decoded by the driver.
+     * @param buffer Buffer holding the element.
+     * @param element Offset of the element.
+     * @return Decoded value.
+     */
+    public static Object read(ByteBuffer buffer, int element) {
+        byte type = type(buffer, element);
+        int value = valueOffset(buffer, element);
+
+        switch (type) {
+            case DOUBLE:
+                return buffer.getDouble(value);
+            case STRING:
+                return string(buffer, value + 4, buffer.getInt(value) - 1);
+            case OBJECT_ID: {
+                byte[] id = new byte[12];
+                for (int i = 0; i < 12; i++)
+                    id[i] = buffer.get(value + i);
+                return new ObjectId(id);
+            }
+            case BOOLEAN:
+                return buffer.get(value) != 0;
+            case DATE:
+                return new Date(buffer.getLong(value));
+            case NULL:
+                return null;
+            case INT32:
+                return buffer.getInt(value);
+            case INT64:
+                return buffer.getLong(value);
+            case DOCUMENT:
+                return readDocument(buffer, value);
+            case ARRAY:
+                return readArray(buffer, value);
+            default:
+                return decodeElement(buffer, element, value + valueSize(buffer, type, value) - element);
+        }
+    }
+
+    /**
+     * Decode a whole document into the same BasicBSONObject the driver's decoder would build, reading directly
+     * from the buffer rather than from a copy.
+     * @param buffer Buffer holding the document.
+     * @param document Offset of the document.
+     * @return Decoded document.
+     */
+    public static BasicBSONObject readDocument(ByteBuffer buffer, int document) {
+        BasicBSONObject decoded = new BasicBSONObject();
+        for (int e = firstElement(buffer, document); !isEnd(buffer, e); e = nextElement(buffer, e))
+            decoded.put(name(buffer, e), read(buffer, e));
+        return decoded;
+    }
+
+    private static BasicBSONList readArray(ByteBuffer buffer, int array) {
+        BasicBSONList decoded = new BasicBSONList();
+        for (int e = firstElement(buffer, array); !isEnd(buffer, e); e = nextElement(buffer, e))
+            decoded.add(read(buffer, e));
+        return decoded;
+    }
+
+    private static Object decodeElement(ByteBuffer buffer, int element, int size) {
+        byte[] wrapper = new byte[size + 5];
+        int length = wrapper.length;
+        wrapper[0] = (byte) length;
+        wrapper[1] = (byte) (length >> 8);
+        wrapper[2] = (byte) (length >> 16);
+        wrapper[3] = (byte) (length >> 24);
+        copy(buffer, element, wrapper, 4, size);
+
+        Map<?, ?> decoded = (Map<?, ?>) new BasicBSONDecoder().readObject(wrapper);
+        return decoded.values().iterator().next();
+    }
+
+    /**
+     * Copy bytes out of a buffer without moving its position.
+     */
+    public static void copy(ByteBuffer buffer, int offset, byte[] dest, int destOffset, int length) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, dest, destOffset, length);
+        }
+        else {
+            ByteBuffer source = buffer.duplicate();
+            source.position(offset);
+            source.get(dest, destOffset, length);
+        }
+    }
+
+    /**
+     * Decode a UTF-8 string of the given number of bytes.
+     */
+    public static String string(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, UTF8);
+
+        byte[] bytes = new byte[length];
+        copy(buffer, offset, bytes, 0, length);
+        return new String(bytes, UTF8);
+    }
+}
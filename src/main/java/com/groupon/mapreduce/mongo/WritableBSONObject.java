@@ -34,18 +34,29 @@ package com.groupon.mapreduce.mongo;
 
 import org.apache.hadoop.io.Writable;
 import org.bson.*;
+import org.bson.io.OutputBuffer;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This is a simple wrapper for a BSONObject which uses the existing BSON serializers to encode and decode
- * BSONObjects to binary, fulfilling the Writable interface.
+ * BSONObjects to binary, fulfilling the Writable interface. The encoder, decoder and their buffers are kept from one
+ * call to the next, so that an object which Hadoop reuses for every key or value doesn't allocate them each time.
  */
 public class WritableBSONObject implements Writable {
     BSONObject obj;
 
+    private BasicBSONEncoder encoder = null;
+    private ReusableOutputBuffer output = null;
+    private BasicBSONDecoder decoder = null;
+    private BasicBSONCallback callback = null;
+    private byte[] input = new byte[0];
+
     /**
      * Construct using an existing BSON object.
      * @param obj BSON object to store.
@@ -79,6 +90,16 @@ public class WritableBSONObject implements Writable {
         return obj.get(key);
     }
 
+    /**
+     * Fetch values with a JSONPath-like dot syntax, as in JobUtil.get.
+     * @param path JSONPath-like dot-delimited path within the object.
+     * @return Values found, which may be several if the path goes through an array.
+     */
+    public List getPath(String path) {
+        BSONObject bson = getBSONObject();
+        return JobUtil.get(bson instanceof Map ? (Map) bson : bson.toMap(), path);
+    }
+
     /**
      * Get contained BSONObject. This object is not cloned, so encapsulation is not guaranteed here.
      * @return Contained BSONObject.
@@ -87,6 +108,14 @@ public class WritableBSONObject implements Writable {
         return obj;
     }
 
+    /**
+     * Replace the contained BSONObject, so that this wrapper can be reused.
+     * @param obj BSON object to store.
+     */
+    public void setBSONObject(BSONObject obj) {
+        this.obj = obj;
+    }
+
     /**
      * Required by the Writable interface, this just uses the existing BSON serializers and writes to
      * the DataOutput argument.
@@ -95,9 +124,20 @@ public class WritableBSONObject implements Writable {
      */
     @Override
     public void write(DataOutput dataOutput) throws IOException {
-        BSONEncoder encoder = new BasicBSONEncoder();
-        byte[] bytes = encoder.encode(obj);
-        dataOutput.write(bytes);
+        if (encoder == null) {
+            encoder = new BasicBSONEncoder();
+            output = new ReusableOutputBuffer();
+        }
+
+        output.reset();
+        encoder.set(output);
+        try {
+            encoder.putObject(obj);
+        }
+        finally {
+            encoder.done();
+        }
+        output.writeTo(dataOutput);
     }
 
     /**
@@ -108,29 +148,133 @@ public class WritableBSONObject implements Writable {
      */
     @Override
     public void readFields(DataInput dataInput) throws IOException {
-        byte[] lengthBytes = new byte[4];
-        dataInput.readFully(lengthBytes, 0, 4);
-        int length = JobUtil.readInt(lengthBytes, 0);
-        byte[] bytes = new byte[length];
+        input = readDocument(dataInput, input);
 
-        dataInput.readFully(bytes, 4, length - 4);
-        bytes[0] = lengthBytes[0];
-        bytes[1] = lengthBytes[1];
-        bytes[2] = lengthBytes[2];
-        bytes[3] = lengthBytes[3];
-
-        BSONDecoder decoder = new BasicBSONDecoder();
-        BSONCallback callback = new BasicBSONCallback();
-        decoder.decode(bytes, callback);
+        if (decoder == null) {
+            decoder = new BasicBSONDecoder();
+            callback = new BasicBSONCallback();
+        }
+        callback.reset();
+        decoder.decode(input, callback);
         obj = (BSONObject) callback.get();
     }
 
+    /**
+     * Read an encoded document into the given array, which is only replaced by a larger one if the document doesn't
+     * fit. Bytes past the end of the document are left as they were.
+     * @param dataInput DataInput from which we read the document.
+     * @param bytes Array to reuse.
+     * @return Array holding the document at offset 0.
+     * @throws IOException
+     */
+    static byte[] readDocument(DataInput dataInput, byte[] bytes) throws IOException {
+        if (bytes.length < 4)
+            bytes = new byte[256];
+        dataInput.readFully(bytes, 0, 4);
+        int length = JobUtil.readInt(bytes, 0);
+        if (length < 5)
+            throw new IOException("Invalid BSON document length " + length);
+
+        if (bytes.length < length) {
+            byte[] grown = new byte[Math.max(length, bytes.length * 2)];
+            System.arraycopy(bytes, 0, grown, 0, 4);
+            bytes = grown;
+        }
+        dataInput.readFully(bytes, 4, length - 4);
+        return bytes;
+    }
+
+    /**
+     * An OutputBuffer which can be emptied and filled again without reallocating, unlike BasicOutputBuffer whose
+     * size never shrinks. The encoder seeks back to fill in document lengths, so the size is the furthest position
+     * written since the last reset.
+     */
+    private static class ReusableOutputBuffer extends OutputBuffer {
+        private byte[] bytes = new byte[512];
+        private int position = 0;
+        private int size = 0;
+
+        void reset() {
+            position = 0;
+            size = 0;
+        }
+
+        void writeTo(DataOutput dataOutput) throws IOException {
+            dataOutput.write(bytes, 0, size);
+        }
+
+        private void ensure(int extra) {
+            if (position + extra <= bytes.length)
+                return;
+            byte[] grown = new byte[Math.max(bytes.length * 2, position + extra)];
+            System.arraycopy(bytes, 0, grown, 0, size);
+            bytes = grown;
+        }
+
+        @Override
+        public void write(byte[] b) {
+            write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, position, len);
+            position += len;
+            size = Math.max(size, position);
+        }
+
+        @Override
+        public void write(int b) {
+            ensure(1);
+            bytes[position++] = (byte) b;
+            size = Math.max(size, position);
+        }
+
+        @Override
+        public int getPosition() {
+            return position;
+        }
+
+        @Override
+        public void setPosition(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public void seekEnd() {
+            position = size;
+        }
+
+        @Override
+        public void seekStart() {
+            position = 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int pipe(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+            return size;
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
+        if (!(o instanceof WritableBSONObject)) return false;
 
         WritableBSONObject that = (WritableBSONObject) o;
-        return this.obj.equals(that.obj);
+        return this.getBSONObject().equals(that.getBSONObject());
+    }
+
+    @Override
+    public int hashCode() {
+        BSONObject bson = getBSONObject();
+        return bson == null ? 0 : bson.hashCode();
     }
 }
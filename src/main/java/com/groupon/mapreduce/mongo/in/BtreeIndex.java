@@ -0,0 +1,396 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.RawBSON;
+import org.bson.BSONObject;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * This reads one of a collection's indexes, which Mongo keeps as a B-tree of 8KB buckets stored as Records in
+ * the extents of the index namespace, dbname.collectionname.$indexname. Only version 1 indexes, the default
+ * since Mongo 2.0, are supported.
+ *
+ * Each bucket starts with a 22 byte header holding the parent and the rightmost child bucket, flags, sizes and
+ * the number of keys n. It is followed by n 16 byte key nodes, each holding the child bucket with the keys before
+ * it, the DiskLoc of the Record it points at and the offset of its key data. DiskLocs in buckets are packed into
+ * 7 bytes, a 4 byte offset and a 3 byte file number, and a key whose Record offset is odd has been deleted.
+ *
+ * Keys are usually in a compact format: a byte giving the type of each value, with a bit set if more values
+ * follow, then the value. Numbers are all stored as 8 byte doubles, with bits of the type byte marking ints and
+ * longs. Keys holding values the compact format can't, such as documents, are stored as a byte
+ * 0xff followed by a BSON document with empty field names.
+ */
+class BtreeIndex {
+    static final int BUCKET_SIZE = 8192 - Record.HEADER_SIZE;
+    static final int BUCKET_HEADER_SIZE = 22;
+    static final int KEY_NODE_SIZE = 16;
+    private static final int MAX_DEPTH = 64;
+
+    private static final int IS_BSON = 0xff;
+    private static final int HAS_MORE = 0x40;
+    private static final int TYPE_MASK = 0x0f;
+    private static final int NUMBER_MASK = 0x30;
+    private static final int MIN_KEY = 1;
+    private static final int NULL = 2;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 6;
+    private static final int BINARY = 7;
+    private static final int OBJECT_ID = 8;
+    private static final int FALSE = 10;
+    private static final int TRUE = 11;
+    private static final int DATE = 12;
+    private static final int MAX_KEY = 14;
+    private static final int INT = 0x10;
+    private static final int LONG = 0x20;
+    private static final int[] BINARY_LENGTHS = {0, 1, 2, 3, 4, 5, 6, 7, 8, 10, 12, 14, 16, 20, 24, 32};
+
+    /**
+     * Receives the keys of an index in order.
+     */
+    interface Visitor {
+        /**
+         * @param key Values of the key, one per field of the index.
+         * @param record DiskLoc of the Record the key points at, as (fileNum << 32) | offset.
+         * @return False to stop the scan.
+         */
+        boolean visit(List<Object> key, long record);
+    }
+
+    private Namespace collection;
+    private NamespaceDetails.IndexDetails details;
+    private BSONObject spec;
+    private List<String> fields = new ArrayList<String>();
+    private List<Integer> directions = new ArrayList<Integer>();
+
+    /**
+     * @param collection Namespace of the indexed collection, whose data files hold the index.
+     * @param details Index to read.
+     */
+    public BtreeIndex(Namespace collection, NamespaceDetails.IndexDetails details) {
+        this.collection = collection;
+        this.details = details;
+        this.spec = readSpec(collection, details.info);
+
+        BSONObject keyPattern = (BSONObject) spec.get("key");
+        for (String field : keyPattern.keySet()) {
+            Object direction = keyPattern.get(field);
+            fields.add(field);
+            // special indexes such as "2d" or "hashed" aren't ordered by value
+            directions.add(direction instanceof Number ? (((Number) direction).doubleValue() < 0 ? -1 : 1) : 0);
+        }
+    }
+
+    /**
+     * @return Every index of the collection.
+     */
+    public static List<BtreeIndex> getIndexes(Namespace collection) {
+        List<BtreeIndex> indexes = new ArrayList<BtreeIndex>();
+        for (NamespaceDetails.IndexDetails index : collection.getDetails().getIndexes())
+            indexes.add(new BtreeIndex(collection, index));
+        return indexes;
+    }
+
+    /**
+     * @return The first ascending or descending index of the collection which starts with the given field, or null
+     * if there isn't one.
+     */
+    public static BtreeIndex findByField(Namespace collection, String field) {
+        for (BtreeIndex index : getIndexes(collection)) {
+            if (index.fields.get(0).equals(field) && index.directions.get(0) != 0)
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * @return The index of the collection with the given name, such as "status_1", or null if there isn't one.
+     */
+    public static BtreeIndex findByName(Namespace collection, String name) {
+        for (BtreeIndex index : getIndexes(collection)) {
+            if (index.getName().equals(name))
+                return index;
+        }
+        return null;
+    }
+
+    public String getName() {
+        return (String) spec.get("name");
+    }
+
+    /**
+     * @return Namespace holding the buckets of this index, as dbname.collectionname.$indexname.
+     */
+    public String getIndexNamespace() {
+        return collection.name + ".$" + getName();
+    }
+
+    /**
+     * @return Fields of the index, in order.
+     */
+    public List<String> getFields() {
+        return fields;
+    }
+
+    private static BSONObject readSpec(Namespace collection, DiskLoc loc) {
+        try {
+            byte[] header = new byte[Record.HEADER_SIZE + 4];
+            collection.getStream(loc.getFileNum()).readFully(loc.getOffset(), header);
+            ByteBuffer buff = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+
+            byte[] document = new byte[buff.getInt(Record.HEADER_SIZE)];
+            collection.getStream(loc.getFileNum()).readFully(loc.getOffset() + Record.HEADER_SIZE, document);
+            return RawBSON.readDocument(ByteBuffer.wrap(document).order(ByteOrder.LITTLE_ENDIAN), 0);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read index spec of " + collection.name + " at " + loc, e);
+        }
+    }
+
+    private ByteBuffer readBucket(DiskLoc loc) {
+        byte[] bucket = new byte[BUCKET_SIZE];
+        try {
+            collection.getStream(loc.getFileNum()).readFully(loc.getOffset() + Record.HEADER_SIZE, bucket);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read bucket of " + getIndexNamespace() + " at " + loc, e);
+        }
+        return ByteBuffer.wrap(bucket).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Fail unless this is a version 1 index, as the buckets and keys of older indexes are laid out differently.
+     */
+    void checkVersion() {
+        Object version = spec.get("v");
+        if (!(version instanceof Number) || ((Number) version).intValue() != 1)
+            throw new RuntimeException("Index " + getIndexNamespace() + " is version " + version +
+                    ", only version 1 indexes can be read");
+    }
+
+    /**
+     * Visit the keys whose first value is in the given range, in index order, reading only the buckets which can
+     * hold them.
+     * @param range Range of the first field of the index.
+     * @param visitor Visitor to pass each key to.
+     */
+    public void scan(IndexRange range, Visitor visitor) {
+        checkVersion();
+        if (directions.get(0) == 0)
+            throw new RuntimeException("Index " + getIndexNamespace() + " is not ordered by value");
+
+        walk(details.head, range, visitor, 0);
+    }
+
+    /**
+     * Visit the keys of a bucket and its children in order. A child holds the keys which sort before the key
+     * pointing at it, so it is skipped if that key is before the range, and the scan ends at the first key after
+     * the range.
+     * @return False once the scan should stop.
+     */
+    private boolean walk(DiskLoc loc, IndexRange range, Visitor visitor, int depth) {
+        if (depth > MAX_DEPTH)
+            throw new RuntimeException("Index " + getIndexNamespace() + " is deeper than " + MAX_DEPTH +
+                    " buckets, it may be corrupt");
+
+        ByteBuffer bucket = readBucket(loc);
+        int n = keyCount(bucket);
+        boolean descending = directions.get(0) < 0;
+
+        for (int i = 0; i < n; i++) {
+            int node = BUCKET_HEADER_SIZE + i * KEY_NODE_SIZE;
+            List<Object> key = decodeKey(bucket, keyOffset(bucket, i));
+            boolean before = descending ? range.isAbove(key.get(0)) : range.isBelow(key.get(0));
+            boolean after = descending ? range.isBelow(key.get(0)) : range.isAbove(key.get(0));
+
+            if (!before) {
+                DiskLoc child = readLoc(bucket, node);
+                if (child != null && !walk(child, range, visitor, depth + 1))
+                    return false;
+            }
+
+            if (after)
+                return false;
+
+            if (!before && isUsed(bucket, i) && !visitor.visit(key, recordLoc(bucket, i)))
+                return false;
+        }
+
+        DiskLoc next = readLoc(bucket, 7);
+        return next == null || walk(next, range, visitor, depth + 1);
+    }
+
+    /**
+     * @return Number of keys in the bucket.
+     */
+    static int keyCount(ByteBuffer bucket) {
+        return bucket.getShort(20) & 0xffff;
+    }
+
+    /**
+     * @return Offset in the bucket of the data of key i.
+     */
+    static int keyOffset(ByteBuffer bucket, int i) {
+        return BUCKET_HEADER_SIZE + (bucket.getShort(BUCKET_HEADER_SIZE + i * KEY_NODE_SIZE + 14) & 0xffff);
+    }
+
+    /**
+     * @return False if key i has been deleted.
+     */
+    static boolean isUsed(ByteBuffer bucket, int i) {
+        int offset = bucket.getInt(BUCKET_HEADER_SIZE + i * KEY_NODE_SIZE + 7);
+        return offset >= 0 && (offset & 1) == 0;
+    }
+
+    /**
+     * @return DiskLoc of the Record key i points at, as (fileNum << 32) | offset.
+     */
+    static long recordLoc(ByteBuffer bucket, int i) {
+        DiskLoc loc = readLoc(bucket, BUCKET_HEADER_SIZE + i * KEY_NODE_SIZE + 7);
+        return ((long) loc.getFileNum() << 32) | loc.getOffset();
+    }
+
+    /**
+     * Read a 7 byte DiskLoc.
+     * @return The DiskLoc, or null if it is null.
+     */
+    private static DiskLoc readLoc(ByteBuffer bucket, int offset) {
+        int fileOffset = bucket.getInt(offset);
+        if (fileOffset < 0)
+            return null;
+
+        int fileNum = (bucket.get(offset + 4) & 0xff) | (bucket.get(offset + 5) & 0xff) << 8 |
+                (bucket.get(offset + 6) & 0xff) << 16;
+        return new DiskLoc(fileNum, fileOffset);
+    }
+
+    /**
+     * Decode an index key.
+     * @param buff Little endian buffer holding the key.
+     * @param offset Offset of the key.
+     * @return Values of the key, one per field of the index.
+     */
+    static List<Object> decodeKey(ByteBuffer buff, int offset) {
+        List<Object> values = new ArrayList<Object>();
+
+        if ((buff.get(offset) & 0xff) == IS_BSON) {
+            // the field names are all empty, so read the values in order rather than as a map
+            for (int e = RawBSON.firstElement(buff, offset + 1); !RawBSON.isEnd(buff, e);
+                 e = RawBSON.nextElement(buff, e))
+                values.add(RawBSON.read(buff, e));
+            return values;
+        }
+
+        int p = offset;
+        while (true) {
+            int bits = buff.get(p) & 0xff;
+            p++;
+
+            switch (bits & TYPE_MASK) {
+                case MIN_KEY:
+                    values.add(new MinKey());
+                    break;
+                case NULL:
+                    values.add(null);
+                    break;
+                case DOUBLE: {
+                    // ints and longs are stored as doubles too, and only the type bits tell them apart
+                    double number = buff.getDouble(p);
+                    if ((bits & NUMBER_MASK) == INT)
+                        values.add((int) number);
+                    else if ((bits & NUMBER_MASK) == LONG)
+                        values.add((long) number);
+                    else
+                        values.add(number);
+                    p += 8;
+                    break;
+                }
+                case STRING: {
+                    int length = buff.get(p) & 0xff;
+                    values.add(RawBSON.string(buff, p + 1, length));
+                    p += 1 + length;
+                    break;
+                }
+                case BINARY: {
+                    int code = buff.get(p) & 0xff;
+                    byte[] data = new byte[BINARY_LENGTHS[code >> 4]];
+                    for (int i = 0; i < data.length; i++)
+                        data[i] = buff.get(p + 1 + i);
+                    // subtypes from 0x80 are stored as 0x08 to 0x0f
+                    int subtype = code & 0x0f;
+                    if (subtype >= 0x08)
+                        subtype = 0x80 + subtype - 0x08;
+                    values.add(new Binary((byte) subtype, data));
+                    p += 1 + data.length;
+                    break;
+                }
+                case OBJECT_ID: {
+                    byte[] id = new byte[12];
+                    for (int i = 0; i < id.length; i++)
+                        id[i] = buff.get(p + i);
+                    values.add(new ObjectId(id));
+                    p += 12;
+                    break;
+                }
+                case FALSE:
+                    values.add(false);
+                    break;
+                case TRUE:
+                    values.add(true);
+                    break;
+                case DATE:
+                    values.add(new Date(buff.getLong(p)));
+                    p += 8;
+                    break;
+                case MAX_KEY:
+                    values.add(new MaxKey());
+                    break;
+                default:
+                    throw new RuntimeException("Unknown index key type " + bits + " at " + (p - 1));
+            }
+
+            if ((bits & HAS_MORE) == 0)
+                return values;
+        }
+    }
+}
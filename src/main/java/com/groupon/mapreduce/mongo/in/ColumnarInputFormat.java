@@ -0,0 +1,86 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import java.io.IOException;
+
+/**
+ * This reads the columnar files written by ColumnarOutputFormat, decoding only the columns a job asks for. Files
+ * are split on row group boundaries, with each row group read by the split holding its start. The key is the
+ * number of the row within its file, and the value a WritableBSONObject holding the requested columns at their
+ * paths, leaving out missing values. Options are taken from the Hadoop configuration:
+ * - ColumnarInputFormat.COLUMNS - paths of the columns to read, separated by commas, otherwise every column
+ * - ColumnarInputFormat.FILTER  - only return rows whose value of one column is in a range, given as in
+ *                                 IndexRange. Row groups whose minimum and maximum show that none of their rows
+ *                                 can match are skipped without being read.
+ */
+public class ColumnarInputFormat extends FileInputFormat<LongWritable, WritableBSONObject> {
+    public static final String COLUMNS = "mongoColumnarColumns";
+    public static final String FILTER = "mongoColumnarFilter";
+
+    /**
+     * Helper to configure Hadoop to read only the given columns.
+     * @param conf Configuration object in which to set the columns.
+     * @param columns Paths of the columns, such as "user.name".
+     */
+    public static void setColumns(Configuration conf, String... columns) {
+        conf.setStrings(COLUMNS, columns);
+    }
+
+    /**
+     * Helper to configure Hadoop to only return rows whose value of a column is in the given range. The column
+     * doesn't need to be one of those read.
+     * @param conf Configuration object in which to set the filter.
+     * @param range Range as JSON, such as {ts: {$gte: {$date: "2013-06-01T00:00:00Z"}}}, see IndexRange.
+     */
+    public static void setFilter(Configuration conf, String range) {
+        // fail when configuring the job rather than in every task
+        new IndexRange(range);
+        conf.set(FILTER, range);
+    }
+
+    @Override
+    public RecordReader<LongWritable, WritableBSONObject> createRecordReader(InputSplit inputSplit,
+                                                                             TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        return new ColumnarRecordReader();
+    }
+}
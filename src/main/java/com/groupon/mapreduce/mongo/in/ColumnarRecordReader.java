@@ -0,0 +1,226 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.ColumnarFile;
+import com.groupon.mapreduce.mongo.ColumnarSchema;
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import com.mongodb.util.JSON;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.bson.BasicBSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This reads the row groups of a columnar file which start in a FileSplit, as described in ColumnarInputFormat.
+ * Each row group is decoded a column at a time, and rows are then put together from the decoded columns.
+ */
+public class ColumnarRecordReader extends RecordReader<LongWritable, WritableBSONObject> {
+    private FSDataInputStream stream;
+    private ColumnarSchema schema;
+    private List<Integer> columns = new ArrayList<Integer>();
+    private IndexRange filter = null;
+    private int filterColumn = -1;
+
+    // row groups to read, with the number in the file of the first row of each
+    private List<ColumnarFile.RowGroup> groups = new ArrayList<ColumnarFile.RowGroup>();
+    private List<Long> firstRows = new ArrayList<Long>();
+    private int groupCount;
+
+    private ColumnarFile.RowGroup group = null;
+    private long firstRow = 0;
+    private Object[][] values;
+    private Object[] filterValues;
+    private int row = 0;
+
+    private LongWritable key = new LongWritable();
+    private WritableBSONObject value = null;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        Configuration conf = taskAttemptContext.getConfiguration();
+        FileSplit split = (FileSplit) inputSplit;
+        Path path = split.getPath();
+        FileSystem fs = path.getFileSystem(conf);
+
+        // start afresh if this reader was initialized before
+        close();
+        columns.clear();
+        groups.clear();
+        firstRows.clear();
+        filter = null;
+        filterColumn = -1;
+        group = null;
+        row = 0;
+
+        stream = fs.open(path);
+        ColumnarFile.Footer footer;
+        try {
+            footer = ColumnarFile.readFooter(stream, fs.getFileStatus(path).getLen());
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read the footer of " + path.toString(), e);
+        }
+        schema = footer.schema;
+
+        String[] paths = conf.getStrings(ColumnarInputFormat.COLUMNS);
+        if (paths == null) {
+            for (int i = 0; i < schema.size(); i++)
+                columns.add(i);
+        }
+        else {
+            // columns a file doesn't have are left out of every row
+            for (String column : paths) {
+                if (schema.indexOf(column) >= 0)
+                    columns.add(schema.indexOf(column));
+            }
+        }
+
+        if (conf.get(ColumnarInputFormat.FILTER) != null) {
+            filter = new IndexRange(conf.get(ColumnarInputFormat.FILTER));
+            filterColumn = schema.indexOf(filter.getField());
+        }
+
+        long rows = 0;
+        for (ColumnarFile.RowGroup candidate : footer.rowGroups) {
+            if (candidate.offset >= split.getStart() && candidate.offset < split.getStart() + split.getLength() &&
+                    mayMatch(candidate)) {
+                groups.add(candidate);
+                firstRows.add(rows);
+            }
+            rows += candidate.rows;
+        }
+        groupCount = groups.size();
+    }
+
+    /**
+     * @return False if the statistics of the row group show that none of its rows match the filter.
+     */
+    private boolean mayMatch(ColumnarFile.RowGroup candidate) {
+        if (filter == null)
+            return true;
+        if (filterColumn < 0)
+            return false;
+        if (schema.getType(filterColumn) == ColumnarSchema.Type.JSON)
+            return true;
+
+        Object min = candidate.mins[filterColumn];
+        Object max = candidate.maxes[filterColumn];
+        return min != null && !filter.isAbove(min) && !filter.isBelow(max);
+    }
+
+    private Object[] readColumn(int column) throws IOException {
+        byte[] chunk = new byte[group.lengths[column]];
+        stream.readFully(group.offsets[column], chunk);
+        return ColumnarFile.decode(schema.getType(column), chunk, group.rows);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        while (true) {
+            if (group == null || row == group.rows) {
+                if (groups.isEmpty())
+                    return false;
+
+                group = groups.remove(0);
+                firstRow = firstRows.remove(0);
+                row = 0;
+
+                values = new Object[columns.size()][];
+                for (int i = 0; i < columns.size(); i++)
+                    values[i] = readColumn(columns.get(i));
+                filterValues = filter == null ? null : readColumn(filterColumn);
+            }
+
+            int current = row++;
+            if (filterValues != null && !matches(filterValues[current]))
+                continue;
+
+            BasicBSONObject document = new BasicBSONObject();
+            for (int i = 0; i < columns.size(); i++) {
+                if (values[i][current] != null)
+                    schema.setValue(document, columns.get(i), values[i][current]);
+            }
+
+            key.set(firstRow + current);
+            value = new WritableBSONObject(document);
+            return true;
+        }
+    }
+
+    private boolean matches(Object value) {
+        if (value == null)
+            return false;
+        if (schema.getType(filterColumn) == ColumnarSchema.Type.JSON)
+            value = JSON.parse((String) value);
+        return !filter.isBelow(value) && !filter.isAbove(value);
+    }
+
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    @Override
+    public WritableBSONObject getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        if (groupCount == 0)
+            return 1.0f;
+        float done = groupCount - groups.size() - (group == null ? 0 : 1);
+        if (group != null)
+            done += (float) row / group.rows;
+        return done / groupCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stream != null)
+            stream.close();
+        stream = null;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import java.util.Arrays;
+
+/**
+ * The set of deleted records of a collection, found by walking the deleted record lists of its namespace. Mongo
+ * keeps freed space in 19 lists bucketed by size, and every deleted record in every extent of the collection is
+ * on one of them, so this tells live Records from freed space without relying on the contents of either.
+ * Locations are packed into longs as in Record.getDiskLoc.
+ */
+class DeletedRecords {
+    private long[] locations;
+
+    /**
+     * @param locations Packed DiskLocs of the deleted records, in any order. The array is sorted in place.
+     */
+    public DeletedRecords(long[] locations) {
+        Arrays.sort(locations);
+        this.locations = locations;
+    }
+
+    /**
+     * @param diskLoc Packed DiskLoc of a record.
+     * @return True if there is a deleted record at that location.
+     */
+    public boolean contains(long diskLoc) {
+        return Arrays.binarySearch(locations, diskLoc) >= 0;
+    }
+
+    public int size() {
+        return locations.length;
+    }
+}
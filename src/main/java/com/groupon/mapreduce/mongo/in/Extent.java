@@ -33,6 +33,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.groupon.mapreduce.mongo.in;
 
 import com.groupon.mapreduce.mongo.JobUtil;
+import com.groupon.mapreduce.mongo.RawBSON;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -41,7 +42,11 @@ import org.apache.hadoop.io.Writable;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * This is a Mongo model that holds a block of records. Each Extent is represented as an InputSplit when a
@@ -51,10 +56,11 @@ import java.util.Iterator;
  * Record.
  */
 public class Extent implements Writable {
-    private static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 4 + 8 + 8 + 128;
+    static final int HEADER_SIZE = 4 + 8 + 8 + 8 + 4 + 8 + 8 + 128;
     private static final String MAGIC_NUM = "DCBA";
 
     private Path path;
+    private String namespace;
     private DiskLoc myLoc;
     private DiskLoc prevExtent;
     private DiskLoc nextExtent;
@@ -63,6 +69,7 @@ public class Extent implements Writable {
     private int length;
 
     private byte[] cache = null;
+    private ByteBuffer data = null;
 
     /**
      * We construct an Extent with location information, then the Extent's fields are loaded from that file
@@ -71,33 +78,68 @@ public class Extent implements Writable {
      * @param loc DiskLoc of the start of this extent, used to read from the correct location.
      */
     public Extent(Namespace namespace, DiskLoc loc) {
+        this(namespace, loc, readHeader(namespace, loc));
+    }
+
+    /**
+     * Construct an Extent from a header which has already been read.
+     * @param namespace Namespace of this Extent.
+     * @param loc DiskLoc of the start of this extent.
+     * @param buff Little endian buffer holding the extent header at position 0.
+     */
+    Extent(Namespace namespace, DiskLoc loc, ByteBuffer buff) {
         path = namespace.getPath(loc.getFileNum());
-        myLoc = loc;
-        FSDataInputStream stream = namespace.getStream(loc.getFileNum());
+        this.namespace = namespace.name;
 
-        byte[] buff = new byte[HEADER_SIZE];
+        if (!isHeader(buff, loc))
+            throw new RuntimeException("Did not find expected extent magic number at " + loc.toString());
 
+        myLoc           = new DiskLoc(buff.getInt(4), buff.getInt(8));
+        nextExtent      = new DiskLoc(buff.getInt(12), buff.getInt(16));
+        prevExtent      = new DiskLoc(buff.getInt(20), buff.getInt(24));
+        length          = buff.getInt(28 + 128);
+        firstRecord     = new DiskLoc(buff.getInt(32 + 128), buff.getInt(36 + 128));
+        lastRecord      = new DiskLoc(buff.getInt(40 + 128), buff.getInt(44 + 128));
+    }
+
+    private static ByteBuffer readHeader(Namespace namespace, DiskLoc loc) {
+        if (MappedFiles.isLocal(namespace.fileSystem))
+            return MappedFiles.slice(namespace.fileSystem, namespace.getPath(loc.getFileNum()), loc.getOffset(),
+                    HEADER_SIZE);
+
+        byte[] bytes = new byte[HEADER_SIZE];
         try {
-            stream.seek(loc.getOffset());
-            stream.read(buff);
+            namespace.getStream(loc.getFileNum()).readFully(loc.getOffset(), bytes);
         }
         catch(IOException e) {
             throw new RuntimeException("Failed to read extent", e);
         }
 
-        String start = new String(buff, 0, 4);
-        if (!start.equals(MAGIC_NUM))
-            throw new RuntimeException("Did not find expected extent magic number");
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
 
-        myLoc           = new DiskLoc(JobUtil.readInt(buff, 4), JobUtil.readInt(buff, 8));
-        nextExtent      = new DiskLoc(JobUtil.readInt(buff, 12), JobUtil.readInt(buff, 16));
-        prevExtent      = new DiskLoc(JobUtil.readInt(buff, 20), JobUtil.readInt(buff, 24));
-        length          = JobUtil.readInt(buff, 28 + 128);
-        firstRecord     = new DiskLoc(JobUtil.readInt(buff, 32 + 128), JobUtil.readInt(buff, 36 + 128));
-        lastRecord      = new DiskLoc(JobUtil.readInt(buff, 40 + 128), JobUtil.readInt(buff, 44 + 128));
+    /**
+     * @param buff Little endian buffer holding what may be an extent header at position 0.
+     * @param loc DiskLoc the header was read from.
+     * @return True if this is the header of an extent at that location.
+     */
+    static boolean isHeader(ByteBuffer buff, DiskLoc loc) {
+        for (int i = 0; i < 4; i++) {
+            if (buff.get(i) != MAGIC_NUM.charAt(i))
+                return false;
+        }
+        return buff.getInt(4) == loc.getFileNum() && buff.getInt(8) == loc.getOffset();
+    }
 
-        if (!loc.equals(myLoc))
-            throw new RuntimeException("Extent " + loc.toString() + " could not be found. " + myLoc.toString());
+    /**
+     * @param buff Little endian buffer holding an extent header at position 0.
+     * @return Full name of the collection the extent belongs to, as recorded in the header.
+     */
+    static String headerNamespace(ByteBuffer buff) {
+        int length = 0;
+        while (length < 128 && buff.get(28 + length) != 0)
+            length++;
+        return RawBSON.string(buff, 28, length);
     }
 
     public Extent() {}
@@ -106,6 +148,20 @@ public class Extent implements Writable {
         return path;
     }
 
+    /**
+     * Point this extent at another copy of its data file, such as when it was read from a PackedMongoFile.
+     */
+    void setPath(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * @return Full name of the collection holding this extent, as dbname.collectionname.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
     public boolean hasNextExtent() {
         return nextExtent.getFileNum() > 0;
     }
@@ -118,6 +174,10 @@ public class Extent implements Writable {
         return myLoc.getOffset();
     }
 
+    public int getFileNum() {
+        return myLoc.getFileNum();
+    }
+
     public Record getFirstRecord(FileSystem fs) {
         if (firstRecord.getFileNum() < 0 || firstRecord.getOffset() < 0)
             return null;
@@ -153,13 +213,270 @@ public class Extent implements Writable {
         return length;
     }
 
+    /**
+     * Get the Record buffer as a ByteBuffer. On the local filesystem this is a slice of the memory mapped file,
+     * so nothing is copied onto the heap, otherwise it wraps getBuffer().
+     * @param fs Filesystem with which to load the Record buffer.
+     * @return Little endian ByteBuffer of the Record buffer.
+     */
+    public ByteBuffer getData(FileSystem fs) {
+        if (data == null)
+            data = getData(fs, 0, length);
+        return data;
+    }
+
+    /**
+     * Get part of the Record buffer as a ByteBuffer, memory mapped on the local filesystem.
+     * @param fs Filesystem with which to load the bytes.
+     * @param start Offset within the extent of the first byte to return.
+     * @param end Offset within the extent after the last byte to return.
+     * @return Little endian ByteBuffer whose position 0 is at start in the extent.
+     */
+    public ByteBuffer getData(FileSystem fs, int start, int end) {
+        if (MappedFiles.isLocal(fs))
+            return MappedFiles.slice(fs, path, myLoc.getOffset() + start, end - start);
+
+        byte[] buff = start == 0 && end == length ? getBuffer(fs) : getBuffer(fs, start, end);
+        return ByteBuffer.wrap(buff).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Drop the cached Record buffer once we are done reading this extent.
+     */
+    public void releaseBuffer() {
+        cache = null;
+        data = null;
+    }
+
+    /**
+     * Read part of this extent, rather than the whole Record buffer.
+     * @param fs Filesystem with which to load the bytes.
+     * @param start Offset within the extent of the first byte to read.
+     * @param end Offset within the extent after the last byte to read.
+     * @return Byte array holding the bytes of the extent from start to end.
+     */
+    public byte[] getBuffer(FileSystem fs, int start, int end) {
+        if (cache != null && start == 0 && end == length)
+            return cache;
+
+        byte[] buff = new byte[end - start];
+
+        try {
+            FSDataInputStream stream = fs.open(path);
+            stream.seek(myLoc.getOffset() + start);
+            stream.readFully(buff);
+            stream.close();
+        } catch (Exception e) {
+            throw new RuntimeException("Could not get extent buffer", e);
+        }
+
+        return buff;
+    }
+
+    /**
+     * Records in an extent are laid out back to back with deleted records, so a large extent can be cut up on any
+     * Record boundary and each piece walked by Record length. We find those boundaries by searching near each
+     * multiple of splitSize for a header whose neighbours in the Record linked list point back at it, which only
+     * requires reading headers rather than the whole extent.
+     * @param fs Filesystem with which to read the Record headers.
+     * @param splitSize Approximate number of bytes between split points.
+     * @return Offsets within the extent at which each piece starts, followed by the extent length.
+     */
+    public List<Integer> getSplitPoints(FileSystem fs, long splitSize) {
+        List<Integer> points = new ArrayList<Integer>();
+        points.add(HEADER_SIZE);
+
+        FSDataInputStream stream = null;
+        try {
+            stream = fs.open(path);
+
+            for (long target = HEADER_SIZE + splitSize; target < length; target += splitSize) {
+                int point = findRecordBoundary(stream, (int) target);
+                if (point >= length)
+                    break;
+                if (point > points.get(points.size() - 1))
+                    points.add(point);
+            }
+
+            stream.close();
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not find split points in " + toString(), e);
+        }
+
+        points.add(length);
+        return points;
+    }
+
+    private static final int SEARCH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Find the first live Record at or after the given offset.
+     * @return Offset of the Record within the extent, or the extent length if there isn't one.
+     */
+    private int findRecordBoundary(FSDataInputStream stream, int from) throws IOException {
+        byte[] buff = new byte[SEARCH_BUFFER_SIZE];
+
+        // allocations are rounded to 4 bytes, so Records always start on a multiple of 4
+        int start = (from + 3) & ~3;
+
+        while (start < length) {
+            int size = Math.min(buff.length, length - start);
+            stream.readFully(myLoc.getOffset() + start, buff, 0, size);
+
+            for (int i = 0; i + Record.HEADER_SIZE + 4 <= size; i += 4)
+                if (isLinkedRecord(stream, buff, i, start + i))
+                    return start + i;
+
+            if (start + size >= length)
+                break;
+
+            // overlap the next read so we don't miss a header that straddles the end of this one
+            start += (size - Record.HEADER_SIZE - 4) & ~3;
+        }
+
+        return length;
+    }
+
+    private boolean isLinkedRecord(FSDataInputStream stream, byte[] buff, int i, int off) throws IOException {
+        int fileOffset = myLoc.getOffset() + off;
+        int recordLength = JobUtil.readInt(buff, i);
+
+        if (recordLength <= Record.HEADER_SIZE || off + recordLength > length)
+            return false;
+        if (JobUtil.readInt(buff, i + 4) != myLoc.getOffset())
+            return false;
+
+        int next = JobUtil.readInt(buff, i + 8);
+        int prev = JobUtil.readInt(buff, i + 12);
+        byte[] header = new byte[Record.HEADER_SIZE];
+
+        if (next == -1) {
+            if (lastRecord.getOffset() != fileOffset)
+                return false;
+        }
+        else {
+            if (next <= myLoc.getOffset() || next + Record.HEADER_SIZE > myLoc.getOffset() + length)
+                return false;
+            stream.readFully(next, header);
+            if (JobUtil.readInt(header, 12) != fileOffset)
+                return false;
+        }
+
+        if (prev == -1)
+            return firstRecord.getOffset() == fileOffset;
+
+        if (prev <= myLoc.getOffset() || prev + Record.HEADER_SIZE > myLoc.getOffset() + length)
+            return false;
+        stream.readFully(prev, header);
+        return JobUtil.readInt(header, 8) == fileOffset;
+    }
+
     public Iterator<Record> iterator(final FileSystem fs) {
+        return iterator(fs, false);
+    }
+
+    /**
+     * Iterate over the Records in this extent by following the Record linked list.
+     * @param fs Filesystem with which to load the Records.
+     * @param reuse If true, the same Record object is returned each time, pointed at the next Record, so each
+     *              Record must be used before hasNext() is called again.
+     * @return Iterator over the Records in this extent.
+     */
+    public Iterator<Record> iterator(final FileSystem fs, final boolean reuse) {
         return new Iterator<Record>() {
-            Record current = getFirstRecord(fs);
+            int next = firstRecord.getFileNum() < 0 || firstRecord.getOffset() < 0 ? -1 :
+                    firstRecord.getOffset() - myLoc.getOffset();
+            Record record = null;
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public Record next() {
+                if (!hasNext())
+                    return null;
+
+                if (reuse && record != null)
+                    record.set(Extent.this, getData(fs), 0, next);
+                else
+                    record = new Record(Extent.this, next, fs);
+
+                next = record.getNextOffset();
+                return record;
+            }
+
+            @Override
+            public void remove() {
+                throw new RuntimeException("Tried to remove record");
+            }
+        };
+    }
+
+    public Iterator<Record> iterator(final FileSystem fs, final int start, final int end) {
+        return iterator(fs, start, end, false, null);
+    }
+
+    /**
+     * Iterate over the Records in part of this extent, which must start and end on Record boundaries such as
+     * those returned by getSplitPoints(). Only that part of the extent is read, and Records are visited in the
+     * order they appear on disk rather than following the Record linked list.
+     * @param fs Filesystem with which to load the Records.
+     * @param start Offset within the extent of the first Record.
+     * @param end Offset within the extent after the last Record.
+     * @param reuse If true, the same Record object is returned each time, pointed at the next Record, so each
+     *              Record must be used before hasNext() is called again.
+     * @param deleted Deleted records of the collection, used to skip freed space. If null, freed space is told
+     *                apart from Records by Record.isLive().
+     * @return Iterator over the live Records in that range.
+     */
+    public Iterator<Record> iterator(final FileSystem fs, final int start, final int end, final boolean reuse,
+                                     final DeletedRecords deleted) {
+        return iterator(getData(fs, start, end), start, end, reuse, deleted);
+    }
+
+    /**
+     * Iterate over the Records in part of this extent which has already been loaded, such as a chunk decompressed
+     * from a PackedMongoFile, in the order they appear in the buffer.
+     * @param buff Little endian buffer whose position 0 is at start in the extent.
+     * @param start Offset within the extent of the first Record.
+     * @param end Offset within the extent after the last Record.
+     * @param reuse If true, the same Record object is returned each time.
+     * @param deleted Deleted records of the collection, or null to tell them apart with Record.isLive().
+     * @return Iterator over the live Records in that range.
+     */
+    Iterator<Record> iterator(final ByteBuffer buff, final int start, final int end, final boolean reuse,
+                              final DeletedRecords deleted) {
+        return new Iterator<Record>() {
+            int position = start;
+            Record record = null;
+            boolean ready = false;
+
+            private boolean advance() {
+                while (position < end) {
+                    if (reuse && record != null)
+                        record.set(Extent.this, buff, start, position);
+                    else
+                        record = new Record(Extent.this, buff, start, position);
+
+                    if (record.getLength() <= 0)
+                        throw new RuntimeException("Found invalid record length at " + record.toString());
+
+                    position += record.getLength();
+                    if (deleted == null ? record.isLive() : !deleted.contains(record.getDiskLoc()))
+                        return true;
+                }
+
+                return false;
+            }
 
             @Override
             public boolean hasNext() {
-                return current != null;
+                if (!ready)
+                    ready = advance();
+                return ready;
             }
 
             @Override
@@ -167,9 +484,8 @@ public class Extent implements Writable {
                 if (!hasNext())
                     return null;
 
-                Record temp = current;
-                current = current.getNextRecord(fs);
-                return temp;
+                ready = false;
+                return record;
             }
 
             @Override
@@ -185,6 +501,7 @@ public class Extent implements Writable {
             throw new RuntimeException("Could not write path");
 
         JobUtil.writeString(path.toString(), dataOutput);
+        JobUtil.writeString(namespace == null ? "" : namespace, dataOutput);
 
         if (myLoc == null || prevExtent == null || nextExtent == null ||
                 firstRecord == null || lastRecord == null)
@@ -202,6 +519,7 @@ public class Extent implements Writable {
     @Override
     public void readFields(DataInput dataInput) throws IOException {
         path = new Path(JobUtil.readString(dataInput));
+        namespace = JobUtil.readString(dataInput);
 
         myLoc = new DiskLoc(0, 0);
         myLoc.readFields(dataInput);
@@ -0,0 +1,268 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.JobUtil;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This finds the extents of a collection by reading every data file of the database in parallel, rather than
+ * following the extent linked list one seek at a time. Extents tile each data file from the end of its header,
+ * so each file is walked from one extent header to the next by length, with one thread and one stream per file.
+ * Where a header doesn't check out, the walk resynchronizes by scanning forward for the next extent magic number.
+ *
+ * The linked list from the .ns file still decides which extents belong to the collection and in what order, but
+ * it is then followed through the headers already in memory. Extents missing from the scan are read directly,
+ * and extents which claim the collection but aren't on the list are logged and left out.
+ */
+class ExtentScanner {
+    static final Logger logger = LoggerFactory.getLogger(ExtentScanner.class);
+
+    static final int FILE_HEADER_SIZE = 8192;
+    private static final int SCAN_WINDOW = 1024 * 1024;
+
+    private List<Namespace> namespaces;
+    private Map<String, Namespace> byName = new HashMap<String, Namespace>();
+    // data files are read through the streams of the first namespace, since they are shared by the database
+    private Namespace files;
+    private int threads;
+
+    /**
+     * @param namespace Namespace of the collection to find.
+     * @param threads Number of data files to read at once.
+     */
+    public ExtentScanner(Namespace namespace, int threads) {
+        this(Collections.singletonList(namespace), threads);
+    }
+
+    /**
+     * Find the extents of several collections of the same database while reading the data files once.
+     * @param namespaces Namespaces of the collections to find.
+     * @param threads Number of data files to read at once.
+     */
+    public ExtentScanner(List<Namespace> namespaces, int threads) {
+        this.namespaces = namespaces;
+        this.files = namespaces.get(0);
+        this.threads = threads;
+
+        for (Namespace namespace : namespaces)
+            byName.put(namespace.name, namespace);
+    }
+
+    /**
+     * @return Extents of each collection in the order the namespaces were given, and within each collection in the
+     * order of the extent linked list.
+     */
+    public List<Extent> getExtents() {
+        List<Integer> fileNums = new ArrayList<Integer>();
+        try {
+            for (int fileNum = 0; files.fileSystem.exists(files.getPath(fileNum)); fileNum++)
+                fileNums.add(fileNum);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not list data files of " + files.name, e);
+        }
+
+        Map<Long, Extent> scanned = scan(fileNums);
+        logger.info("Found " + scanned.size() + " extents of " + namespaces.size() + " collections in " +
+                fileNums.size() + " data files");
+
+        List<Extent> extents = new ArrayList<Extent>();
+        for (Namespace namespace : namespaces)
+            extents.addAll(followList(namespace, scanned));
+
+        if (!scanned.isEmpty())
+            logger.warn(scanned.size() + " extents are not on the extent list of the collection they claim, " +
+                    "skipping them");
+
+        return extents;
+    }
+
+    /**
+     * Follow the extent list of one collection through the extents found by scanning, removing them as they are
+     * used.
+     */
+    private List<Extent> followList(Namespace namespace, Map<Long, Extent> scanned) {
+        List<Extent> extents = new ArrayList<Extent>();
+        Set<Long> visited = new HashSet<Long>();
+        int missing = 0;
+
+        for (DiskLoc loc = namespace.firstExtent; loc.getFileNum() >= 0; ) {
+            long key = key(loc);
+            if (!visited.add(key))
+                throw new RuntimeException("Extent list of " + namespace.name + " loops at " + loc.toString());
+
+            Extent extent = scanned.get(key);
+            if (extent != null && extent.getNamespace().equals(namespace.name)) {
+                scanned.remove(key);
+            }
+            else {
+                extent = new Extent(namespace, loc);
+                missing++;
+            }
+
+            extents.add(extent);
+            loc = extent.getNextExtent();
+        }
+
+        if (missing > 0)
+            logger.warn(missing + " extents of " + namespace.name + " were not found by scanning the data files");
+
+        return extents;
+    }
+
+    private Map<Long, Extent> scan(List<Integer> fileNums) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, fileNums.size())));
+        Map<Long, Extent> scanned = new HashMap<Long, Extent>();
+
+        try {
+            List<Future<List<Extent>>> results = new ArrayList<Future<List<Extent>>>();
+            for (final int fileNum : fileNums) {
+                results.add(executor.submit(new Callable<List<Extent>>() {
+                    @Override
+                    public List<Extent> call() throws Exception {
+                        return scanFile(fileNum);
+                    }
+                }));
+            }
+
+            for (Future<List<Extent>> result : results) {
+                for (Extent extent : result.get())
+                    scanned.put(((long) extent.getFileNum() << 32) | extent.getOffset(), extent);
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted scanning data files of " + files.name, e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("Could not scan data files of " + files.name, e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        return scanned;
+    }
+
+    /**
+     * Walk the extents of one data file, keeping those which belong to our collections.
+     */
+    private List<Extent> scanFile(int fileNum) throws IOException {
+        FSDataInputStream stream = files.getStream(fileNum);
+        long fileLength = files.fileSystem.getFileStatus(files.getPath(fileNum)).getLen();
+        List<Extent> extents = new ArrayList<Extent>();
+
+        // space after the unused DiskLoc in the file header hasn't been given to any extent yet
+        byte[] fileHeader = new byte[24];
+        stream.readFully(0, fileHeader);
+        long end = JobUtil.readInt(fileHeader, 16);
+        if (JobUtil.readInt(fileHeader, 12) != fileNum || end < FILE_HEADER_SIZE || end > fileLength)
+            end = fileLength;
+
+        byte[] header = new byte[Extent.HEADER_SIZE];
+        ByteBuffer buff = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        long position = FILE_HEADER_SIZE;
+
+        while (position + Extent.HEADER_SIZE <= end) {
+            DiskLoc loc = new DiskLoc(fileNum, (int) position);
+            stream.readFully(position, header);
+            int length = buff.getInt(28 + 128);
+
+            if (Extent.isHeader(buff, loc) && length >= Extent.HEADER_SIZE && position + length <= end) {
+                Namespace namespace = byName.get(Extent.headerNamespace(buff));
+                if (namespace != null)
+                    extents.add(new Extent(namespace, loc, ByteBuffer.wrap(header.clone())
+                            .order(ByteOrder.LITTLE_ENDIAN)));
+                position += length;
+            }
+            else {
+                logger.warn("No valid extent header at " + loc.toString() + " of " + files.name +
+                        ", scanning for the next one");
+                position = findHeader(stream, fileNum, position + 4, end);
+            }
+        }
+
+        return extents;
+    }
+
+    /**
+     * Scan forward for the next extent header, which starts with the magic number and its own DiskLoc.
+     * @return Offset of the header, or end if there is none.
+     */
+    private long findHeader(FSDataInputStream stream, int fileNum, long from, long end) throws IOException {
+        byte[] window = new byte[SCAN_WINDOW];
+        ByteBuffer buff = ByteBuffer.wrap(window).order(ByteOrder.LITTLE_ENDIAN);
+        // extents are 4 byte aligned
+        long position = (from + 3) & ~3L;
+
+        while (position + 12 <= end) {
+            int length = (int) Math.min(window.length, end - position);
+            stream.readFully(position, window, 0, length);
+
+            for (int i = 0; i + 12 <= length; i += 4) {
+                if (window[i] == 'D' && window[i + 1] == 'C' && window[i + 2] == 'B' && window[i + 3] == 'A' &&
+                        buff.getInt(i + 4) == fileNum && buff.getInt(i + 8) == position + i)
+                    return position + i;
+            }
+
+            // windows overlap so a header split between two is still seen
+            position += length - 8;
+            if (length < window.length)
+                break;
+        }
+
+        return end;
+    }
+
+    private static long key(DiskLoc loc) {
+        return ((long) loc.getFileNum() << 32) | loc.getOffset();
+    }
+}
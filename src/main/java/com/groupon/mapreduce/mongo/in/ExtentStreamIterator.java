@@ -0,0 +1,258 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * This iterates over the Records in part of an Extent by streaming it through a fixed size buffer, rather than
+ * loading the whole extent into memory. Records are visited in the order they appear on disk, stepping over
+ * deleted records by their length, so the stream only ever moves forward. The buffer only grows when a single
+ * Record is larger than it, so memory use depends on the buffer size and the largest document, not the size of
+ * the extent.
+ *
+ * Given a list of Record offsets, such as those an index range matched, it visits only those Records, seeking
+ * over the gaps between them that don't fit in the buffer.
+ *
+ * Each Record returned points into the buffer, so it must be used before hasNext() is called again.
+ */
+class ExtentStreamIterator implements Iterator<Record>, Closeable {
+    private Extent extent;
+    private FSDataInputStream stream;
+    private int end;
+
+    private byte[] buffer;
+    private ByteBuffer wrapped;
+    private int base;       // offset within the extent of the first byte in buffer
+    private int filled = 0; // number of bytes read into buffer, the stream is always at base + filled
+
+    private int position;   // offset within the extent of the next Record to look at
+    private Record current = null;
+    private boolean reuse = false;
+    private DeletedRecords deleted = null;
+    private Record record = null;
+    private int[] records = null;
+    private int nextRecord = 0;
+
+    /**
+     * @param extent Extent to read.
+     * @param fs Filesystem with which to open the extent's file.
+     * @param start Offset within the extent of the first Record.
+     * @param end Offset within the extent after the last Record.
+     * @param bufferSize Number of bytes to read into memory at a time.
+     */
+    public ExtentStreamIterator(Extent extent, FileSystem fs, int start, int end, int bufferSize) {
+        this(extent, fs, start, end, bufferSize, false, null);
+    }
+
+    /**
+     * @param extent Extent to read.
+     * @param fs Filesystem with which to open the extent's file.
+     * @param start Offset within the extent of the first Record.
+     * @param end Offset within the extent after the last Record.
+     * @param bufferSize Number of bytes to read into memory at a time.
+     * @param reuse If true, the same Record object is returned each time, pointed at the next Record.
+     * @param deleted Deleted records of the collection, or null to tell them apart with Record.isLive().
+     */
+    public ExtentStreamIterator(Extent extent, FileSystem fs, int start, int end, int bufferSize, boolean reuse,
+                                DeletedRecords deleted) {
+        this.reuse = reuse;
+        this.deleted = deleted;
+        this.extent = extent;
+        this.end = end;
+        this.base = start;
+        this.position = start;
+        this.buffer = new byte[bufferSize];
+        this.wrapped = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            stream = fs.open(extent.getPath());
+            stream.seek(extent.getOffset() + start);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not open extent " + extent.toString(), e);
+        }
+    }
+
+    /**
+     * @param extent Extent to read.
+     * @param fs Filesystem with which to open the extent's file.
+     * @param records Offsets within the extent of the Records to read, in increasing order.
+     * @param end Offset within the extent after the last Record.
+     * @param bufferSize Number of bytes to read into memory at a time.
+     * @param reuse If true, the same Record object is returned each time, pointed at the next Record.
+     */
+    public ExtentStreamIterator(Extent extent, FileSystem fs, int[] records, int end, int bufferSize, boolean reuse) {
+        this(extent, fs, records[0], end, bufferSize, reuse, null);
+        this.records = records;
+    }
+
+    /**
+     * Make sure the given range of the extent is in the buffer, moving the bytes we still need to the front of
+     * the buffer and reading as much as will fit after them.
+     */
+    private void fill(int off, int length) throws IOException {
+        if (off + length <= base + filled)
+            return;
+
+        if (off >= base + filled) {
+            // nothing in the buffer is needed any more, so skip the stream ahead
+            if (off > base + filled)
+                stream.seek(extent.getOffset() + off);
+            base = off;
+            filled = 0;
+        }
+        else {
+            filled = base + filled - off;
+            System.arraycopy(buffer, off - base, buffer, 0, filled);
+            base = off;
+        }
+
+        if (length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, length);
+            wrapped = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        int want = Math.min(buffer.length, end - base);
+        while (filled < want) {
+            int read = stream.read(buffer, filled, want - filled);
+            if (read < 0)
+                throw new EOFException("Reached end of file reading " + extent.toString());
+            filled += read;
+        }
+
+        if (off + length > base + filled)
+            throw new RuntimeException("Record at " + off + " runs past the end of " + extent.toString());
+    }
+
+    private Record advance() throws IOException {
+        if (records != null)
+            return advanceListed();
+
+        while (end - position >= Record.HEADER_SIZE + 4) {
+            fill(position, Record.HEADER_SIZE + 4);
+            point();
+
+            if (record.getLength() <= 0)
+                throw new RuntimeException("Found invalid record length at " + record.toString());
+
+            if (deleted == null ? record.isLive() : !deleted.contains(record.getDiskLoc())) {
+                fill(position, record.getLength());
+                point();
+                position += record.getLength();
+                return record;
+            }
+
+            position += record.getLength();
+        }
+
+        close();
+        return null;
+    }
+
+    private Record advanceListed() throws IOException {
+        while (nextRecord < records.length) {
+            position = records[nextRecord++];
+            fill(position, Record.HEADER_SIZE + 4);
+            point();
+
+            if (record.getLength() <= 0)
+                throw new RuntimeException("Found invalid record length at " + record.toString());
+
+            // an index should only point at live Records, but skip any that aren't rather than return garbage
+            if (record.isLive()) {
+                fill(position, record.getLength());
+                point();
+                return record;
+            }
+        }
+
+        close();
+        return null;
+    }
+
+    /**
+     * Point record at the Record at the current position, which must be in the buffer.
+     */
+    private void point() {
+        if (reuse && record != null)
+            record.set(extent, wrapped, base, position);
+        else
+            record = new Record(extent, wrapped, base, position);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (current == null && stream != null) {
+            try {
+                current = advance();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not read extent " + extent.toString(), e);
+            }
+        }
+
+        return current != null;
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext())
+            return null;
+
+        Record temp = current;
+        current = null;
+        return temp;
+    }
+
+    @Override
+    public void remove() {
+        throw new RuntimeException("Tried to remove record");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stream != null)
+            stream.close();
+        stream = null;
+    }
+}
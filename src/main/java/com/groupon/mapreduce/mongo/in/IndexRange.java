@@ -0,0 +1,227 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.RawBSON;
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A range of values of one indexed field, given as a Mongo style query on that field such as
+ * {ts: {$gte: {$date: "2013-06-01T00:00:00Z"}, $lt: {$date: "2013-06-02T00:00:00Z"}}} or {status: "active"}.
+ * This supports $eq, $gt, $gte, $lt and $lte. Values are ordered as Mongo orders index keys, so numbers of any
+ * type compare by value, and values of different types compare by their canonical type, unlike in a Query.
+ */
+class IndexRange {
+    private String field;
+    private Object lower = null;
+    private boolean lowerInclusive = true;
+    private Object upper = null;
+    private boolean upperInclusive = true;
+    private boolean hasLower = false;
+    private boolean hasUpper = false;
+
+    /**
+     * @param range Range as JSON, with a single field.
+     */
+    public IndexRange(String range) {
+        BSONObject query = (BSONObject) JSON.parse(range);
+        if (query.keySet().size() != 1)
+            throw new RuntimeException("An index range needs exactly one field, found " + range);
+
+        field = query.keySet().iterator().next();
+        Object value = query.get(field);
+
+        if (!isOperators(value)) {
+            setLower(value, true);
+            setUpper(value, true);
+            return;
+        }
+
+        BSONObject operators = (BSONObject) value;
+        for (String operator : operators.keySet()) {
+            Object bound = operators.get(operator);
+
+            if (operator.equals("$eq")) {
+                setLower(bound, true);
+                setUpper(bound, true);
+            }
+            else if (operator.equals("$gt") || operator.equals("$gte"))
+                setLower(bound, operator.equals("$gte"));
+            else if (operator.equals("$lt") || operator.equals("$lte"))
+                setUpper(bound, operator.equals("$lte"));
+            else
+                throw new RuntimeException("Index range operator " + operator + " is not supported");
+        }
+    }
+
+    private static boolean isOperators(Object value) {
+        if (!(value instanceof BSONObject) || value instanceof List || ((BSONObject) value).keySet().isEmpty())
+            return false;
+        return ((BSONObject) value).keySet().iterator().next().startsWith("$");
+    }
+
+    private void setLower(Object value, boolean inclusive) {
+        lower = value;
+        lowerInclusive = inclusive;
+        hasLower = true;
+    }
+
+    private void setUpper(Object value, boolean inclusive) {
+        upper = value;
+        upperInclusive = inclusive;
+        hasUpper = true;
+    }
+
+    /**
+     * @return Field the range is on.
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return True if the value sorts before the start of the range.
+     */
+    public boolean isBelow(Object value) {
+        if (!hasLower)
+            return false;
+        int cmp = compare(value, lower);
+        return cmp < 0 || (cmp == 0 && !lowerInclusive);
+    }
+
+    /**
+     * @return True if the value sorts after the end of the range.
+     */
+    public boolean isAbove(Object value) {
+        if (!hasUpper)
+            return false;
+        int cmp = compare(value, upper);
+        return cmp > 0 || (cmp == 0 && !upperInclusive);
+    }
+
+    @Override
+    public String toString() {
+        return "{IndexRange " + field + " " + (hasLower ? (lowerInclusive ? "[" : "(") + lower : "(") + ", " +
+                (hasUpper ? upper + (upperInclusive ? "]" : ")") : ")") + "}";
+    }
+
+    /**
+     * Mongo's canonical type order, which orders values of different types in an index.
+     */
+    static int canonicalType(Object value) {
+        if (value instanceof MinKey)
+            return -1;
+        if (value == null)
+            return 5;
+        if (value instanceof Number)
+            return 10;
+        if (value instanceof String)
+            return 15;
+        if (value instanceof List)
+            return 25;
+        if (value instanceof BSONObject)
+            return 20;
+        if (value instanceof Binary || value instanceof byte[])
+            return 30;
+        if (value instanceof ObjectId)
+            return 35;
+        if (value instanceof Boolean)
+            return 40;
+        if (value instanceof Date)
+            return 45;
+        if (value instanceof BSONTimestamp)
+            return 47;
+        if (value instanceof Pattern)
+            return 50;
+        if (value instanceof MaxKey)
+            return 127;
+        return 60;
+    }
+
+    /**
+     * Compare two values the way Mongo orders them in an index. Values of the same canonical type which have no
+     * natural order here, such as documents, compare by their JSON.
+     */
+    static int compare(Object a, Object b) {
+        int typeA = canonicalType(a);
+        int typeB = canonicalType(b);
+        if (typeA != typeB)
+            return typeA < typeB ? -1 : 1;
+
+        if (a instanceof Number) {
+            if ((a instanceof Integer || a instanceof Long) && (b instanceof Integer || b instanceof Long))
+                return compareLongs(((Number) a).longValue(), ((Number) b).longValue());
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if (a instanceof String)
+            return compareBytes(((String) a).getBytes(RawBSON.UTF8), ((String) b).getBytes(RawBSON.UTF8));
+        if (a instanceof ObjectId)
+            return compareBytes(((ObjectId) a).toByteArray(), ((ObjectId) b).toByteArray());
+        if (a instanceof Boolean)
+            return ((Boolean) a).compareTo((Boolean) b);
+        if (a instanceof Date)
+            return compareLongs(((Date) a).getTime(), ((Date) b).getTime());
+        if (a instanceof BSONTimestamp) {
+            BSONTimestamp x = (BSONTimestamp) a;
+            BSONTimestamp y = (BSONTimestamp) b;
+            return x.getTime() != y.getTime() ? compareLongs(x.getTime(), y.getTime()) :
+                    compareLongs(x.getInc(), y.getInc());
+        }
+        if (a == null || a instanceof MinKey || a instanceof MaxKey)
+            return 0;
+
+        return JSON.serialize(a).compareTo(JSON.serialize(b));
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i])
+                return (a[i] & 0xff) < (b[i] & 0xff) ? -1 : 1;
+        }
+        return compareLongs(a.length, b.length);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When Mongo files are on the local filesystem, such as a Mongo dbpath or an NFS mount of one, we memory map
+ * them rather than reading them through Hadoop streams into heap arrays. Extents and Records are then parsed
+ * straight out of the mapped files. Mongo files are never larger than 2GB, so each file fits in one mapping.
+ *
+ * Mappings are shared while any reader which called acquire is open, and a file is mapped again if its length or
+ * modification time has changed, so a long-lived JVM doesn't keep reading a file that was replaced. Once the last
+ * reader calls release the mappings are dropped, and unmapped when the buffers handed out are collected. Unmapping
+ * them sooner would crash a JVM which still held a Record pointing into one.
+ */
+class MappedFiles {
+    private static class Mapping {
+        final ByteBuffer buffer;
+        final long length;
+        final long modified;
+
+        Mapping(ByteBuffer buffer, long length, long modified) {
+            this.buffer = buffer;
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    private static final Map<String, Mapping> files = new HashMap<String, Mapping>();
+    // number of readers which called acquire and have yet to call release
+    private static int users = 0;
+
+    /**
+     * @param fs Filesystem holding Mongo files.
+     * @return True if files in this filesystem can be memory mapped.
+     */
+    public static boolean isLocal(FileSystem fs) {
+        return fs instanceof LocalFileSystem || fs instanceof RawLocalFileSystem;
+    }
+
+    /**
+     * Keep the mappings made from now on until release is called.
+     */
+    public static synchronized void acquire() {
+        users++;
+    }
+
+    /**
+     * Drop every mapping once no reader which called acquire is left.
+     */
+    public static synchronized void release() {
+        if (users > 0 && --users == 0)
+            files.clear();
+    }
+
+    /**
+     * Get part of a memory mapped file.
+     * @param fs Local filesystem holding the file.
+     * @param path Path of the file.
+     * @param offset Offset of the first byte to return.
+     * @param length Number of bytes to return.
+     * @return Little endian ByteBuffer whose position 0 is at offset in the file.
+     */
+    public static ByteBuffer slice(FileSystem fs, Path path, int offset, int length) {
+        ByteBuffer buffer = get(fs, path).duplicate();
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        return buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static synchronized ByteBuffer get(FileSystem fs, Path path) {
+        File file = toFile(fs, path);
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long modified = file.lastModified();
+
+        Mapping mapping = files.get(key);
+        if (mapping != null && mapping.length == length && mapping.modified == modified)
+            return mapping.buffer;
+
+        ByteBuffer buffer;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+            try {
+                // the mapping stays valid after the channel is closed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            }
+            finally {
+                raf.close();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not map file " + file.toString(), e);
+        }
+
+        files.put(key, new Mapping(buffer, length, modified));
+        return buffer;
+    }
+
+    private static File toFile(FileSystem fs, Path path) {
+        if (fs instanceof LocalFileSystem)
+            return ((LocalFileSystem) fs).pathToFile(path);
+        return ((RawLocalFileSystem) fs).pathToFile(path);
+    }
+}
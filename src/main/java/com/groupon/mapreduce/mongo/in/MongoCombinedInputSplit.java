@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.JobUtil;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This packs several MongoInputSplits into one InputSplit, so that a collection made up of thousands of small
+ * extents doesn't need a map task for each of them. The Records in each contained split are read in order.
+ * Locations are the hosts holding the most bytes of the contained splits.
+ */
+public class MongoCombinedInputSplit extends InputSplit implements Writable {
+    private List<MongoInputSplit> splits = new ArrayList<MongoInputSplit>();
+    private List<String> locations = new ArrayList<String>();
+
+    public MongoCombinedInputSplit(List<MongoInputSplit> splits) {
+        this.splits = splits;
+
+        final Map<String, Long> hostBytes = new HashMap<String, Long>();
+        for (MongoInputSplit split : splits) {
+            for (Map.Entry<String, Long> entry : split.getHostBytes().entrySet()) {
+                Long bytes = hostBytes.get(entry.getKey());
+                hostBytes.put(entry.getKey(), (bytes == null ? 0 : bytes) + entry.getValue());
+            }
+        }
+
+        locations.addAll(hostBytes.keySet());
+        Collections.sort(locations, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return hostBytes.get(b).compareTo(hostBytes.get(a));
+            }
+        });
+    }
+
+    public MongoCombinedInputSplit() {}
+
+    public List<MongoInputSplit> getSplits() {
+        return splits;
+    }
+
+    @Override
+    public long getLength() throws IOException, InterruptedException {
+        long length = 0;
+        for (MongoInputSplit split : splits)
+            length += split.getLength();
+        return length;
+    }
+
+    @Override
+    public String[] getLocations() throws IOException, InterruptedException {
+        return locations.toArray(new String[locations.size()]);
+    }
+
+    /**
+     * Serialize by writing the number of contained splits, each split, then the number of locations and each
+     * location.
+     * @param dataOutput
+     * @throws IOException
+     */
+    @Override
+    public void write(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(splits.size());
+        for (MongoInputSplit split : splits)
+            split.write(dataOutput);
+
+        dataOutput.writeInt(locations.size());
+        for (String location : locations)
+            JobUtil.writeString(location, dataOutput);
+    }
+
+    @Override
+    public void readFields(DataInput dataInput) throws IOException {
+        int length = dataInput.readInt();
+        splits = new ArrayList<MongoInputSplit>();
+        for (int i = 0; i < length; i++) {
+            MongoInputSplit split = new MongoInputSplit();
+            split.readFields(dataInput);
+            splits.add(split);
+        }
+
+        length = dataInput.readInt();
+        locations = new ArrayList<String>();
+        for (int i = 0; i < length; i++)
+            locations.add(JobUtil.readString(dataInput));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        MongoCombinedInputSplit that = (MongoCombinedInputSplit) o;
+        return this.splits.equals(that.splits) && this.locations.equals(that.locations);
+    }
+}
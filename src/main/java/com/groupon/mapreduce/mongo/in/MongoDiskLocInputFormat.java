@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.*;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This reads the same Records as MongoInputFormat, with the same options, but keys each one by its DiskLoc as a
+ * LongWritable rather than by its _id. The file number is in the high 32 bits and the offset within that file in
+ * the low 32 bits. This is much cheaper than extracting _id, and is still unique within a database, so it suits
+ * jobs which only count or filter Records.
+ */
+public class MongoDiskLocInputFormat extends InputFormat<LongWritable, WritableBSONObject> {
+    private MongoInputFormat inputFormat = new MongoInputFormat();
+
+    @Override
+    public List<InputSplit> getSplits(JobContext jobContext) throws IOException, InterruptedException {
+        return inputFormat.getSplits(jobContext);
+    }
+
+    @Override
+    public RecordReader<LongWritable, WritableBSONObject> createRecordReader(InputSplit inputSplit,
+                                                                             TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        MongoDiskLocRecordReader reader = new MongoDiskLocRecordReader();
+        reader.initialize(inputSplit, taskAttemptContext);
+        return reader;
+    }
+}
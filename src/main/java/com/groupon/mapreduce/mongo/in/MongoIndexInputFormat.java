@@ -0,0 +1,138 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This reads the keys of an index rather than the documents of a collection, using the same directories,
+ * database and collections as MongoInputFormat. Only the B-tree buckets in the extents of the index namespace,
+ * dbname.collectionname.$indexname, are read, which are usually a small part of the size of the collection, so
+ * jobs which only need indexed fields, such as finding the distinct values of a field or counting documents by
+ * an indexed status, read far less data than a full scan.
+ *
+ * There is one split per extent of the index, and one Record per key. The key returned to the Mapper is the
+ * index key as a WritableBSONObject, with a field for each field of the index, and the value is the DiskLoc of
+ * the document it points at, as with MongoDiskLocInputFormat. Keys come in the order of their buckets on disk, not
+ * in index order. A multikey index holds a key for each element of an indexed array, so the same DiskLoc may be
+ * returned several times.
+ *
+ * Only version 1 indexes, the default since Mongo 2.0, can be read.
+ */
+public class MongoIndexInputFormat extends InputFormat<WritableBSONObject, LongWritable> {
+    static final Logger logger = LoggerFactory.getLogger(MongoIndexInputFormat.class);
+
+    private static String indexName;
+
+    /**
+     * Set the index to read from each collection.
+     * @param indexName_ Name of the index, as found in system.indexes, such as "status_1" or "_id_".
+     */
+    public static void setIndexName(String indexName_) {
+        logger.info("MongoIndexInputFormat set indexName " + indexName_);
+        indexName = indexName_;
+    }
+
+    @Override
+    public List<InputSplit> getSplits(JobContext jobContext) throws IOException, InterruptedException {
+        if (indexName == null)
+            throw new RuntimeException("No index name set, call MongoIndexInputFormat.setIndexName()");
+
+        Configuration conf = jobContext.getConfiguration();
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+        Set<String> found = new HashSet<String>();
+
+        // collections are resolved here since the options of MongoInputFormat are only set in the job client
+        for (Path path : MongoInputFormat.findNamespaceFiles(conf)) {
+            FileSystem fs = path.getFileSystem(conf);
+            NamespaceIndex index = new NamespaceIndex(fs, path);
+
+            for (String name : MongoInputFormat.getNamespaceNames(index)) {
+                Namespace collection = index.getNamespace(name);
+                if (collection == null) {
+                    logger.info("Could not find namespace " + name + " in " + path.toString());
+                    continue;
+                }
+                found.add(name);
+
+                try {
+                    BtreeIndex btree = BtreeIndex.findByName(collection, indexName);
+                    if (btree == null)
+                        throw new RuntimeException("Could not find index " + indexName + " of " + name);
+                    btree.checkVersion();
+
+                    Namespace indexNamespace = index.getNamespace(btree.getIndexNamespace());
+                    if (indexNamespace == null)
+                        throw new RuntimeException("Could not find namespace " + btree.getIndexNamespace());
+
+                    int before = splits.size();
+                    for (Iterator<Extent> i = indexNamespace.extentIterator(); i.hasNext(); )
+                        splits.add(new MongoInputSplit(i.next(), fs));
+                    indexNamespace.close();
+
+                    logger.info("Found " + (splits.size() - before) + " extents of " + btree.getIndexNamespace() +
+                            " in " + path.toString());
+                }
+                finally {
+                    collection.close();
+                }
+            }
+        }
+
+        MongoInputFormat.checkNamespacesFound(found);
+        return splits;
+    }
+
+    @Override
+    public RecordReader<WritableBSONObject, LongWritable> createRecordReader(InputSplit inputSplit,
+                                                                             TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        MongoIndexRecordReader reader = new MongoIndexRecordReader();
+        reader.initialize(inputSplit, taskAttemptContext);
+        return reader;
+    }
+}
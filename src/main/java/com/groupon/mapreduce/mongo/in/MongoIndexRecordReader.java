@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bson.BasicBSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * This reads the keys in the B-tree buckets of an extent of an index namespace, as described in
+ * MongoIndexInputFormat. The fields of the index are found from its spec, through the namespace file next to the
+ * extent's data file. As each split is started, MongoInputFormat.SHARD is set in the configuration to the shard it
+ * was read from, and MongoInputFormat.NAMESPACE to the indexed collection.
+ */
+public class MongoIndexRecordReader extends RecordReader<WritableBSONObject, LongWritable> {
+    private FileSystem fs;
+    private MongoInputSplit split;
+    private Iterator<Record> buckets;
+    private List<String> fields;
+
+    private ByteBuffer bucket = null;
+    private int keys = 0;
+    private int position = 0;
+    private int bucketsRead = 0;
+    private int bucketCount;
+
+    private WritableBSONObject key = null;
+    private LongWritable value = new LongWritable();
+
+    // whether this reader holds on to the shared mappings of local files, see MappedFiles
+    private boolean mapping = false;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        Configuration conf = taskAttemptContext.getConfiguration();
+        split = (MongoInputSplit) inputSplit;
+        Extent extent = split.getExtent();
+        if (!mapping) {
+            MappedFiles.acquire();
+            mapping = true;
+        }
+        fs = extent.getPath().getFileSystem(conf);
+
+        // the index namespace is dbname.collectionname.$indexname
+        String namespace = extent.getNamespace();
+        int separator = namespace.indexOf(".$");
+        if (separator < 0)
+            throw new RuntimeException("Extent " + extent.toString() + " is not part of an index");
+        String collectionName = namespace.substring(0, separator);
+        String indexName = namespace.substring(separator + 2);
+
+        String fileName = extent.getPath().getName();
+        Path namespacePath = new Path(extent.getPath().getParent(),
+                fileName.substring(0, fileName.lastIndexOf('.')) + ".ns");
+        Namespace collection = new NamespaceIndex(fs, namespacePath).getNamespace(collectionName);
+        if (collection == null)
+            throw new RuntimeException("Could not find namespace " + collectionName + " in " + namespacePath);
+
+        try {
+            BtreeIndex index = BtreeIndex.findByName(collection, indexName);
+            if (index == null)
+                throw new RuntimeException("Could not find index " + indexName + " of " + collectionName);
+            index.checkVersion();
+            fields = index.getFields();
+        }
+        finally {
+            collection.close();
+        }
+
+        conf.set(MongoInputFormat.SHARD, split.getShard());
+        conf.set(MongoInputFormat.NAMESPACE, collectionName);
+
+        bucketCount = Math.max(1, extent.getLength() / (BtreeIndex.BUCKET_SIZE + Record.HEADER_SIZE));
+        buckets = extent.iterator(fs);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        while (true) {
+            while (bucket != null && position < keys) {
+                int i = position++;
+                if (!BtreeIndex.isUsed(bucket, i))
+                    continue;
+
+                List<Object> values = BtreeIndex.decodeKey(bucket, BtreeIndex.keyOffset(bucket, i));
+                BasicBSONObject object = new BasicBSONObject();
+                for (int j = 0; j < values.size() && j < fields.size(); j++)
+                    object.put(fields.get(j), values.get(j));
+
+                key = new WritableBSONObject(object);
+                value.set(BtreeIndex.recordLoc(bucket, i));
+                return true;
+            }
+
+            if (!buckets.hasNext()) {
+                bucket = null;
+                return false;
+            }
+
+            // offsets within a bucket are from the start of its Record's body
+            Record record = buckets.next();
+            ByteBuffer buffer = record.getBuffer().duplicate();
+            buffer.position(record.getBSONOffset());
+            bucket = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            keys = BtreeIndex.keyCount(bucket);
+            position = 0;
+            bucketsRead++;
+        }
+    }
+
+    @Override
+    public WritableBSONObject getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    @Override
+    public LongWritable getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        return Math.min(1.0f, (float) bucketsRead / bucketCount);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (split != null)
+            split.getExtent().releaseBuffer();
+        if (mapping) {
+            MappedFiles.release();
+            mapping = false;
+        }
+    }
+}
@@ -32,7 +32,12 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
+import com.groupon.mapreduce.mongo.Projection;
+import com.groupon.mapreduce.mongo.Query;
 import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
@@ -42,22 +47,70 @@ import org.slf4j.LoggerFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This InputFormat reads Records from files in the Mongo on-disk binary format. It requires the location
  * in the FileSystem of these files, and a Mongo DB/Collection to look for in this directory. It expects to
  * see dbname.ns and dbname.0, with more data in dbname.i, where i is an integer increasing from 0. Using
  * these files, it creates InputSplits with Mongo Extents.
+ *
+ * Options used when reading the splits are taken from the Hadoop configuration, and are all optional:
+ * - MongoInputFormat.STREAM_BUFFER_SIZE  - stream extents through a buffer of this many bytes rather than
+ *                                          loading whole extents into memory
+ * - MongoInputFormat.LAZY_VALUES         - return LazyWritableBSONObjects which decode only the fields that
+ *                                          are read
+ * - MongoInputFormat.PROJECTION          - only keep the fields selected by this projection, such as
+ *                                          {a: 1, "b.c": 1}
+ * - MongoInputFormat.QUERY               - only return Records matching this query, such as {a: {$gt: 5}}
+ * - MongoInputFormat.REUSE_OBJECTS       - reuse the same Record, key and value objects for every Record
+ * - MongoInputFormat.PHYSICAL_SCAN       - read Records in the order they are on disk, using the deleted record
+ *                                          lists of the collection to skip freed space
+ *
+ * A directory may hold a PackedMongoFile, dbname.packed, in place of dbname.ns and the data files, in which case
+ * there is one split per compressed chunk of it.
+ *
+ * While reading, MongoInputFormat.SHARD is set in the configuration to the name of the directory holding the
+ * current Record, so that a Mapper reading several shards at once can tell them apart, and
+ * MongoInputFormat.NAMESPACE to the dbname.collectionname it belongs to, for jobs reading several collections.
  */
 public class MongoInputFormat extends InputFormat<Text, WritableBSONObject> {
     static final Logger logger = LoggerFactory.getLogger(MongoInputFormat.class);
+
+    public static final String STREAM_BUFFER_SIZE = "mongoStreamBufferSize";
+    public static final String LAZY_VALUES = "mongoLazyValues";
+    public static final String PROJECTION = "mongoProjection";
+    public static final String QUERY = "mongoQuery";
+    public static final String REUSE_OBJECTS = "mongoReuseObjects";
+    public static final String PHYSICAL_SCAN = "mongoPhysicalScan";
+    public static final String SHARD = "mongoShard";
+    public static final String NAMESPACE = "mongoNamespace";
     
-    private static Path mongoDirectory;
+    private static List<Path> mongoDirectories;
     private static String database;
-    private static String collection;
+    private static List<String> collections;
+    private static boolean allCollections = false;
+    private static long maxSplitSize = 128 * 1024 * 1024;
+    private static long combineSplitSize = 0;
+    private static int plannerThreads = 8;
+    private static boolean splitPlanCache = false;
+    private static String indexRange = null;
 
     /**
      * Set the directory to search for Mongo files, which should be in one or more directories within the
@@ -65,8 +118,19 @@ public class MongoInputFormat extends InputFormat<Text, WritableBSONObject> {
      * @param path_ Path given to MongoInputFormat to search for extents
      */
     public static void setMongoDirectory(Path path_) {
-        logger.info("MongoInputFormat set mongoDirectory " + path_.toString());
-        mongoDirectory = path_;
+        setMongoDirectories(path_);
+    }
+
+    /**
+     * Set several directories to search for Mongo files, such as a snapshot of each shard of a sharded cluster,
+     * and read the collection from all of them in one job. Each path may be a glob, so "/mongo/*" reads every
+     * shard copied into its own directory under /mongo. Splits are planned from each directory's dbname.ns in
+     * parallel, and the Mapper can find which directory a Record came from in MongoInputFormat.SHARD.
+     * @param paths_ Paths or globs of directories holding dbname.ns.
+     */
+    public static void setMongoDirectories(Path... paths_) {
+        logger.info("MongoInputFormat set mongoDirectories " + Arrays.toString(paths_));
+        mongoDirectories = Arrays.asList(paths_);
     }
 
     /**
@@ -84,8 +148,161 @@ public class MongoInputFormat extends InputFormat<Text, WritableBSONObject> {
      * @param collection_ Name of the collection over which you want to Map
      */
     public static void setCollection(String collection_) {
-        logger.info("MongoInputFormat set collection " + collection_);
-        collection = collection_;
+        setCollections(collection_);
+    }
+
+    /**
+     * Read several collections of the database in one job, planning splits for all of them from one read of the
+     * namespace file and the data files. The Mapper can find the collection of the current Record in
+     * MongoInputFormat.NAMESPACE, for instance to route it to one of several MultipleOutputs.
+     * @param collections_ Names of the collections over which you want to Map.
+     */
+    public static void setCollections(String... collections_) {
+        logger.info("MongoInputFormat set collections " + Arrays.toString(collections_));
+        collections = Arrays.asList(collections_);
+        allCollections = false;
+    }
+
+    /**
+     * Read every collection of the database in one job, as with setCollections(). Indexes and system collections
+     * such as system.indexes are left out.
+     */
+    public static void setAllCollections() {
+        logger.info("MongoInputFormat set allCollections");
+        collections = null;
+        allCollections = true;
+    }
+
+    /**
+     * Extents larger than this are cut into several splits on Record boundaries, so that a few very large
+     * extents don't end up as straggling map tasks. Defaults to 128MB, pass 0 to always use one split per extent.
+     * @param maxSplitSize_ Maximum number of bytes of an extent to put in one split.
+     */
+    public static void setMaxSplitSize(long maxSplitSize_) {
+        logger.info("MongoInputFormat set maxSplitSize " + maxSplitSize_);
+        maxSplitSize = maxSplitSize_;
+    }
+
+    /**
+     * Pack several small extents into each InputSplit, up to roughly the given number of bytes, rather than
+     * creating a map task for every extent. Extents are grouped by the host holding most of their bytes, so the
+     * combined splits keep their locality. Defaults to 0, which disables combining.
+     * @param combineSplitSize_ Target number of bytes in each combined split.
+     */
+    public static void setCombineSplitSize(long combineSplitSize_) {
+        logger.info("MongoInputFormat set combineSplitSize " + combineSplitSize_);
+        combineSplitSize = combineSplitSize_;
+    }
+
+    /**
+     * Extents are found by reading the extent headers of every data file of the database, with this many files
+     * read at once, and then following the extent list from the namespace file through the headers found.
+     * Defaults to 8, pass 0 to follow the extent list on disk one extent at a time instead.
+     * @param plannerThreads_ Number of data files to read at once while planning splits.
+     */
+    public static void setPlannerThreads(int plannerThreads_) {
+        logger.info("MongoInputFormat set plannerThreads " + plannerThreads_);
+        plannerThreads = plannerThreads_;
+    }
+
+    /**
+     * Save the planned splits to a file next to dbname.ns, and load them in later jobs as long as the length and
+     * modification time of dbname.ns and every data file are unchanged. Useful when many jobs run over the same
+     * snapshot of a database, since planning reads the namespace file and every extent header. The directory
+     * needs to be writable for the plan to be saved. Defaults to false.
+     * @param splitPlanCache_ True to save and load planned splits.
+     */
+    public static void setSplitPlanCache(boolean splitPlanCache_) {
+        logger.info("MongoInputFormat set splitPlanCache " + splitPlanCache_);
+        splitPlanCache = splitPlanCache_;
+    }
+
+    /**
+     * Only read the Records whose value of an indexed field is in the given range. While planning splits, the
+     * B-tree of an index of each collection starting with that field is walked to find the DiskLocs of the
+     * matching Records, and each split then holds the Records of one extent which matched, read in the order they
+     * are on disk. Only buckets which can hold keys in the range are read, so a narrow range over a large
+     * collection reads a small part of it. Planning fails if a collection has no such index. Pass null to read
+     * whole collections, which is the default.
+     * @param indexRange_ Range as JSON, such as {ts: {$gte: 1370044800, $lt: 1370131200}}, see IndexRange.
+     */
+    public static void setIndexRange(String indexRange_) {
+        logger.info("MongoInputFormat set indexRange " + indexRange_);
+        // fail when configuring the job rather than while planning
+        if (indexRange_ != null)
+            new IndexRange(indexRange_);
+        indexRange = indexRange_;
+    }
+
+    /**
+     * Helper to configure Hadoop to stream each extent through a buffer of the given size, rather than loading
+     * whole extents into memory. Records are then read in the order they appear on disk rather than following the
+     * Record linked list, and a task needs about bufferSize plus the size of the largest document in memory.
+     * @param conf Configuration object in which to set the buffer size.
+     * @param bufferSize Number of bytes to read at a time, or 0 to load whole extents.
+     */
+    public static void setStreamBufferSize(Configuration conf, int bufferSize) {
+        conf.setInt(STREAM_BUFFER_SIZE, bufferSize);
+    }
+
+    /**
+     * Helper to configure Hadoop to return LazyWritableBSONObjects, which point at the Record in the extent
+     * buffer and only decode the fields the Mapper reads, rather than fully decoded WritableBSONObjects.
+     * @param conf Configuration object in which to set the option.
+     * @param lazy True to return LazyWritableBSONObjects.
+     */
+    public static void setLazyValues(Configuration conf, boolean lazy) {
+        conf.setBoolean(LAZY_VALUES, lazy);
+    }
+
+    /**
+     * Helper to configure Hadoop to only read the fields selected by a Mongo style projection. Fields which are
+     * dropped are skipped over in the Record without being decoded, and the key is taken from the projected _id,
+     * so it is empty if the projection excludes _id.
+     * @param conf Configuration object in which to set the projection.
+     * @param projection Projection as JSON, e.g. {a: 1, "b.c": 1}.
+     */
+    public static void setProjection(Configuration conf, String projection) {
+        // fail when configuring the job rather than in every task
+        new Projection(projection);
+        conf.set(PROJECTION, projection);
+    }
+
+    /**
+     * Helper to configure Hadoop to only return Records matching a Mongo style query. The query is evaluated on
+     * the raw Record, so Records which don't match are never copied or decoded. See Query for the operators
+     * supported. The MongoRecordReader.Counters counters show how many Records were scanned and returned.
+     * @param conf Configuration object in which to set the query.
+     * @param query Query as JSON, e.g. {a: {$gt: 5}, "b.c": {$in: ["x", "y"]}}.
+     */
+    public static void setQuery(Configuration conf, String query) {
+        // fail when configuring the job rather than in every task
+        new Query(query);
+        conf.set(QUERY, query);
+    }
+
+    /**
+     * Helper to configure Hadoop to reuse objects from one Record to the next, following the usual Hadoop
+     * convention that a key or value is only valid until the next call to nextKeyValue. The Record read from the
+     * extent and the value holder are then allocated once per task rather than once per Record, which takes most
+     * of the load off the garbage collector on scans of many small documents. The key is always reused.
+     * @param conf Configuration object in which to set the option.
+     * @param reuse True to reuse objects.
+     */
+    public static void setReuseObjects(Configuration conf, boolean reuse) {
+        conf.setBoolean(REUSE_OBJECTS, reuse);
+    }
+
+    /**
+     * Helper to configure Hadoop to read each extent in the order its Records are on disk, stepping from one
+     * Record to the next by length, rather than following the Record linked list. Freed space is recognized by
+     * walking the deleted record lists of the collection once per task, so a broken link can't hide the rest of an
+     * extent, and all I/O within an extent moves forward.
+     * @param conf Configuration object in which to set the option.
+     * @param physical True to scan extents physically.
+     */
+    public static void setPhysicalScan(Configuration conf, boolean physical) {
+        conf.setBoolean(PHYSICAL_SCAN, physical);
     }
 
     public MongoInputFormat() {
@@ -93,6 +310,72 @@ public class MongoInputFormat extends InputFormat<Text, WritableBSONObject> {
     }
 
     public List<MongoInputSplit> getSplitsFromFile(FileSystem fs, Path path) {
+        Set<String> found = new HashSet<String>();
+        List<MongoInputSplit> splits = getSplitsFromFile(fs, path, found);
+        checkNamespacesFound(found);
+        return splits;
+    }
+
+    /**
+     * Plan the splits of one directory, which may hold only some of the collections.
+     * @param found Names of the collections found in the directory are added to this.
+     */
+    private List<MongoInputSplit> getSplitsFromFile(FileSystem fs, Path path, Set<String> found) {
+        List<String> names = getNamespaceNames();
+
+        if (path.getName().endsWith(PackedMongoFile.EXTENSION)) {
+            // a packed file has no chunks for a collection it doesn't hold, or for an empty one
+            if (names != null)
+                found.addAll(names);
+            return getPackedSplits(fs, path, names);
+        }
+
+        if (!splitPlanCache)
+            return planSplits(fs, path, found);
+
+        SplitPlanCache cache = new SplitPlanCache(fs, path, allCollections ? null : collections, maxSplitSize,
+                indexRange);
+        List<MongoInputSplit> splits = cache.load();
+
+        // plans are only saved when every collection was found
+        if (splits != null) {
+            if (names != null)
+                found.addAll(names);
+            return splits;
+        }
+
+        Set<String> foundHere = new HashSet<String>();
+        splits = planSplits(fs, path, foundHere);
+        found.addAll(foundHere);
+        if (names == null || foundHere.containsAll(names))
+            cache.save(splits);
+
+        return splits;
+    }
+
+    /**
+     * Plan splits from the index of a PackedMongoFile, one per compressed chunk.
+     */
+    private List<MongoInputSplit> getPackedSplits(FileSystem fs, Path path, List<String> names) {
+        if (indexRange != null)
+            throw new RuntimeException("Can't read an index range from " + path.toString() +
+                    ", packed files don't keep indexes");
+
+        return PackedMongoFile.getSplits(fs, path, names);
+    }
+
+    private List<MongoInputSplit> planSplits(FileSystem fs, Path path, Set<String> found) {
+        // local files mapped to read extent headers and indexes are only kept while planning
+        MappedFiles.acquire();
+        try {
+            return findSplits(fs, path, found);
+        }
+        finally {
+            MappedFiles.release();
+        }
+    }
+
+    private List<MongoInputSplit> findSplits(FileSystem fs, Path path, Set<String> found) {
         logger.info("Getting Mongo splits from file " + path.toString());
 
         List<MongoInputSplit> splits = new ArrayList<MongoInputSplit>();
@@ -104,24 +387,322 @@ public class MongoInputFormat extends InputFormat<Text, WritableBSONObject> {
         catch(FileNotFoundException e) {
             throw new RuntimeException("MongoInputSplit failed to find splits", e);
         }
-        Namespace namespace = index.getNamespace(database + "." + collection);
+        List<Namespace> namespaces = getNamespaces(index, path);
+        for (Namespace namespace : namespaces)
+            found.add(namespace.name);
+        for (Namespace namespace : namespaces)
+            logger.info("Found " + namespace.getDetails().toString());
 
-        if (namespace == null)
-            throw new RuntimeException("Could not find namespace " + collection);
+        List<Extent> extents = new ArrayList<Extent>();
+        if (namespaces.isEmpty()) {
+            logger.info("No collections to read in " + path.toString());
+        }
+        else if (plannerThreads > 0) {
+            extents = new ExtentScanner(namespaces, plannerThreads).getExtents();
+        }
+        else {
+            for (Namespace namespace : namespaces) {
+                for (Iterator<Extent> i = namespace.extentIterator(); i.hasNext(); )
+                    extents.add(i.next());
+            }
+        }
+        // DiskLocs of the Records matched by the index range, by namespace
+        Map<String, long[]> matched = null;
+        try {
+            if (indexRange != null) {
+                matched = new HashMap<String, long[]>();
+                for (Namespace namespace : namespaces)
+                    matched.put(namespace.name, findRecords(namespace, new IndexRange(indexRange)));
+            }
+        }
+        finally {
+            for (Namespace namespace : namespaces)
+                namespace.close();
+        }
 
-        for (Iterator<Extent> i = namespace.extentIterator(); i.hasNext(); ) {
-            Extent extent = i.next();
-            logger.info("Found extent " + extent.getPath().toString() +
+        // block locations are fetched once per data file rather than once per split
+        Map<Path, BlockLocation[]> blockLocations = new HashMap<Path, BlockLocation[]>();
+
+        for (Extent extent : extents) {
+            logger.debug("Found extent " + extent.getPath().toString() +
                     " offset " + extent.getOffset());
-            splits.add(new MongoInputSplit(extent, fs));
+
+            BlockLocation[] blocks = blockLocations.get(extent.getPath());
+            if (blocks == null) {
+                try {
+                    FileStatus status = fs.getFileStatus(extent.getPath());
+                    blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Could not get block locations of " + extent.getPath().toString(), e);
+                }
+                blockLocations.put(extent.getPath(), blocks);
+            }
+
+            if (matched != null) {
+                int[] records = recordsIn(matched.get(extent.getNamespace()), extent);
+                int first = 0;
+                for (int j = 1; j <= records.length; j++) {
+                    // cut the matched Records into splits spanning at most maxSplitSize bytes of the extent
+                    if (j == records.length || (maxSplitSize > 0 && records[j] - records[first] >= maxSplitSize)) {
+                        // a split ends where the next begins, or else after its last Record
+                        int end = j < records.length ? records[j] : recordEnd(fs, extent, records[j - 1]);
+                        splits.add(new MongoInputSplit(extent, Arrays.copyOfRange(records, first, j), end, blocks));
+                        first = j;
+                    }
+                }
+                continue;
+            }
+
+            if (maxSplitSize <= 0 || extent.getLength() <= maxSplitSize) {
+                splits.add(new MongoInputSplit(extent, 0, extent.getLength(), blocks));
+                continue;
+            }
+
+            List<Integer> points = extent.getSplitPoints(fs, maxSplitSize);
+            logger.info("Splitting extent of length " + extent.getLength() + " into " + (points.size() - 1) +
+                    " splits");
+            for (int j = 1; j < points.size(); j++)
+                splits.add(new MongoInputSplit(extent, points.get(j - 1), points.get(j), blocks));
         }
 
+        logger.info("Found " + extents.size() + " extents in " + blockLocations.size() + " data files");
+        return splits;
+    }
+
+    /**
+     * Walk an index of the collection to find the Records in an index range.
+     * @return DiskLocs of the matching Records as (fileNum << 32) | offset, sorted and without duplicates, since a
+     * multikey index can hold several keys for one Record.
+     */
+    private static long[] findRecords(Namespace namespace, IndexRange range) {
+        BtreeIndex index = BtreeIndex.findByField(namespace, range.getField());
+        if (index == null)
+            throw new RuntimeException("Could not find an index of " + namespace.name + " on " + range.getField());
+
+        final List<Long> found = new ArrayList<Long>();
+        index.scan(range, new BtreeIndex.Visitor() {
+            @Override
+            public boolean visit(List<Object> key, long record) {
+                found.add(record);
+                return true;
+            }
+        });
+
+        long[] locs = new long[found.size()];
+        for (int i = 0; i < locs.length; i++)
+            locs[i] = found.get(i);
+        Arrays.sort(locs);
+
+        int length = 0;
+        for (int i = 0; i < locs.length; i++) {
+            if (length == 0 || locs[i] != locs[length - 1])
+                locs[length++] = locs[i];
+        }
+
+        logger.info("Index " + index.getIndexNamespace() + " matched " + length + " Records in " + range.toString());
+        return Arrays.copyOf(locs, length);
+    }
+
+    /**
+     * @return Offset within the extent just past the Record at the given offset, from the length in its header.
+     */
+    private static int recordEnd(FileSystem fs, Extent extent, int record) {
+        byte[] length = extent.getBuffer(fs, record, record + 4);
+        return record + ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    /**
+     * @param locs Sorted DiskLocs as (fileNum << 32) | offset.
+     * @return Offsets within the extent of the DiskLocs which fall inside it, in increasing order.
+     */
+    static int[] recordsIn(long[] locs, Extent extent) {
+        long first = ((long) extent.getFileNum() << 32) | extent.getOffset();
+        int from = Arrays.binarySearch(locs, first);
+        if (from < 0)
+            from = -from - 1;
+
+        int to = from;
+        while (to < locs.length && locs[to] < first + extent.getLength())
+            to++;
+
+        int[] records = new int[to - from];
+        for (int i = from; i < to; i++)
+            records[i - from] = (int) (locs[i] - first);
+        return records;
+    }
+
+    /**
+     * @return Names of the collections to read as dbname.collectionname, in the order they were given, or sorted
+     * by name when reading every collection.
+     */
+    static List<String> getNamespaceNames(NamespaceIndex index) {
+        if (allCollections) {
+            List<String> names = new ArrayList<String>();
+            for (String name : index.getNamespaceNames()) {
+                // index namespaces look like dbname.collectionname.$indexname
+                if (name.startsWith(database + ".") && !name.contains("$") &&
+                        !name.startsWith(database + ".system."))
+                    names.add(name);
+            }
+            return names;
+        }
+
+        return getNamespaceNames();
+    }
+
+    /**
+     * @return Names of the collections given as dbname.collectionname, or null when reading every collection.
+     */
+    static List<String> getNamespaceNames() {
+        if (allCollections)
+            return null;
+
+        List<String> names = new ArrayList<String>();
+        for (String collection : collections)
+            names.add(database + "." + collection);
+        return names;
+    }
+
+    /**
+     * Open the collections to read which are in one directory. Sharded directories need not all hold every
+     * collection, so missing ones are skipped here and checkNamespacesFound fails once every directory is seen.
+     */
+    private static List<Namespace> getNamespaces(NamespaceIndex index, Path path) {
+        List<Namespace> namespaces = new ArrayList<Namespace>();
+
+        for (String name : getNamespaceNames(index)) {
+            Namespace namespace = index.getNamespace(name);
+            if (namespace == null) {
+                logger.info("Could not find namespace " + name + " in " + path.toString());
+                continue;
+            }
+            namespaces.add(namespace);
+        }
+
+        return namespaces;
+    }
+
+    /**
+     * Fail if a collection which was asked for is in none of the Mongo directories.
+     * @param found Names of the collections found in any directory, as dbname.collectionname.
+     */
+    static void checkNamespacesFound(Set<String> found) {
+        List<String> names = getNamespaceNames();
+        if (names == null)
+            return;
+
+        for (String name : names) {
+            if (!found.contains(name))
+                throw new RuntimeException("Could not find namespace " + name + " in any Mongo directory");
+        }
+    }
+
+    /**
+     * Pack splits into MongoCombinedInputSplits of around combineSplitSize bytes. Each split is assigned to the
+     * host holding most of its bytes, and splits are only combined with others on the same host, in the order
+     * they were found.
+     * @param splits Splits to combine, generally one per extent.
+     * @param combineSplitSize Target number of bytes in each combined split.
+     * @return Combined splits.
+     */
+    public static List<MongoCombinedInputSplit> combineSplits(List<MongoInputSplit> splits, long combineSplitSize)
+            throws IOException, InterruptedException {
+        Map<String, List<MongoInputSplit>> byHost = new LinkedHashMap<String, List<MongoInputSplit>>();
+
+        for (MongoInputSplit split : splits) {
+            String host = "";
+            long most = -1;
+
+            for (Map.Entry<String, Long> entry : split.getHostBytes().entrySet()) {
+                if (entry.getValue() > most) {
+                    host = entry.getKey();
+                    most = entry.getValue();
+                }
+            }
+
+            if (!byHost.containsKey(host))
+                byHost.put(host, new ArrayList<MongoInputSplit>());
+            byHost.get(host).add(split);
+        }
+
+        List<MongoCombinedInputSplit> combined = new ArrayList<MongoCombinedInputSplit>();
+
+        for (List<MongoInputSplit> hostSplits : byHost.values()) {
+            List<MongoInputSplit> current = new ArrayList<MongoInputSplit>();
+            long length = 0;
+
+            for (MongoInputSplit split : hostSplits) {
+                if (!current.isEmpty() && length + split.getLength() > combineSplitSize) {
+                    combined.add(new MongoCombinedInputSplit(current));
+                    current = new ArrayList<MongoInputSplit>();
+                    length = 0;
+                }
+
+                current.add(split);
+                length += split.getLength();
+            }
+
+            if (!current.isEmpty())
+                combined.add(new MongoCombinedInputSplit(current));
+        }
+
+        return combined;
+    }
+
+    /**
+     * Plan splits from several namespace files at once, using up to plannerThreads threads.
+     * @param conf Configuration to get each file's FileSystem from.
+     * @param namespacePaths Paths to dbname.ns in each directory.
+     * @return Splits of every namespace file, in the order the files were given.
+     */
+    public List<MongoInputSplit> getSplitsFromFiles(final Configuration conf, List<Path> namespacePaths) {
+        if (namespacePaths.size() == 1) {
+            try {
+                return getSplitsFromFile(namespacePaths.get(0).getFileSystem(conf), namespacePaths.get(0));
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not get filesystem of " + namespacePaths.get(0).toString(), e);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(plannerThreads, namespacePaths.size())));
+        final Set<String> found = Collections.synchronizedSet(new HashSet<String>());
+        List<MongoInputSplit> splits = new ArrayList<MongoInputSplit>();
+
+        try {
+            List<Future<List<MongoInputSplit>>> results = new ArrayList<Future<List<MongoInputSplit>>>();
+            for (final Path namespacePath : namespacePaths) {
+                results.add(executor.submit(new Callable<List<MongoInputSplit>>() {
+                    @Override
+                    public List<MongoInputSplit> call() throws Exception {
+                        return getSplitsFromFile(namespacePath.getFileSystem(conf), namespacePath, found);
+                    }
+                }));
+            }
+
+            for (Future<List<MongoInputSplit>> result : results)
+                splits.addAll(result.get());
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted getting Mongo splits", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("MongoInputSplit failed to find splits", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        checkNamespacesFound(found);
+        logger.info("Found " + splits.size() + " splits in " + namespacePaths.size() + " directories");
         return splits;
     }
 
     /**
      * This is required by InputFormat, and returns a list of InputSplits found by searching in the given
-     * directory for Mongo data.
+     * directories for Mongo data.
      * @param jobContext Context passed through when the job is run, useful for getting config.
      * @return List of InputSplits.
      * @throws IOException
@@ -132,24 +713,71 @@ public class MongoInputFormat extends InputFormat<Text, WritableBSONObject> {
         logger.info("Getting Mongo splits");
         List<InputSplit> splits = new ArrayList<InputSplit>();
 
-        FileSystem fs = mongoDirectory.getFileSystem(jobContext.getConfiguration());
-        Path namespacePath = mongoDirectory.suffix("/" + database + ".ns");
-        logger.info("searching for " + namespacePath.toString());
+        Configuration conf = jobContext.getConfiguration();
+        List<Path> namespacePaths = findDatabaseFiles(conf, true);
 
-        if (!fs.exists(namespacePath))
-            logger.info("Could not find Mongo DB at " + namespacePath.toString());
+        if (namespacePaths.isEmpty())
+            logger.info("Could not find any Mongo DB");
+        else if (combineSplitSize > 0)
+            splits.addAll(combineSplits(getSplitsFromFiles(conf, namespacePaths), combineSplitSize));
         else
-            splits.addAll(getSplitsFromFile(fs, namespacePath));
-
+            splits.addAll(getSplitsFromFiles(conf, namespacePaths));
 
         if (splits.size() == 0) {
-            logger.info("Could not find any data in that Mongo collection");
+            logger.info("Could not find any data in those Mongo collections");
             logger.info("There will be 0 input records");
         }
 
         return splits;
     }
 
+    /**
+     * Expand the Mongo directories, which may be globs, and find the database's namespace file in each.
+     * @param conf Configuration to get each directory's FileSystem from.
+     * @return Paths to dbname.ns in every directory which has one.
+     * @throws IOException
+     */
+    static List<Path> findNamespaceFiles(Configuration conf) throws IOException {
+        return findDatabaseFiles(conf, false);
+    }
+
+    /**
+     * Expand the Mongo directories, which may be globs, and find the database's namespace file in each.
+     * @param conf Configuration to get each directory's FileSystem from.
+     * @param packed True to accept a PackedMongoFile, dbname.packed, in directories without dbname.ns.
+     * @return Paths to dbname.ns, or dbname.packed, in every directory which has one.
+     * @throws IOException
+     */
+    private static List<Path> findDatabaseFiles(Configuration conf, boolean packed) throws IOException {
+        List<Path> namespacePaths = new ArrayList<Path>();
+
+        for (Path mongoDirectory : mongoDirectories) {
+            FileSystem fs = mongoDirectory.getFileSystem(conf);
+            FileStatus[] matches = fs.globStatus(mongoDirectory);
+
+            if (matches == null || matches.length == 0) {
+                logger.info("Could not find Mongo directory " + mongoDirectory.toString());
+                continue;
+            }
+
+            for (FileStatus match : matches) {
+                Path namespacePath = match.getPath().suffix("/" + database + ".ns");
+                logger.info("searching for " + namespacePath.toString());
+
+                Path packedPath = match.getPath().suffix("/" + database + PackedMongoFile.EXTENSION);
+
+                if (fs.exists(namespacePath))
+                    namespacePaths.add(namespacePath);
+                else if (packed && fs.exists(packedPath))
+                    namespacePaths.add(packedPath);
+                else
+                    logger.info("Could not find Mongo DB at " + namespacePath.toString());
+            }
+        }
+
+        return namespacePaths;
+    }
+
     /**
      * This is required by InputFormat, and just makes a RecordReader, given an InputSplit.
      * @param inputSplit
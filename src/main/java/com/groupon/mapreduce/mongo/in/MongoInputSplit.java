@@ -44,29 +44,120 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class wraps a Mongo Extent class for Hadoop, which includes providing the local machines
- * on which that extent is stored.
+ * on which that extent is stored. A split can also cover only part of a large extent, from one Record
+ * boundary to another.
  */
 public class MongoInputSplit extends InputSplit implements Writable {
     private Extent extent = null;
+    private int start = 0;
+    private int end = 0;
+    private int[] records = null;
+    // location of the compressed chunk holding this split, when it was read from a PackedMongoFile
+    private Path packedPath = null;
+    private long packedOffset = 0;
+    private int packedLength = 0;
     private List<String> locations = new ArrayList<String>();
 
+    // bytes of this split held by each host, only used while planning splits so this isn't serialized
+    private Map<String, Long> hostBytes = new HashMap<String, Long>();
+
     public MongoInputSplit(Extent extent, FileSystem fileSystem) {
+        this(extent, 0, extent.getLength(), fileSystem);
+    }
+
+    /**
+     * Construct a split over part of an extent.
+     * @param extent Extent holding the Records in this split.
+     * @param start Offset within the extent of the first Record in this split.
+     * @param end Offset within the extent after the last Record in this split.
+     * @param fileSystem Filesystem used to find the hosts holding this part of the extent.
+     */
+    public MongoInputSplit(Extent extent, int start, int end, FileSystem fileSystem) {
+        this(extent, start, end, getBlockLocations(extent, fileSystem));
+    }
+
+    /**
+     * Construct a split over part of an extent, using block locations which have already been fetched, so that
+     * planning many splits in the same file doesn't need a call to the NameNode for each one.
+     * @param extent Extent holding the Records in this split.
+     * @param start Offset within the extent of the first Record in this split.
+     * @param end Offset within the extent after the last Record in this split.
+     * @param blockLocations Locations of the blocks of the extent's file, which need only cover this split.
+     */
+    public MongoInputSplit(Extent extent, int start, int end, BlockLocation[] blockLocations) {
         this.extent = extent;
+        this.start = start;
+        this.end = end;
+        addLocations(extent.getOffset() + start, end - start, blockLocations);
+    }
 
-        // determine which machines each machine resides on, used for locality during a MapReduce
-        try {
-            Path path = extent.getPath();
-            FileStatus status = fileSystem.getFileStatus(path);
-            BlockLocation[] blockLocations = fileSystem.getFileBlockLocations(
-                    status, extent.getOffset(), extent.getLength());
+    /**
+     * Construct a split over a compressed chunk of a PackedMongoFile, which holds part of an extent.
+     * @param extent Extent holding the Records in this split.
+     * @param start Offset within the extent of the first Record in the chunk.
+     * @param end Offset within the extent after the last Record in the chunk.
+     * @param packedPath Path of the PackedMongoFile.
+     * @param packedOffset Offset of the compressed chunk in that file.
+     * @param packedLength Length of the compressed chunk.
+     * @param blockLocations Locations of the blocks of the PackedMongoFile, which need only cover the chunk.
+     */
+    public MongoInputSplit(Extent extent, int start, int end, Path packedPath, long packedOffset, int packedLength,
+                           BlockLocation[] blockLocations) {
+        this.extent = extent;
+        this.start = start;
+        this.end = end;
+        this.packedPath = packedPath;
+        this.packedOffset = packedOffset;
+        this.packedLength = packedLength;
+        addLocations(packedOffset, packedLength, blockLocations);
+    }
+
+    /**
+     * Determine which machines hold the given range of the split's file, used for locality during a MapReduce.
+     */
+    private void addLocations(long offset, long length, BlockLocation[] blockLocations) {
+        for (BlockLocation blockLocation : blockLocations) {
+            long overlap = Math.min(blockLocation.getOffset() + blockLocation.getLength(), offset + length) -
+                    Math.max(blockLocation.getOffset(), offset);
+            if (overlap <= 0 && blockLocation.getLength() > 0)
+                continue;
 
-            for (BlockLocation blockLocation : blockLocations)
-                for (String host : blockLocation.getHosts())
+            try {
+                for (String host : blockLocation.getHosts()) {
                     locations.add(host);
+                    Long bytes = hostBytes.get(host);
+                    hostBytes.put(host, (bytes == null ? 0 : bytes) + Math.max(overlap, 0));
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not get MongoInputSplit locations", e);
+            }
+        }
+    }
+
+    /**
+     * Construct a split over only some Records of an extent, such as those an index range matched.
+     * @param extent Extent holding the Records in this split.
+     * @param records Offsets within the extent of the Records in this split, in increasing order.
+     * @param end Offset within the extent just past the last Record in this split.
+     * @param blockLocations Locations of the blocks of the extent's file, which need only cover this split.
+     */
+    public MongoInputSplit(Extent extent, int[] records, int end, BlockLocation[] blockLocations) {
+        this(extent, records[0], end, blockLocations);
+        this.records = records;
+    }
+
+    private static BlockLocation[] getBlockLocations(Extent extent, FileSystem fileSystem) {
+        try {
+            FileStatus status = fileSystem.getFileStatus(extent.getPath());
+            return fileSystem.getFileBlockLocations(status, 0, status.getLen());
         }
         catch (Exception e) {
             throw new RuntimeException("Could not get MongoInputSplit locations", e);
@@ -79,9 +170,66 @@ public class MongoInputSplit extends InputSplit implements Writable {
         return extent;
     }
 
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return Offsets within the extent of the Records in this split, or null if it holds every Record from start
+     * to end.
+     */
+    public int[] getRecords() {
+        return records;
+    }
+
+    /**
+     * @return True if this split is a compressed chunk of a PackedMongoFile rather than part of a data file.
+     */
+    public boolean isPacked() {
+        return packedPath != null;
+    }
+
+    public Path getPackedPath() {
+        return packedPath;
+    }
+
+    public long getPackedOffset() {
+        return packedOffset;
+    }
+
+    public int getPackedLength() {
+        return packedLength;
+    }
+
+    /**
+     * @return Name of the directory holding the data files of this split, which identifies the shard when reading
+     * several shards at once.
+     */
+    public String getShard() {
+        return extent.getPath().getParent().getName();
+    }
+
+    /**
+     * @return True if this split covers the whole extent, rather than a range of Records within it.
+     */
+    public boolean isWholeExtent() {
+        return records == null && start == 0 && end == extent.getLength();
+    }
+
     @Override
     public long getLength() throws IOException, InterruptedException {
-        return extent.getLength();
+        return end - start;
+    }
+
+    /**
+     * @return Number of bytes of this split stored on each host, as found when the split was constructed.
+     */
+    public Map<String, Long> getHostBytes() {
+        return hostBytes;
     }
 
     @Override
@@ -93,8 +241,10 @@ public class MongoInputSplit extends InputSplit implements Writable {
     }
 
     /**
-     * Serialize MongoInputSplit to binary by first writing the Extent out, then the number of locations,
-     * then each location as a String
+     * Serialize MongoInputSplit to binary by first writing the Extent out, then the range of the extent
+     * covered, then the number of listed Records, or -1 if there is no list, and each Record offset, then the
+     * location of the compressed chunk, as an empty path if it isn't packed, then the number of locations, then
+     * each location as a String
      * @param dataOutput
      * @throws IOException
      */
@@ -104,13 +254,48 @@ public class MongoInputSplit extends InputSplit implements Writable {
             throw new RuntimeException("Could not write Split");
 
         extent.write(dataOutput);
+        dataOutput.writeInt(start);
+        dataOutput.writeInt(end);
+        dataOutput.writeInt(records == null ? -1 : records.length);
+        if (records != null) {
+            for (int record : records)
+                dataOutput.writeInt(record);
+        }
+        JobUtil.writeString(packedPath == null ? "" : packedPath.toString(), dataOutput);
+        if (packedPath != null) {
+            dataOutput.writeLong(packedOffset);
+            dataOutput.writeInt(packedLength);
+        }
         dataOutput.writeInt(locations.size());
         for (String location : locations)
             JobUtil.writeString(location, dataOutput);
     }
 
     /**
-     * Deserialize by reading the extent from the binary dataInput, then the number of locations, then each location
+     * Write the bytes held by each host, which aren't part of the serialized split since tasks don't need them,
+     * but are needed to combine splits planned earlier.
+     * @param dataOutput
+     * @throws IOException
+     */
+    void writeHostBytes(DataOutput dataOutput) throws IOException {
+        dataOutput.writeInt(hostBytes.size());
+        for (Map.Entry<String, Long> entry : hostBytes.entrySet()) {
+            JobUtil.writeString(entry.getKey(), dataOutput);
+            dataOutput.writeLong(entry.getValue());
+        }
+    }
+
+    void readHostBytes(DataInput dataInput) throws IOException {
+        int length = dataInput.readInt();
+        hostBytes = new HashMap<String, Long>();
+
+        for (int i = 0; i < length; i++)
+            hostBytes.put(JobUtil.readString(dataInput), dataInput.readLong());
+    }
+
+    /**
+     * Deserialize by reading the extent from the binary dataInput, then the range, then the listed Records, then
+     * the location of the compressed chunk, then the number of locations, then each location
      * @param dataInput
      * @throws IOException
      */
@@ -118,6 +303,18 @@ public class MongoInputSplit extends InputSplit implements Writable {
     public void readFields(DataInput dataInput) throws IOException {
         extent = new Extent();
         extent.readFields(dataInput);
+        start = dataInput.readInt();
+        end = dataInput.readInt();
+        int count = dataInput.readInt();
+        records = count < 0 ? null : new int[count];
+        for (int i = 0; i < count; i++)
+            records[i] = dataInput.readInt();
+        String packed = JobUtil.readString(dataInput);
+        packedPath = packed.isEmpty() ? null : new Path(packed);
+        if (packedPath != null) {
+            packedOffset = dataInput.readLong();
+            packedLength = dataInput.readInt();
+        }
         int length = dataInput.readInt();
         locations = new ArrayList<String>();
 
@@ -131,6 +328,10 @@ public class MongoInputSplit extends InputSplit implements Writable {
         if (o == null || getClass() != o.getClass()) return false;
 
         MongoInputSplit that = (MongoInputSplit) o;
-        return this.extent.equals(that.extent) && this.locations.equals(that.locations);
+        return this.extent.equals(that.extent) && this.start == that.start && this.end == that.end &&
+                Arrays.equals(this.records, that.records) &&
+                (this.packedPath == null ? that.packedPath == null : this.packedPath.equals(that.packedPath)) &&
+                this.packedOffset == that.packedOffset && this.packedLength == that.packedLength &&
+                this.locations.equals(that.locations);
     }
 }
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.JobUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.InputSplit;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is an InputSplit over the namespace file of one copy of a database, naming the collections to read from
+ * it. The namespace file is small, so no locations are given.
+ */
+public class MongoNamespaceSplit extends InputSplit implements Writable {
+    private Path path;
+    private List<String> namespaces = new ArrayList<String>();
+
+    public MongoNamespaceSplit(Path path, List<String> namespaces) {
+        this.path = path;
+        this.namespaces = namespaces;
+    }
+
+    public MongoNamespaceSplit() {}
+
+    /**
+     * @return Path to dbname.ns.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return Names of the collections to read, as dbname.collectionname.
+     */
+    public List<String> getNamespaces() {
+        return namespaces;
+    }
+
+    @Override
+    public long getLength() throws IOException, InterruptedException {
+        return namespaces.size() * NamespaceIndex.NODE_SIZE;
+    }
+
+    @Override
+    public String[] getLocations() throws IOException, InterruptedException {
+        return new String[0];
+    }
+
+    @Override
+    public void write(DataOutput dataOutput) throws IOException {
+        JobUtil.writeString(path.toString(), dataOutput);
+        dataOutput.writeInt(namespaces.size());
+        for (String namespace : namespaces)
+            JobUtil.writeString(namespace, dataOutput);
+    }
+
+    @Override
+    public void readFields(DataInput dataInput) throws IOException {
+        path = new Path(JobUtil.readString(dataInput));
+        int length = dataInput.readInt();
+        namespaces = new ArrayList<String>();
+
+        for (int i = 0; i < length; i++)
+            namespaces.add(JobUtil.readString(dataInput));
+    }
+}
@@ -32,60 +32,381 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
+import com.groupon.mapreduce.mongo.LazyWritableBSONObject;
+import com.groupon.mapreduce.mongo.Projection;
+import com.groupon.mapreduce.mongo.Query;
+import com.groupon.mapreduce.mongo.RawBSON;
 import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.bson.BSONObject;
 
+import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 /**
- * This reads Mongo Records from an Extent and returns Hadoop Records as WritableBSONObjects. The key
- * returned to the Mapper is the _id field from the Mongo Record as Text.
+ * This reads Mongo Records from an Extent, or from several when given a MongoCombinedInputSplit, and returns
+ * Hadoop Records as WritableBSONObjects, or LazyWritableBSONObjects if MongoInputFormat.LAZY_VALUES is set.
+ * The key returned to the Mapper is the _id field from the Mongo Record as Text. As each split is started,
+ * MongoInputFormat.SHARD and MongoInputFormat.NAMESPACE are set in the configuration to the shard and collection
+ * it was read from.
  */
 public class MongoRecordReader extends RecordReader<Text, WritableBSONObject> {
+    private static final byte[] ID = RawBSON.compilePath("_id")[0];
+    private static final byte[] HEX = "0123456789abcdef".getBytes(RawBSON.UTF8);
+    // buffer used to read the Records an index range matched when no stream buffer size is set
+    private static final int LISTED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Counters of the Records read from the extents, and of those which matched the query and were passed on to
+     * the Mapper.
+     */
+    public static enum Counters {
+        RECORDS_SCANNED,
+        RECORDS_EMITTED
+    }
+
     private Record current = null;
     private Iterator<Record> iterator = null;
     private FileSystem fs;
+    private Configuration conf;
+
+    // splits still to be read, there is more than one when reading a MongoCombinedInputSplit
+    private List<MongoInputSplit> splits;
+    private MongoInputSplit split = null;
+    private int streamBufferSize = 0;
+    private boolean lazyValues = false;
+    private boolean reuseObjects = false;
+    private boolean physicalScan = false;
+    private DeletedRecords deleted = null;
+    // deleted records by namespace file and collection, since a combined split can hold extents from several shards
+    // and several collections
+    private Map<String, DeletedRecords> deletedByNamespace = new HashMap<String, DeletedRecords>();
+    private Projection projection = null;
+    // the projected document of the current Record, when there is a projection
+    private ByteBuffer projected = null;
+    private Query query = null;
+    private Counter scanned = null;
+    private Counter emitted = null;
+
+    private final Text key = new Text();
+    private byte[] keyBytes = new byte[32];
+    private WritableBSONObject value = null;
+    private LazyWritableBSONObject lazyValue = null;
+    private boolean finished = false;
+
+    // progress is measured in bytes of the splits, counting splits already read and how far into the current one
+    // the Records read so far reach
+    private long totalBytes = 0;
+    private long doneBytes = 0;
+    private long splitBytes = 0;
+
+    // whether this reader holds on to the shared mappings of local files, see MappedFiles
+    private boolean mapping = false;
 
     @Override
     public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext)
             throws IOException, InterruptedException {
-        MongoInputSplit mongoInputSplit = (MongoInputSplit) inputSplit;
-        fs = ((MongoInputSplit) inputSplit).getExtent().getPath().getFileSystem(taskAttemptContext.getConfiguration());
-        iterator = mongoInputSplit.getExtent().iterator(fs);
+        // MongoInputFormat.createRecordReader initializes the reader, and the framework may do it again
+        closeSplit();
+        iterator = null;
+        split = null;
+        finished = false;
+        totalBytes = 0;
+        doneBytes = 0;
+        splitBytes = 0;
+        projection = null;
+        query = null;
+        if (!mapping) {
+            MappedFiles.acquire();
+            mapping = true;
+        }
+
+        if (inputSplit instanceof MongoCombinedInputSplit)
+            splits = new LinkedList<MongoInputSplit>(((MongoCombinedInputSplit) inputSplit).getSplits());
+        else
+            splits = new LinkedList<MongoInputSplit>(Collections.singletonList((MongoInputSplit) inputSplit));
+
+        for (MongoInputSplit part : splits)
+            totalBytes += part.getEnd() - part.getStart();
+
+        conf = taskAttemptContext.getConfiguration();
+        if (splits.isEmpty())
+            iterator = Collections.<Record>emptyList().iterator();
+        else
+            fs = splits.get(0).getExtent().getPath().getFileSystem(conf);
+
+        streamBufferSize = taskAttemptContext.getConfiguration().getInt(MongoInputFormat.STREAM_BUFFER_SIZE, 0);
+        lazyValues = taskAttemptContext.getConfiguration().getBoolean(MongoInputFormat.LAZY_VALUES, false);
+        reuseObjects = taskAttemptContext.getConfiguration().getBoolean(MongoInputFormat.REUSE_OBJECTS, false);
+        physicalScan = taskAttemptContext.getConfiguration().getBoolean(MongoInputFormat.PHYSICAL_SCAN, false);
+
+        String projectionJSON = taskAttemptContext.getConfiguration().get(MongoInputFormat.PROJECTION);
+        if (projectionJSON != null)
+            projection = new Projection(projectionJSON);
+
+        String queryJSON = taskAttemptContext.getConfiguration().get(MongoInputFormat.QUERY);
+        if (queryJSON != null)
+            query = new Query(queryJSON);
+
+        // counters are only available once the reader is handed the Mapper's context
+        if (taskAttemptContext instanceof TaskInputOutputContext) {
+            scanned = ((TaskInputOutputContext) taskAttemptContext).getCounter(Counters.RECORDS_SCANNED);
+            emitted = ((TaskInputOutputContext) taskAttemptContext).getCounter(Counters.RECORDS_EMITTED);
+        }
+    }
+
+    /**
+     * Walk the deleted record lists of the collection holding the given extent, which are found through the
+     * namespace file next to the extent's data file. Each collection's lists are only walked once per task.
+     */
+    private DeletedRecords loadDeletedRecords(Extent extent) {
+        String name = extent.getNamespace();
+        Path nsFile = new Path(extent.getPath().getParent(), name.substring(0, name.indexOf('.')) + ".ns");
+        String key = nsFile.toString() + ":" + name;
+
+        if (deletedByNamespace.containsKey(key))
+            return deletedByNamespace.get(key);
+
+        Namespace namespace;
+        try {
+            namespace = new NamespaceIndex(fs, nsFile).getNamespace(name);
+        }
+        catch (FileNotFoundException e) {
+            throw new RuntimeException("Could not find namespace file " + nsFile.toString(), e);
+        }
+        if (namespace == null)
+            throw new RuntimeException("Could not find namespace " + name + " in " + nsFile.toString());
+
+        DeletedRecords records = namespace.getDeletedRecords();
+        deletedByNamespace.put(key, records);
+        return records;
+    }
+
+    private void closeSplit() {
+        if (split != null)
+            split.getExtent().releaseBuffer();
+
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not close extent " + split.getExtent().toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Move on to the next split that has Records left, releasing the buffer of the one we are done with.
+     * @return False if there are no more Records in any split.
+     */
+    private boolean advance() {
+        while (iterator == null || !iterator.hasNext()) {
+            closeSplit();
+            if (split != null)
+                doneBytes += split.getEnd() - split.getStart();
+            splitBytes = 0;
+
+            if (splits.isEmpty()) {
+                finished = true;
+                return false;
+            }
+
+            split = splits.remove(0);
+            Extent extent = split.getExtent();
+            conf.set(MongoInputFormat.SHARD, split.getShard());
+            conf.set(MongoInputFormat.NAMESPACE, extent.getNamespace());
+            // packed files have no deleted record lists, but their freed space was zeroed when packing
+            if (physicalScan && !split.isPacked())
+                deleted = loadDeletedRecords(extent);
+
+            if (split.isPacked())
+                iterator = extent.iterator(PackedMongoFile.readChunk(conf, split), split.getStart(), split.getEnd(),
+                        reuseObjects, null);
+            else if (split.getRecords() != null)
+                iterator = new ExtentStreamIterator(extent, fs, split.getRecords(), split.getEnd(),
+                        streamBufferSize > 0 ? streamBufferSize : LISTED_BUFFER_SIZE, reuseObjects);
+            else if (streamBufferSize > 0)
+                iterator = new ExtentStreamIterator(extent, fs,
+                        split.isWholeExtent() ? Extent.HEADER_SIZE : split.getStart(), split.getEnd(), streamBufferSize,
+                        reuseObjects, deleted);
+            else if (split.isWholeExtent() && !physicalScan)
+                iterator = extent.iterator(fs, reuseObjects);
+            else
+                iterator = extent.iterator(fs, split.isWholeExtent() ? Extent.HEADER_SIZE : split.getStart(),
+                        split.getEnd(), reuseObjects, deleted);
+        }
+
+        return true;
     }
 
     @Override
     public boolean nextKeyValue() throws IOException, InterruptedException {
-        if (!iterator.hasNext())
-            return false;
+        do {
+            if (!advance())
+                return false;
 
-        current = iterator.next();
+            current = iterator.next();
+            // the linked list can jump backwards within an extent, so never let progress go down
+            splitBytes = Math.max(splitBytes, Math.min(current.getOffset() + current.getLength(), split.getEnd()) -
+                    split.getStart());
+            if (scanned != null)
+                scanned.increment(1);
+        } while (query != null && !query.matches(current.getBuffer(), current.getBSONOffset()));
+
+        if (emitted != null)
+            emitted.increment(1);
+        if (projection != null)
+            projected = projection.apply(current.getBuffer(), current.getBSONOffset());
         return true;
     }
 
+    /**
+     * The key is reused from one Record to the next, and is set straight from the encoded _id without decoding
+     * it for ObjectIds, strings and integers.
+     * @return _id of the current Record as Text.
+     */
     @Override
     public Text getCurrentKey() throws IOException, InterruptedException {
-        return new Text(current.getId(fs));
+        ByteBuffer buffer = projection == null ? current.getBuffer() : projected;
+        int document = projection == null ? current.getBSONOffset() : 0;
+
+        int id = RawBSON.find(buffer, document, ID);
+        if (id >= 0)
+            setKey(buffer, id);
+        else if (projection == null)
+            throw new RuntimeException("No _id in " + current.toString());
+        else
+            // the key comes from the projected _id, and is empty if the projection drops it
+            key.clear();
+
+        return key;
+    }
+
+    /**
+     * Set the key to the same String as the decoded value's toString, without decoding it in the common cases.
+     */
+    private void setKey(ByteBuffer buffer, int element) {
+        int value = RawBSON.valueOffset(buffer, element);
+
+        switch (RawBSON.type(buffer, element)) {
+            case RawBSON.OBJECT_ID:
+                reserveKey(24);
+                for (int i = 0; i < 12; i++) {
+                    int b = buffer.get(value + i) & 0xff;
+                    keyBytes[i * 2] = HEX[b >> 4];
+                    keyBytes[i * 2 + 1] = HEX[b & 0xf];
+                }
+                key.set(keyBytes, 0, 24);
+                break;
+            case RawBSON.STRING:
+                int length = buffer.getInt(value) - 1;
+                if (buffer.hasArray()) {
+                    key.set(buffer.array(), buffer.arrayOffset() + value + 4, length);
+                }
+                else {
+                    reserveKey(length);
+                    RawBSON.copy(buffer, value + 4, keyBytes, 0, length);
+                    key.set(keyBytes, 0, length);
+                }
+                break;
+            case RawBSON.INT32:
+                setKey(buffer.getInt(value));
+                break;
+            case RawBSON.INT64:
+                setKey(buffer.getLong(value));
+                break;
+            default:
+                key.set(RawBSON.read(buffer, element).toString());
+        }
+    }
+
+    private void setKey(long x) {
+        if (x == Long.MIN_VALUE) {
+            key.set(Long.toString(x));
+            return;
+        }
+
+        reserveKey(20);
+        int i = keyBytes.length;
+        long remaining = Math.abs(x);
+        do {
+            keyBytes[--i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+        if (x < 0)
+            keyBytes[--i] = '-';
+
+        key.set(keyBytes, i, keyBytes.length - i);
+    }
+
+    private void reserveKey(int length) {
+        if (keyBytes.length < length)
+            keyBytes = new byte[length];
+    }
+
+    /**
+     * @return The Record most recently read, which is overwritten by the next call to nextKeyValue.
+     */
+    Record getCurrentRecord() {
+        return current;
     }
 
     @Override
     public WritableBSONObject getCurrentValue() throws IOException, InterruptedException {
-        return new WritableBSONObject(current.getContent(fs));
+        ByteBuffer buffer = projection == null ? current.getBuffer() : projected;
+        int document = projection == null ? current.getBSONOffset() : 0;
+
+        if (lazyValues) {
+            if (!reuseObjects)
+                return new LazyWritableBSONObject(buffer, document);
+            if (lazyValue == null)
+                lazyValue = new LazyWritableBSONObject();
+            lazyValue.set(buffer, document);
+            return lazyValue;
+        }
+
+        BSONObject obj = projection == null ? current.getContent(fs) : RawBSON.readDocument(projected, 0);
+        if (!reuseObjects)
+            return new WritableBSONObject(obj);
+        if (value == null)
+            value = new WritableBSONObject();
+        value.setBSONObject(obj);
+        return value;
     }
 
     @Override
     public float getProgress() throws IOException, InterruptedException {
-        if (!iterator.hasNext())
+        // we can't ask the iterator if it has more, since that may move a streaming read past the current Record
+        if (finished)
             return 1.0f;
-        return 0.0f;
+        if (totalBytes == 0)
+            return 0.0f;
+        return Math.min(1.0f, (float) (doneBytes + splitBytes) / totalBytes);
     }
 
     @Override
     public void close() throws IOException {
+        closeSplit();
+        if (mapping) {
+            MappedFiles.release();
+            mapping = false;
+        }
     }
 }
@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This reads the statistics Mongo keeps for each collection in the namespace file, rather than the collections
+ * themselves, using the same directories, database and collections as MongoInputFormat. Only dbname.ns is read,
+ * so even collections of billions of documents are counted in seconds.
+ *
+ * There is one split per directory, and one Record per collection in each, keyed by dbname.collectionname. The
+ * value holds the fields below, named as in Mongo's collStats:
+ * - ns             - dbname.collectionname
+ * - shard          - name of the directory holding the namespace file
+ * - count          - number of documents
+ * - size           - bytes taken by the documents, with their Record headers
+ * - avgObjSize     - size divided by count
+ * - nindexes       - number of indexes
+ * - lastExtentSize - size of the last extent allocated
+ * - paddingFactor  - factor by which new Records are padded
+ * - capped         - whether the collection is capped
+ *
+ * The statistics are those mongod last wrote, which after an unclean shutdown may be slightly off.
+ */
+public class MongoStatsInputFormat extends InputFormat<Text, WritableBSONObject> {
+    @Override
+    public List<InputSplit> getSplits(JobContext jobContext) throws IOException, InterruptedException {
+        Configuration conf = jobContext.getConfiguration();
+        List<InputSplit> splits = new ArrayList<InputSplit>();
+
+        // collections are resolved here since the options of MongoInputFormat are only set in the job client
+        for (Path path : MongoInputFormat.findNamespaceFiles(conf)) {
+            NamespaceIndex index = new NamespaceIndex(path.getFileSystem(conf), path);
+            splits.add(new MongoNamespaceSplit(path, MongoInputFormat.getNamespaceNames(index)));
+        }
+
+        return splits;
+    }
+
+    @Override
+    public RecordReader<Text, WritableBSONObject> createRecordReader(InputSplit inputSplit,
+                                                                     TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        MongoStatsRecordReader reader = new MongoStatsRecordReader();
+        reader.initialize(inputSplit, taskAttemptContext);
+        return reader;
+    }
+}
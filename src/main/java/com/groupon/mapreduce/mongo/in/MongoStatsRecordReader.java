@@ -0,0 +1,114 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bson.BasicBSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * This returns the statistics of each collection named by a MongoNamespaceSplit, as described in
+ * MongoStatsInputFormat. Collections which aren't in the namespace file are skipped, since a collection may not
+ * exist on every shard.
+ */
+public class MongoStatsRecordReader extends RecordReader<Text, WritableBSONObject> {
+    private NamespaceIndex index;
+    private String shard;
+    private List<String> namespaces;
+    private int position = 0;
+
+    private Text key = new Text();
+    private WritableBSONObject value = null;
+
+    @Override
+    public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        MongoNamespaceSplit split = (MongoNamespaceSplit) inputSplit;
+        index = new NamespaceIndex(split.getPath().getFileSystem(taskAttemptContext.getConfiguration()),
+                split.getPath());
+        shard = split.getPath().getParent().getName();
+        namespaces = split.getNamespaces();
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+        while (position < namespaces.size()) {
+            NamespaceDetails details = index.getDetails(namespaces.get(position++));
+            if (details == null)
+                continue;
+
+            BasicBSONObject stats = new BasicBSONObject();
+            stats.put("ns", details.getName());
+            stats.put("shard", shard);
+            stats.put("count", details.getRecordCount());
+            stats.put("size", details.getDataSize());
+            stats.put("avgObjSize", details.getRecordCount() == 0 ? 0.0 :
+                    (double) details.getDataSize() / details.getRecordCount());
+            stats.put("nindexes", details.getIndexCount());
+            stats.put("lastExtentSize", details.getLastExtentSize());
+            stats.put("paddingFactor", details.getPaddingFactor());
+            stats.put("capped", details.isCapped());
+
+            key.set(details.getName());
+            value = new WritableBSONObject(stats);
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public Text getCurrentKey() throws IOException, InterruptedException {
+        return key;
+    }
+
+    @Override
+    public WritableBSONObject getCurrentValue() throws IOException, InterruptedException {
+        return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+        return namespaces.isEmpty() ? 1.0f : (float) position / namespaces.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
@@ -32,11 +32,16 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
+import com.groupon.mapreduce.mongo.JobUtil;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * This class represents the namespace information for a collection found in the Mongo database namespace index file.
@@ -45,18 +50,30 @@ import java.util.Iterator;
  *
  */
 class Namespace implements Iterable<Record> {
+    static final int DELETED_BUCKETS = 19;
+
     FileSystem fileSystem;
     Path directory;
     String name;
     DiskLoc firstExtent;
     DiskLoc lastExtent;
+    DiskLoc[] deletedLists;
+    NamespaceDetails details;
+
+    private Map<Integer, FSDataInputStream> streams = new HashMap<Integer, FSDataInputStream>();
 
-    public Namespace(FileSystem fileSystem, Path directory, String name, DiskLoc firstExtent, DiskLoc lastExtent) {
+    public Namespace(FileSystem fileSystem, Path directory, NamespaceDetails details) {
         this.fileSystem = fileSystem;
         this.directory = directory;
-        this.name = name; // this is the full dbname.collectionname
-        this.firstExtent = firstExtent;
-        this.lastExtent = lastExtent;
+        this.name = details.name; // this is the full dbname.collectionname
+        this.firstExtent = details.firstExtent;
+        this.lastExtent = details.lastExtent;
+        this.deletedLists = details.deletedLists;
+        this.details = details;
+    }
+
+    public NamespaceDetails getDetails() {
+        return details;
     }
 
     public Extent getFirstExtent() {
@@ -78,14 +95,83 @@ class Namespace implements Iterable<Record> {
         return new Path(directory, dbName() + "." + fileNum);
     }
 
-    public FSDataInputStream getStream(int fileNum) {
+    /**
+     * Streams are opened once per data file and shared, so they should only be used for positional reads. They
+     * stay open until close() is called.
+     * @param fileNum Number of the data file.
+     * @return Stream over that file.
+     */
+    public synchronized FSDataInputStream getStream(int fileNum) {
+        FSDataInputStream stream = streams.get(fileNum);
+        if (stream != null)
+            return stream;
+
         Path path = getPath(fileNum);
         try {
-            return fileSystem.open(getPath(fileNum));
+            stream = fileSystem.open(path);
         }
         catch (Exception e) {
             throw new RuntimeException("Could not open file " + path.toString());
         }
+
+        streams.put(fileNum, stream);
+        return stream;
+    }
+
+    /**
+     * Close the streams opened by getStream.
+     */
+    public synchronized void close() {
+        for (FSDataInputStream stream : streams.values()) {
+            try {
+                stream.close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not close data file of " + name, e);
+            }
+        }
+        streams.clear();
+    }
+
+    /**
+     * Walk the deleted record lists of this collection. This costs a small read for every deleted record, with one
+     * stream open per data file, which are closed afterwards.
+     * @return The locations of all deleted records in the collection.
+     */
+    public DeletedRecords getDeletedRecords() {
+        long[] locations = new long[1024];
+        int count = 0;
+        byte[] header = new byte[16];
+
+        try {
+            // a corrupt list could loop, but there can't be more deleted records than 16 byte pieces of the files
+            long limit = 0;
+            for (int fileNum = 0; fileSystem.exists(getPath(fileNum)); fileNum++)
+                limit += fileSystem.getFileStatus(getPath(fileNum)).getLen() / 16;
+
+            for (DiskLoc head : deletedLists) {
+                DiskLoc loc = head;
+                while (loc.getFileNum() >= 0 && loc.getOffset() >= 0) {
+                    if (count == limit)
+                        throw new RuntimeException("Deleted record list of " + name + " loops at " + loc);
+
+                    if (count == locations.length)
+                        locations = Arrays.copyOf(locations, count * 2);
+                    locations[count++] = ((long) loc.getFileNum() << 32) | loc.getOffset();
+
+                    getStream(loc.getFileNum()).readFully(loc.getOffset(), header);
+                    loc = new DiskLoc(JobUtil.readInt(header, 8), JobUtil.readInt(header, 12));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read deleted records of " + name, e);
+        }
+        finally {
+            close();
+        }
+
+        return new DeletedRecords(Arrays.copyOf(locations, count));
     }
 
     @Override
@@ -130,7 +216,7 @@ class Namespace implements Iterable<Record> {
 
     public Iterator<Extent> extentIterator() {
         return new Iterator<Extent>() {
-            private Extent current = getFirstExtent();
+            private Extent current = firstExtent.getFileNum() == -1 ? null : getFirstExtent();
 
             @Override
             public boolean hasNext() {
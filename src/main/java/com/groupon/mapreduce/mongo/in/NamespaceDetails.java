@@ -0,0 +1,220 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This holds the NamespaceDetails record Mongo keeps for each collection in dbname.ns. Besides the extent and
+ * deleted record lists used to read the collection, it has the statistics Mongo keeps up to date as documents
+ * are written, so record counts and data sizes can be had without reading any data files.
+ */
+public class NamespaceDetails {
+    // offsets within a hash table node, which starts with the hash and the 128 byte name
+    static final int FIRST_EXTENT = 132;
+    static final int LAST_EXTENT = 140;
+    static final int DELETED_LISTS = 148;
+    static final int DATA_SIZE = 300;
+    static final int RECORD_COUNT = 308;
+    static final int LAST_EXTENT_SIZE = 316;
+    static final int INDEX_COUNT = 320;
+    static final int INDEXES = 324;
+    static final int IS_CAPPED = 484;
+    static final int MAX_DOCS_IN_CAPPED = 488;
+    static final int PADDING_FACTOR = 492;
+    static final int EXTRA_OFFSET = 540;
+
+    // the first indexes are held in the node, any more in blocks of NamespaceDetails::Extra elsewhere in the file
+    static final int BASE_INDEXES = 10;
+    static final int EXTRA_INDEXES = 30;
+    static final int INDEX_DETAILS_SIZE = 16;
+    static final int EXTRA_SIZE = 8 + EXTRA_INDEXES * INDEX_DETAILS_SIZE + 8;
+
+    /**
+     * The locations Mongo keeps for each index: the root of its B-tree, and its spec document in system.indexes.
+     */
+    public static class IndexDetails {
+        DiskLoc head;
+        DiskLoc info;
+
+        IndexDetails(ByteBuffer buff, int offset) {
+            head = new DiskLoc(buff.getInt(offset), buff.getInt(offset + 4));
+            info = new DiskLoc(buff.getInt(offset + 8), buff.getInt(offset + 12));
+        }
+
+        /**
+         * @return Location of the root B-tree bucket as (fileNum << 32) | offset.
+         */
+        public long getHead() {
+            return ((long) head.getFileNum() << 32) | head.getOffset();
+        }
+
+        /**
+         * @return Location of the index spec Record in system.indexes as (fileNum << 32) | offset.
+         */
+        public long getInfo() {
+            return ((long) info.getFileNum() << 32) | info.getOffset();
+        }
+
+        @Override
+        public String toString() {
+            return "{IndexDetails head " + head + " info " + info + "}";
+        }
+    }
+
+    String name;
+    DiskLoc firstExtent;
+    DiskLoc lastExtent;
+    DiskLoc[] deletedLists;
+    private long dataSize;
+    private long recordCount;
+    private int lastExtentSize;
+    private int indexCount;
+    private boolean capped;
+    private int maxDocsInCapped;
+    private double paddingFactor;
+    long extraOffset;
+    List<IndexDetails> indexes = new ArrayList<IndexDetails>();
+
+    /**
+     * Parse the NamespaceDetails of a hash table node. Indexes past the first BASE_INDEXES are added with
+     * addExtraIndexes.
+     * @param name Name of the namespace, as dbname.collectionname.
+     * @param buff Little endian buffer holding the node.
+     * @param node Offset of the node in the buffer.
+     */
+    NamespaceDetails(String name, ByteBuffer buff, int node) {
+        this.name = name;
+        firstExtent = new DiskLoc(buff.getInt(node + FIRST_EXTENT), buff.getInt(node + FIRST_EXTENT + 4));
+        lastExtent = new DiskLoc(buff.getInt(node + LAST_EXTENT), buff.getInt(node + LAST_EXTENT + 4));
+
+        deletedLists = new DiskLoc[Namespace.DELETED_BUCKETS];
+        for (int i = 0; i < deletedLists.length; i++)
+            deletedLists[i] = new DiskLoc(buff.getInt(node + DELETED_LISTS + i * 8),
+                    buff.getInt(node + DELETED_LISTS + i * 8 + 4));
+
+        dataSize = buff.getLong(node + DATA_SIZE);
+        recordCount = buff.getLong(node + RECORD_COUNT);
+        lastExtentSize = buff.getInt(node + LAST_EXTENT_SIZE);
+        indexCount = buff.getInt(node + INDEX_COUNT);
+        capped = buff.getInt(node + IS_CAPPED) != 0;
+        maxDocsInCapped = buff.getInt(node + MAX_DOCS_IN_CAPPED);
+        paddingFactor = buff.getDouble(node + PADDING_FACTOR);
+        extraOffset = buff.getLong(node + EXTRA_OFFSET);
+
+        for (int i = 0; i < Math.min(indexCount, BASE_INDEXES); i++)
+            indexes.add(new IndexDetails(buff, node + INDEXES + i * INDEX_DETAILS_SIZE));
+    }
+
+    /**
+     * Add the indexes held in one NamespaceDetails::Extra block.
+     * @param buff Little endian buffer holding the block.
+     * @param offset Offset of the block in the buffer.
+     * @return Offset of the next block relative to the NamespaceDetails, like extraOffset, or 0 if this is the
+     * last.
+     */
+    long addExtraIndexes(ByteBuffer buff, int offset) {
+        for (int i = 0; i < EXTRA_INDEXES && indexes.size() < indexCount; i++)
+            indexes.add(new IndexDetails(buff, offset + 8 + i * INDEX_DETAILS_SIZE));
+        return buff.getLong(offset);
+    }
+
+    /**
+     * @return Name of the namespace, as dbname.collectionname.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of documents in the collection.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return Bytes taken by the documents, including their Record headers but not padding.
+     */
+    public long getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * @return Size of the last extent allocated, which Mongo uses to size the next one.
+     */
+    public int getLastExtentSize() {
+        return lastExtentSize;
+    }
+
+    /**
+     * @return Factor by which Mongo pads new Records of this collection, 1.0 meaning no padding.
+     */
+    public double getPaddingFactor() {
+        return paddingFactor;
+    }
+
+    public boolean isCapped() {
+        return capped;
+    }
+
+    /**
+     * @return Maximum number of documents in a capped collection.
+     */
+    public int getMaxDocsInCapped() {
+        return maxDocsInCapped;
+    }
+
+    /**
+     * @return Number of indexes on the collection.
+     */
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    /**
+     * @return Details of each index, in the order Mongo keeps them, starting with _id.
+     */
+    public List<IndexDetails> getIndexes() {
+        return Collections.unmodifiableList(indexes);
+    }
+
+    @Override
+    public String toString() {
+        return "{NamespaceDetails " + name + " records " + recordCount + " dataSize " + dataSize + " indexes " +
+                indexCount + "}";
+    }
+}
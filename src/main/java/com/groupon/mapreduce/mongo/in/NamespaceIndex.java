@@ -32,69 +32,182 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
-import com.groupon.mapreduce.mongo.JobUtil;
-import com.groupon.mapreduce.mongo.in.DiskLoc;
+import com.groupon.mapreduce.mongo.RawBSON;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This is used to manage the namespace file associated with a Mongo database. The file is a hash table written
- * directly to disk, so collections are discovered by iterating over the entire file and searching for values
- * written to the table. Once found, this information is used to construct a Namespace object, which has information
- * about the extents in a given collection.
+ * directly to disk, with open addressing and linear probing, so a collection is found by hashing its name the
+ * way Mongo does and reading the nodes from there until the name turns up. Only those nodes are read, rather
+ * than the whole file, which is 16MB by default and can be up to 2GB. Once found, the node is used to construct
+ * a Namespace object, which has information about the extents in a given collection.
  */
 class NamespaceIndex {
-    private Map<String, Namespace> namespaces = new HashMap<String, Namespace>();
-    private static final int NODE_SIZE = 628;
+    static final int NODE_SIZE = 628;
+    private static final int NAME_SIZE = 128;
+    // nodes read at a time while probing or listing the table
+    private static final int READ_NODES = 64;
+
+    private FileSystem fileSystem;
+    private Path path;
+    private int nodes;
 
     public NamespaceIndex(FileSystem fileSystem, Path path) throws FileNotFoundException {
-        byte[] content;
+        this.fileSystem = fileSystem;
+        this.path = path;
 
         try {
-            content = readFile(fileSystem, path);
+            nodes = (int) (fileSystem.getFileStatus(path).getLen() / NODE_SIZE);
         }
         catch(IOException e) {
             throw new FileNotFoundException("Could not open Mongo Namespace file: " + path.toString());
         }
+    }
 
-        for (int i = 0; i < content.length; i += NODE_SIZE) {
-            int hash = JobUtil.readInt(content, i);
-            if (hash == 0)
-                continue;
-
-            String name = new String(content, i + 4, 128).trim();
-
-            DiskLoc firstExtent = new DiskLoc(JobUtil.readInt(content, i + 132), JobUtil.readInt(content, i + 136));
-            DiskLoc lastExtent  = new DiskLoc(JobUtil.readInt(content, i + 140), JobUtil.readInt(content, i + 144));
-            namespaces.put(name, new Namespace(fileSystem, path.getParent(), name, firstExtent, lastExtent));
-        }
+    /**
+     * Mongo's hash of a namespace name, which is never 0 since 0 marks an unused node.
+     */
+    static int hash(String name) {
+        int hash = 0;
+        // Mongo hashes the name as signed chars
+        for (byte b : name.getBytes(RawBSON.UTF8))
+            hash = hash * 131 + b;
+        return (hash & 0x7fffffff) | 0x8000000;
     }
 
     public Namespace getNamespace(String name) {
-        return namespaces.get(name);
+        NamespaceDetails details = getDetails(name);
+        return details == null ? null : new Namespace(fileSystem, path.getParent(), details);
     }
 
-    private static byte[] readFile (FileSystem fileSystem, Path file) throws IOException {
-        FSDataInputStream stream = fileSystem.open(file);
+    /**
+     * Probe the hash table for the given namespace. Mongo doesn't stop probing at an unused node, since removing a
+     * namespace leaves one in the middle of a chain, but gives up after 5% of the table, and so do we.
+     * @param name Name of the namespace, as dbname.collectionname.
+     * @return Details of the namespace, or null if it isn't in the file.
+     */
+    public NamespaceDetails getDetails(String name) {
+        if (nodes == 0)
+            return null;
+
+        int hash = hash(name);
+        byte[] key = name.getBytes(RawBSON.UTF8);
+        int start = hash % nodes;
+        int maxChain = Math.max(1, (int) (nodes * 0.05));
+
+        byte[] content = new byte[READ_NODES * NODE_SIZE];
+        ByteBuffer buff = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        // the nodes in content are first to first + count
+        int first = 0;
+        int count = 0;
 
         try {
-            long longlength = fileSystem.getFileStatus(file).getLen();
-            int length = (int) longlength;
-            if (length != longlength) throw new IOException("File size >= 2 GB");
+            FSDataInputStream stream = fileSystem.open(path);
+
+            try {
+                for (int chain = 0; chain < maxChain && chain < nodes; chain++) {
+                    int i = (start + chain) % nodes;
+                    if (i < first || i >= first + count) {
+                        first = i;
+                        count = Math.min(READ_NODES, nodes - i);
+                        stream.readFully((long) i * NODE_SIZE, content, 0, count * NODE_SIZE);
+                    }
+
+                    int node = (i - first) * NODE_SIZE;
+                    if (buff.getInt(node) == hash && nameEquals(content, node + 4, key)) {
+                        NamespaceDetails details = new NamespaceDetails(name, buff, node);
+                        readExtraIndexes(stream, details, (long) i * NODE_SIZE + NamespaceDetails.FIRST_EXTENT);
+                        return details;
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read Mongo Namespace file: " + path.toString(), e);
+        }
+
+        return null;
+    }
 
-            byte[] data = new byte[length];
-            stream.readFully(data);
-            return data;
+    private static boolean nameEquals(byte[] content, int offset, byte[] key) {
+        if (key.length >= NAME_SIZE || content[offset + key.length] != 0)
+            return false;
+
+        for (int i = 0; i < key.length; i++) {
+            if (content[offset + i] != key[i])
+                return false;
         }
-        finally {
-            stream.close();
+        return true;
+    }
+
+    /**
+     * Follow the NamespaceDetails::Extra blocks holding the indexes which don't fit in the node.
+     * @param position Position of the NamespaceDetails in the file, which the extra offsets are relative to.
+     */
+    private void readExtraIndexes(FSDataInputStream stream, NamespaceDetails details, long position)
+            throws IOException {
+        byte[] content = new byte[NamespaceDetails.EXTRA_SIZE];
+        ByteBuffer buff = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = details.extraOffset;
+
+        while (details.indexes.size() < details.getIndexCount() && offset != 0) {
+            stream.readFully(position + offset, content);
+            offset = details.addExtraIndexes(buff, 0);
         }
     }
 
+    /**
+     * Read through the whole table for the names in use. The file is read a few nodes at a time and only the
+     * names are kept.
+     * @return Names of every namespace in the file, as dbname.collectionname, including indexes and system
+     * collections, in sorted order.
+     */
+    public List<String> getNamespaceNames() {
+        List<String> names = new ArrayList<String>();
+        byte[] content = new byte[READ_NODES * NODE_SIZE];
+        ByteBuffer buff = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            FSDataInputStream stream = fileSystem.open(path);
+
+            try {
+                for (int first = 0; first < nodes; first += READ_NODES) {
+                    int count = Math.min(READ_NODES, nodes - first);
+                    stream.readFully((long) first * NODE_SIZE, content, 0, count * NODE_SIZE);
+
+                    for (int node = 0; node < count * NODE_SIZE; node += NODE_SIZE) {
+                        if (buff.getInt(node) == 0)
+                            continue;
+
+                        int length = 0;
+                        while (length < NAME_SIZE && content[node + 4 + length] != 0)
+                            length++;
+                        names.add(new String(content, node + 4, length, RawBSON.UTF8));
+                    }
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read Mongo Namespace file: " + path.toString(), e);
+        }
+
+        Collections.sort(names);
+        return names;
+    }
 }
@@ -0,0 +1,331 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A copy of the collections of a Mongo database packed into one block compressed file, dbname.packed, so that
+ * scans don't pay storage and network for the preallocated files, padding and freed space of the data files.
+ * MongoInputFormat reads a directory holding dbname.packed in place of dbname.ns and the data files.
+ *
+ * Each extent is cut on Record boundaries into chunks of up to the chunk size, and each chunk is compressed on its
+ * own with a Hadoop CompressionCodec, so a chunk can be read without the rest of the file. The bytes of a chunk
+ * are those of the extent, so Records keep their offsets and DiskLocs, except that freed space and the padding
+ * after each document are zeroed so they compress away. An index of the chunks follows them, with the header of
+ * the extent each belongs to, and the file ends with the offset of the index:
+ *
+ * "MDMRPACK" version codecClassName
+ * chunk...
+ * count (extent start end offset length)...
+ * indexOffset "MDMRPACK"
+ *
+ * Only the Records of collections are kept, so indexes, statistics and deleted record lists aren't available when
+ * reading a packed database.
+ */
+public class PackedMongoFile {
+    static final Logger logger = LoggerFactory.getLogger(PackedMongoFile.class);
+
+    public static final String EXTENSION = ".packed";
+    public static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final String MAGIC = "MDMRPACK";
+    private static final int VERSION = 1;
+
+    /**
+     * Pack collections of a database into a new file.
+     * @param fs Filesystem holding the database.
+     * @param namespacePath Path to dbname.ns.
+     * @param namespaces Collections to pack, as dbname.collectionname, or null for every collection.
+     * @param outFs Filesystem to write to.
+     * @param out Path of the file to write, which should be dbname.packed for MongoInputFormat to find it.
+     * @param codec Codec to compress each chunk with.
+     * @param chunkSize Maximum number of bytes of an extent to compress together.
+     * @return Number of bytes written.
+     */
+    public static long pack(FileSystem fs, Path namespacePath, List<String> namespaces, FileSystem outFs, Path out,
+                            CompressionCodec codec, long chunkSize) throws IOException {
+        NamespaceIndex index = new NamespaceIndex(fs, namespacePath);
+        if (namespaces == null)
+            namespaces = getCollectionNames(index, namespacePath);
+
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        FSDataOutputStream stream = outFs.create(out, true);
+
+        try {
+            stream.writeBytes(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeUTF(codec.getClass().getName());
+
+            for (String name : namespaces) {
+                Namespace namespace = index.getNamespace(name);
+                if (namespace == null)
+                    throw new RuntimeException("Could not find namespace " + name);
+
+                DeletedRecords deleted = namespace.getDeletedRecords();
+                long before = stream.getPos();
+                long bytes = 0;
+
+                for (Iterator<Extent> i = namespace.extentIterator(); i.hasNext(); ) {
+                    Extent extent = i.next();
+                    List<Integer> points = extent.getLength() <= chunkSize ?
+                            Arrays.asList(Extent.HEADER_SIZE, extent.getLength()) :
+                            extent.getSplitPoints(fs, chunkSize);
+
+                    for (int j = 1; j < points.size(); j++) {
+                        int start = points.get(j - 1);
+                        int end = points.get(j);
+                        byte[] data = extent.getBuffer(fs, start, end);
+                        scrub(extent, data, start, deleted);
+
+                        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                        CompressionOutputStream compressor = codec.createOutputStream(compressed);
+                        compressor.write(data);
+                        compressor.finish();
+                        compressor.close();
+
+                        chunks.add(new Chunk(extent, start, end, stream.getPos(), compressed.size()));
+                        compressed.writeTo(stream);
+                        bytes += data.length;
+                    }
+                }
+
+                namespace.close();
+                logger.info("Packed " + bytes + " bytes of " + name + " into " + (stream.getPos() - before));
+            }
+
+            long indexOffset = stream.getPos();
+            stream.writeInt(chunks.size());
+            for (Chunk chunk : chunks) {
+                chunk.extent.write(stream);
+                stream.writeInt(chunk.start);
+                stream.writeInt(chunk.end);
+                stream.writeLong(chunk.offset);
+                stream.writeInt(chunk.length);
+            }
+            stream.writeLong(indexOffset);
+            stream.writeBytes(MAGIC);
+
+            return stream.getPos();
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return Every collection of the database, leaving out indexes and system collections such as system.indexes.
+     */
+    private static List<String> getCollectionNames(NamespaceIndex index, Path namespacePath) {
+        String database = namespacePath.getName().substring(0, namespacePath.getName().lastIndexOf('.'));
+        List<String> names = new ArrayList<String>();
+
+        for (String name : index.getNamespaceNames()) {
+            if (name.startsWith(database + ".") && !name.contains("$") && !name.startsWith(database + ".system."))
+                names.add(name);
+        }
+
+        return names;
+    }
+
+    /**
+     * Zero the freed space and the padding after each document in part of an extent, walking it Record by Record.
+     * Record headers are kept, so the part can still be walked by Record length, and a deleted record then has a
+     * document length of 0 which Record.isLive() rejects.
+     */
+    private static void scrub(Extent extent, byte[] data, int start, DeletedRecords deleted) {
+        ByteBuffer buff = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int position = 0; position + Record.HEADER_SIZE + 4 <= data.length; ) {
+            int length = buff.getInt(position);
+            if (length <= Record.HEADER_SIZE || position + length > data.length)
+                throw new RuntimeException("Found invalid record length " + length + " at " + (start + position) +
+                        " in " + extent.toString());
+
+            long loc = ((long) extent.getFileNum() << 32) | (extent.getOffset() + start + position);
+            int BSONlength = buff.getInt(position + Record.HEADER_SIZE);
+
+            if (deleted.contains(loc))
+                Arrays.fill(data, position + Record.HEADER_SIZE, position + length, (byte) 0);
+            else if (BSONlength >= 5 && BSONlength <= length - Record.HEADER_SIZE)
+                Arrays.fill(data, position + Record.HEADER_SIZE + BSONlength, position + length, (byte) 0);
+
+            position += length;
+        }
+    }
+
+    /**
+     * Plan one split per chunk of a packed file.
+     * @param fs Filesystem holding the file.
+     * @param path Path to dbname.packed.
+     * @param namespaces Collections to read as dbname.collectionname, or null for every collection in the file.
+     * @return Splits of the chunks of those collections, in the order they were packed.
+     */
+    public static List<MongoInputSplit> getSplits(FileSystem fs, Path path, List<String> namespaces) {
+        List<MongoInputSplit> splits = new ArrayList<MongoInputSplit>();
+
+        try {
+            FileStatus status = fs.getFileStatus(path);
+            BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+            FSDataInputStream stream = fs.open(path);
+
+            try {
+                readHeader(stream, path);
+
+                byte[] trailer = new byte[8 + MAGIC.length()];
+                stream.readFully(status.getLen() - trailer.length, trailer);
+                if (!new String(trailer, 8, MAGIC.length(), "US-ASCII").equals(MAGIC))
+                    throw new RuntimeException("Did not find the index of " + path.toString() +
+                            ", it may be truncated");
+
+                stream.seek(ByteBuffer.wrap(trailer).getLong(0));
+                int count = stream.readInt();
+                for (int i = 0; i < count; i++) {
+                    Extent extent = new Extent();
+                    extent.readFields(stream);
+                    int start = stream.readInt();
+                    int end = stream.readInt();
+                    long offset = stream.readLong();
+                    int length = stream.readInt();
+
+                    if (namespaces != null && !namespaces.contains(extent.getNamespace()))
+                        continue;
+
+                    // the data file isn't there, but its directory names the shard
+                    extent.setPath(new Path(path.getParent(), extent.getPath().getName()));
+                    splits.add(new MongoInputSplit(extent, start, end, path, offset, length, blocks));
+                }
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not read the index of " + path.toString(), e);
+        }
+
+        logger.info("Found " + splits.size() + " chunks in " + path.toString());
+        return splits;
+    }
+
+    /**
+     * Read and decompress the chunk of a packed split.
+     * @param conf Configuration to get the filesystem and codec from.
+     * @param split Split of a chunk.
+     * @return Little endian buffer whose position 0 is at the start of the split in its extent.
+     */
+    static ByteBuffer readChunk(Configuration conf, MongoInputSplit split) {
+        Path path = split.getPackedPath();
+
+        try {
+            FSDataInputStream stream = path.getFileSystem(conf).open(path);
+            byte[] compressed = new byte[split.getPackedLength()];
+            String codecName;
+
+            try {
+                codecName = readHeader(stream, path);
+                stream.readFully(split.getPackedOffset(), compressed);
+            }
+            finally {
+                stream.close();
+            }
+
+            CompressionCodec codec = (CompressionCodec) ReflectionUtils.newInstance(conf.getClassByName(codecName),
+                    conf);
+            byte[] data = new byte[split.getEnd() - split.getStart()];
+            DataInputStream input = new DataInputStream(
+                    codec.createInputStream(new ByteArrayInputStream(compressed)));
+            input.readFully(data);
+            input.close();
+
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch (Exception e) {
+            throw new RuntimeException("Could not read chunk at " + split.getPackedOffset() + " of " + path, e);
+        }
+    }
+
+    /**
+     * @return Class name of the codec the file was compressed with.
+     */
+    private static String readHeader(FSDataInputStream stream, Path path) throws IOException {
+        byte[] magic = new byte[MAGIC.length()];
+        stream.readFully(magic);
+        if (!new String(magic, "US-ASCII").equals(MAGIC))
+            throw new RuntimeException(path.toString() + " is not a packed Mongo file");
+
+        int version = stream.readInt();
+        if (version != VERSION)
+            throw new RuntimeException(path.toString() + " is packed with version " + version + ", expected " +
+                    VERSION);
+
+        return stream.readUTF();
+    }
+
+    private static class Chunk {
+        Extent extent;
+        int start;
+        int end;
+        long offset;
+        int length;
+
+        Chunk(Extent extent, int start, int end, long offset, int length) {
+            this.extent = extent;
+            this.start = start;
+            this.end = end;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
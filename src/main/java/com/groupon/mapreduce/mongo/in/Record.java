@@ -32,10 +32,11 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
-import com.groupon.mapreduce.mongo.JobUtil;
+import com.groupon.mapreduce.mongo.RawBSON;
 import org.apache.hadoop.fs.FileSystem;
 import org.bson.BSONObject;
-import org.bson.BasicBSONDecoder;
+
+import java.nio.ByteBuffer;
 
 /**
  * This is the representation of a Mongo record as stored in binary format in one of the database files. This
@@ -43,9 +44,17 @@ import org.bson.BasicBSONDecoder;
  * the BSON payload, which we load lazily.
  */
 class Record {
+    static final int HEADER_SIZE = 16;
+    private static final byte[] ID = RawBSON.compilePath("_id")[0];
+
     private Extent extent;
     private int offset;
 
+    // buffer holding this Record, which starts at the extent offset base rather than the start of the extent
+    // when only part of the extent has been loaded
+    private ByteBuffer buffer;
+    private int base;
+
     private int length;
     private int extentOffset;
     private int nextRecord;
@@ -55,50 +64,137 @@ class Record {
     private BSONObject cache = null;
 
     public Record(Extent extent, int off, FileSystem fs) {
+        this(extent, extent.getData(fs), 0, off);
+    }
+
+    /**
+     * Construct a Record from a buffer holding part of an extent, which may be memory mapped.
+     * @param extent Extent holding this Record.
+     * @param buffer Little endian buffer holding the bytes of the extent starting at base.
+     * @param base Offset within the extent of the first byte in buffer.
+     * @param off Offset of this Record within the extent.
+     */
+    public Record(Extent extent, ByteBuffer buffer, int base, int off) {
+        set(extent, buffer, base, off);
+    }
+
+    /**
+     * Point this Record at another Record, so that one object can be reused to iterate over many Records.
+     * @param extent Extent holding the Record.
+     * @param buffer Little endian buffer holding the bytes of the extent starting at base.
+     * @param base Offset within the extent of the first byte in buffer.
+     * @param off Offset of the Record within the extent.
+     */
+    void set(Extent extent, ByteBuffer buffer, int base, int off) {
         if (off < 0)
             throw new RuntimeException("Tried to create record with offset " + off + " in " + extent.toString());
 
         this.extent = extent;
         this.offset = off;
-        byte[] buff = extent.getBuffer(fs);
+        this.buffer = buffer;
+        this.base = base;
+        this.cache = null;
 
-        length = JobUtil.readInt(buff, off);
-        extentOffset = JobUtil.readInt(buff, off + 4);
-        nextRecord = JobUtil.readInt(buff, off + 8);
-        prevRecord = JobUtil.readInt(buff, off + 12);
-        BSONlength = JobUtil.readInt(buff, off + 16);
+        int index = off - base;
+        length = buffer.getInt(index);
+        extentOffset = buffer.getInt(index + 4);
+        nextRecord = buffer.getInt(index + 8);
+        prevRecord = buffer.getInt(index + 12);
+        BSONlength = buffer.getInt(index + 16);
 
         if (extentOffset != extent.getOffset())
             throw new RuntimeException("Record at extent offset " + extent.getOffset() +
-                    " had extent offset set to " + extent.getOffset());
+                    " had extent offset set to " + extentOffset);
     }
 
     public String getId(FileSystem fs) {
-        return getContent(fs).get("_id").toString();
+        if (cache != null)
+            return cache.get("_id").toString();
+
+        int element = RawBSON.find(buffer, getBSONOffset(), ID);
+        if (element < 0)
+            throw new RuntimeException("No _id in " + toString());
+        return RawBSON.read(buffer, element).toString();
+    }
+
+    /**
+     * @return Buffer holding this Record, which may be shared with other Records of the extent.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Offset of the BSON document of this Record within the buffer returned by getBuffer.
+     */
+    public int getBSONOffset() {
+        return offset - base + HEADER_SIZE;
+    }
+
+    /**
+     * @return Offset of this Record within its extent.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return DiskLoc of this Record packed into a long, with the file number in the high 32 bits and the offset
+     * within that file in the low 32 bits. This uniquely identifies the Record in its database.
+     */
+    public long getDiskLoc() {
+        return ((long) extent.getFileNum() << 32) | (extent.getOffset() + offset);
+    }
+
+    /**
+     * @return Length of this Record including its header, which is the distance to the next Record on disk.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Freed space in an extent is kept as deleted records, which share the length and extent offset fields with
+     * Records but store a DiskLoc to the next deleted record where a Record keeps its next and previous offsets.
+     * That DiskLoc never looks like a pair of offsets inside this extent, so we can tell the two apart without
+     * following any links.
+     * @return True if this is a live Record rather than freed space.
+     */
+    public boolean isLive() {
+        if (length < HEADER_SIZE + 5 || BSONlength < 5 || BSONlength > length - HEADER_SIZE)
+            return false;
+        return isRecordOffset(nextRecord) && isRecordOffset(prevRecord);
+    }
+
+    private boolean isRecordOffset(int fileOffset) {
+        return fileOffset == -1 || (fileOffset >= extent.getOffset() + Extent.HEADER_SIZE &&
+                fileOffset < extent.getOffset() + extent.getLength());
     }
 
     public boolean hasNextRecord() {
         return nextRecord >= 0;
     }
 
+    /**
+     * @return Offset within the extent of the next Record in the linked list, or -1 if this is the last.
+     */
+    public int getNextOffset() {
+        if (!hasNextRecord())
+            return -1;
+        return nextRecord - extent.getOffset();
+    }
+
     public Record getNextRecord(FileSystem fs) {
         if (!hasNextRecord())
             return null;
-        return new Record(extent, nextRecord - extent.getOffset(), fs);
+        return new Record(extent, getNextOffset(), fs);
     }
 
     public BSONObject getContent(FileSystem fs) {
         if (cache != null)
             return cache;
 
-        byte[] extentBuffer = extent.getBuffer(fs);
-        byte[] buff = new byte[BSONlength];
-
-        for (int i = offset + 16; i < offset + 16 + BSONlength; i++)
-            buff[i - offset - 16] = extentBuffer[i];
-
-        BasicBSONDecoder decoder = new BasicBSONDecoder();
-        cache = decoder.readObject(buff);
+        cache = RawBSON.readDocument(buffer, getBSONOffset());
         return cache;
     }
 
@@ -0,0 +1,195 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.JobUtil;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This saves the splits planned for a collection to a sidecar file next to dbname.ns, so that later jobs over the
+ * same copy of the database can load them rather than reading the namespace file and every extent header again.
+ * The plan is keyed by a fingerprint of the length and modification time of the namespace file and every data
+ * file, together with the collections, split size and index range, and is planned afresh if any of them change.
+ *
+ * Block locations are saved with the splits, so a plan loaded after HDFS has moved blocks around still reads the
+ * right data, but may schedule tasks away from it.
+ */
+class SplitPlanCache {
+    static final Logger logger = LoggerFactory.getLogger(SplitPlanCache.class);
+
+    private static final int VERSION = 3;
+
+    private FileSystem fs;
+    private Path sidecar;
+    private String fingerprint;
+
+    /**
+     * @param fs Filesystem holding the database.
+     * @param namespacePath Path to dbname.ns.
+     * @param collections Collections the splits are planned for, or null for every collection.
+     * @param maxSplitSize Maximum split size the splits are planned with.
+     * @param indexRange Index range the splits are planned for, or null if they cover whole collections.
+     */
+    public SplitPlanCache(FileSystem fs, Path namespacePath, List<String> collections, long maxSplitSize,
+                          String indexRange) {
+        StringBuilder key = new StringBuilder();
+        if (collections == null) {
+            key.append('*');
+        }
+        else {
+            for (String collection : collections)
+                key.append(key.length() == 0 ? "" : ",").append(collection);
+        }
+
+        // several collections share a plan named by a hash, the fingerprint tells plans with equal hashes apart
+        String name = collections != null && collections.size() == 1 ? collections.get(0) :
+                "collections-" + Integer.toHexString(key.toString().hashCode());
+        if (indexRange != null) {
+            name += "-range-" + Integer.toHexString(indexRange.hashCode());
+            key.append(' ').append(indexRange);
+        }
+
+        this.fs = fs;
+        this.sidecar = new Path(namespacePath.getParent(), namespacePath.getName() + "." + name + ".splits");
+
+        String database = namespacePath.getName().substring(0, namespacePath.getName().lastIndexOf('.'));
+        StringBuilder print = new StringBuilder();
+        print.append(key).append(' ').append(maxSplitSize);
+
+        try {
+            append(print, fs.getFileStatus(namespacePath));
+            for (int fileNum = 0; ; fileNum++) {
+                Path path = new Path(namespacePath.getParent(), database + "." + fileNum);
+                if (!fs.exists(path))
+                    break;
+                append(print, fs.getFileStatus(path));
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Could not fingerprint Mongo files next to " + namespacePath.toString(), e);
+        }
+
+        fingerprint = print.toString();
+    }
+
+    private static void append(StringBuilder print, FileStatus status) {
+        print.append(' ').append(status.getPath().getName()).append(':').append(status.getLen()).append(':')
+                .append(status.getModificationTime());
+    }
+
+    /**
+     * @return Splits saved for the same fingerprint, or null if there are none.
+     */
+    public List<MongoInputSplit> load() {
+        try {
+            if (!fs.exists(sidecar))
+                return null;
+
+            FSDataInputStream stream = fs.open(sidecar);
+            try {
+                if (stream.readInt() != VERSION || !JobUtil.readString(stream).equals(fingerprint)) {
+                    logger.info("Split plan " + sidecar.toString() + " is out of date");
+                    return null;
+                }
+
+                int count = stream.readInt();
+                List<MongoInputSplit> splits = new ArrayList<MongoInputSplit>(count);
+                for (int i = 0; i < count; i++) {
+                    MongoInputSplit split = new MongoInputSplit();
+                    split.readFields(stream);
+                    split.readHostBytes(stream);
+                    splits.add(split);
+                }
+
+                logger.info("Loaded " + count + " splits from " + sidecar.toString());
+                return splits;
+            }
+            finally {
+                stream.close();
+            }
+        }
+        catch (IOException e) {
+            logger.warn("Could not load split plan " + sidecar.toString() + ", planning splits again", e);
+            return null;
+        }
+    }
+
+    /**
+     * Save splits for later jobs. This is written to a temporary file and renamed into place, so jobs running at
+     * the same time never see part of a plan. Failing to save, for instance to a read-only snapshot, only logs.
+     * @param splits Splits planned for the current fingerprint.
+     */
+    public void save(List<MongoInputSplit> splits) {
+        Path temp = new Path(sidecar.getParent(), "_" + sidecar.getName() + "." + System.nanoTime());
+
+        try {
+            FSDataOutputStream stream = fs.create(temp, true);
+            try {
+                stream.writeInt(VERSION);
+                JobUtil.writeString(fingerprint, stream);
+                stream.writeInt(splits.size());
+                for (MongoInputSplit split : splits) {
+                    split.write(stream);
+                    split.writeHostBytes(stream);
+                }
+            }
+            finally {
+                stream.close();
+            }
+
+            fs.delete(sidecar, false);
+            if (!fs.rename(temp, sidecar))
+                throw new IOException("Could not rename " + temp.toString() + " to " + sidecar.toString());
+            logger.info("Saved " + splits.size() + " splits to " + sidecar.toString());
+        }
+        catch (IOException e) {
+            logger.warn("Could not save split plan " + sidecar.toString(), e);
+            try {
+                fs.delete(temp, false);
+            }
+            catch (IOException ignored) {
+                // the temporary file is harmless, and ignored when looking for a plan
+            }
+        }
+    }
+}
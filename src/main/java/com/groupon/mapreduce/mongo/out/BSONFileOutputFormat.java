@@ -0,0 +1,64 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.out;
+
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+
+/**
+ * This writes WritableBSONObjects as .bson files, which are nothing but BSON documents one after another, the same
+ * as the dumps written by mongodump. Each file can be loaded straight into a collection with mongorestore, such as
+ * mongorestore -d dbname -c collname part-m-00000.bson, without going through JSON. The key is ignored.
+ *
+ * LazyWritableBSONObjects which haven't been decoded, as read by MongoInputFormat with lazy values, are written as
+ * the bytes they were read from, so a job which only filters or projects Records never encodes a document.
+ */
+public class BSONFileOutputFormat<K> extends FileOutputFormat<K, WritableBSONObject> {
+    public static final String EXTENSION = ".bson";
+
+    @Override
+    public RecordWriter<K, WritableBSONObject> getRecordWriter(TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        Configuration conf = taskAttemptContext.getConfiguration();
+        Path path = getDefaultWorkFile(taskAttemptContext, EXTENSION);
+        FSDataOutputStream stream = path.getFileSystem(conf).create(path, false);
+        return new BSONFileRecordWriter<K>(stream);
+    }
+}
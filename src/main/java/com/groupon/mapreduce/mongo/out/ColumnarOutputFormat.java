@@ -0,0 +1,93 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.out;
+
+import com.groupon.mapreduce.mongo.ColumnarSchema;
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+
+/**
+ * This writes WritableBSONObjects to columnar files, laid out as described in ColumnarFile, which
+ * ColumnarInputFormat reads back a few columns at a time. The key is ignored. Options are taken from the Hadoop
+ * configuration:
+ * - ColumnarOutputFormat.SCHEMA         - columns to write, as described in ColumnarSchema, which otherwise are
+ *                                         inferred from the first row group each task writes
+ * - ColumnarOutputFormat.ROW_GROUP_SIZE - number of documents in each row group, 50000 by default
+ */
+public class ColumnarOutputFormat extends FileOutputFormat<NullWritable, WritableBSONObject> {
+    public static final String SCHEMA = "mongoColumnarSchema";
+    public static final String ROW_GROUP_SIZE = "mongoColumnarRowGroupSize";
+    public static final int DEFAULT_ROW_GROUP_SIZE = 50000;
+
+    /**
+     * Helper to configure Hadoop to write the given columns rather than inferring them.
+     * @param conf Configuration object in which to set the schema.
+     * @param schema Schema as JSON, such as {_id: "objectid", "user.name": "string"}.
+     */
+    public static void setSchema(Configuration conf, String schema) {
+        // fail when configuring the job rather than in every task
+        new ColumnarSchema(schema);
+        conf.set(SCHEMA, schema);
+    }
+
+    /**
+     * Helper to configure Hadoop to put the given number of documents in each row group. Larger row groups
+     * compress better, while smaller ones let readers skip more with their statistics, and need less memory to
+     * write.
+     * @param conf Configuration object in which to set the row group size.
+     * @param rows Number of documents in each row group.
+     */
+    public static void setRowGroupSize(Configuration conf, int rows) {
+        conf.setInt(ROW_GROUP_SIZE, rows);
+    }
+
+    @Override
+    public RecordWriter<NullWritable, WritableBSONObject> getRecordWriter(TaskAttemptContext taskAttemptContext)
+            throws IOException, InterruptedException {
+        Configuration conf = taskAttemptContext.getConfiguration();
+        Path path = getDefaultWorkFile(taskAttemptContext, ".col");
+        FSDataOutputStream stream = path.getFileSystem(conf).create(path, false);
+
+        String schema = conf.get(SCHEMA);
+        return new ColumnarRecordWriter(stream, schema == null ? null : new ColumnarSchema(schema),
+                conf.getInt(ROW_GROUP_SIZE, DEFAULT_ROW_GROUP_SIZE));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.out;
+
+import com.groupon.mapreduce.mongo.ColumnarFile;
+import com.groupon.mapreduce.mongo.ColumnarSchema;
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.bson.BSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is the RecordWriter which splits documents into columns and writes them out a row group at a time. Until
+ * the first row group is written the documents themselves are kept, so that a schema can be inferred from them if
+ * none was given, and after that only the values of each column are kept. Values which don't fit the type of their
+ * column are written as missing.
+ */
+public class ColumnarRecordWriter extends RecordWriter<NullWritable, WritableBSONObject> {
+    private FSDataOutputStream stream;
+    private ColumnarSchema schema;
+    private int rowGroupSize;
+    private ColumnarFile.Footer footer = null;
+
+    private List<BSONObject> sample = new ArrayList<BSONObject>();
+    private List<List<Object>> columns = null;
+    private int rows = 0;
+
+    /**
+     * @param stream Stream to write the file to, which is closed with this writer.
+     * @param schema Columns to write, or null to infer them from the first row group.
+     * @param rowGroupSize Number of documents in each row group.
+     */
+    public ColumnarRecordWriter(FSDataOutputStream stream, ColumnarSchema schema, int rowGroupSize)
+            throws IOException {
+        this.stream = stream;
+        this.schema = schema;
+        this.rowGroupSize = Math.max(1, rowGroupSize);
+        stream.writeBytes(ColumnarFile.MAGIC);
+    }
+
+    @Override
+    public void write(NullWritable key, WritableBSONObject value) throws IOException, InterruptedException {
+        BSONObject document = value.getBSONObject();
+
+        if (schema == null)
+            sample.add(document);
+        else
+            addRow(document);
+
+        if (++rows == rowGroupSize)
+            writeRowGroup();
+    }
+
+    private void addRow(BSONObject document) {
+        if (columns == null) {
+            columns = new ArrayList<List<Object>>();
+            for (int i = 0; i < schema.size(); i++)
+                columns.add(new ArrayList<Object>(rowGroupSize));
+        }
+
+        for (int i = 0; i < schema.size(); i++)
+            columns.get(i).add(schema.getValue(document, i));
+    }
+
+    private void writeRowGroup() throws IOException {
+        if (schema == null)
+            schema = ColumnarSchema.infer(sample);
+        for (BSONObject document : sample)
+            addRow(document);
+        sample.clear();
+
+        if (footer == null)
+            footer = new ColumnarFile.Footer(schema);
+        if (rows == 0)
+            return;
+
+        ColumnarFile.RowGroup group = new ColumnarFile.RowGroup(stream.getPos(), rows, schema.size());
+        for (int i = 0; i < schema.size(); i++) {
+            byte[] chunk = ColumnarFile.encode(schema.getType(i), columns.get(i));
+            Object[] minMax = ColumnarFile.minMax(schema.getType(i), columns.get(i));
+
+            group.offsets[i] = stream.getPos();
+            group.lengths[i] = chunk.length;
+            group.mins[i] = minMax[0];
+            group.maxes[i] = minMax[1];
+            stream.write(chunk);
+            columns.get(i).clear();
+        }
+
+        footer.rowGroups.add(group);
+        rows = 0;
+    }
+
+    @Override
+    public void close(TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+        writeRowGroup();
+
+        long footerOffset = stream.getPos();
+        footer.write(stream);
+        stream.writeLong(footerOffset);
+        stream.writeBytes(ColumnarFile.MAGIC);
+        stream.close();
+    }
+}
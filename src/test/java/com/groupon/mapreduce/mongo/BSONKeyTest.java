@@ -0,0 +1,244 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.bson.types.Binary;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BSONKeyTest {
+    private static BSONKey key(Object... fields) {
+        BasicBSONObject doc = new BasicBSONObject();
+        for (int i = 0; i < fields.length; i += 2)
+            doc.put((String) fields[i], fields[i + 1]);
+        return new BSONKey(doc);
+    }
+
+    private static BasicBSONList list(Object... values) {
+        BasicBSONList list = new BasicBSONList();
+        list.addAll(Arrays.asList(values));
+        return list;
+    }
+
+    /**
+     * Serialize both keys into one buffer, as they are in the map output buffer, and compare them there.
+     */
+    private static int rawCompare(BSONKeyComparator comparator, BSONKey a, BSONKey b) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        a.write(out);
+        int lengthA = out.getLength();
+        b.write(out);
+        return comparator.compare(out.getData(), 0, lengthA, out.getData(), lengthA, out.getLength() - lengthA);
+    }
+
+    private static BSONKeyComparator comparator(String sort, String group, boolean grouping) {
+        Configuration conf = new Configuration();
+        if (sort != null)
+            BSONKeyComparator.setSortSpec(conf, sort);
+        if (group != null)
+            BSONKeyComparator.setGroupSpec(conf, group);
+        Class<? extends BSONKeyComparator> comparatorClass =
+                grouping ? BSONKeyGroupingComparator.class : BSONKeyComparator.class;
+        return ReflectionUtils.newInstance(comparatorClass, conf);
+    }
+
+    @Test
+    public void testTypeOrder() throws Exception {
+        List<BSONKey> ordered = Arrays.asList(
+                key("a", new MinKey()),
+                key("a", null),
+                key("a", Double.NaN),
+                key("a", -5L),
+                key("a", 1.5),
+                key("a", 2),
+                key("a", ""),
+                key("a", "abc"),
+                key("a", "abd"),
+                key("a", new BasicBSONObject("x", 1)),
+                key("a", list(1, 2)),
+                key("a", new Binary((byte) 0, new byte[] { 9 })),
+                key("a", new Binary((byte) 0, new byte[] { 1, 2 })),
+                key("a", new ObjectId("51c9e1d2e4b0f1a2b3c4d5e6")),
+                key("a", false),
+                key("a", true),
+                key("a", new Date(-1000)),
+                key("a", new Date(1000)),
+                key("a", new MaxKey()));
+
+        BSONKeyComparator comparator = (BSONKeyComparator) WritableComparator.get(BSONKey.class);
+        for (int i = 0; i < ordered.size(); i++) {
+            for (int j = 0; j < ordered.size(); j++) {
+                int expected = i < j ? -1 : (i == j ? 0 : 1);
+                assertEquals(i + " " + j, expected, Integer.signum(rawCompare(comparator, ordered.get(i),
+                        ordered.get(j))));
+                assertEquals(i + " " + j, expected, Integer.signum(ordered.get(i).compareTo(ordered.get(j))));
+            }
+        }
+
+        List<BSONKey> shuffled = new ArrayList<BSONKey>(ordered);
+        Collections.reverse(shuffled);
+        Collections.sort(shuffled);
+        assertEquals(ordered, shuffled);
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        BSONKey intKey = key("_id", 7);
+        BSONKey longKey = key("_id", 7L);
+        BSONKey doubleKey = key("_id", 7.0);
+
+        assertEquals(intKey, longKey);
+        assertEquals(intKey, doubleKey);
+        assertEquals(intKey.hashCode(), longKey.hashCode());
+        assertEquals(intKey.hashCode(), doubleKey.hashCode());
+
+        // 2^53 + 1 has no exact double, so it must not compare equal to the nearest one
+        long big = (1L << 53) + 1;
+        assertEquals(1, key("a", big).compareTo(key("a", (double) big)));
+        assertEquals(-1, key("a", -0.5).compareTo(key("a", 0L)));
+        assertEquals(0, key("a", -0.0).compareTo(key("a", 0.0)));
+
+        // shorter documents first, then field names
+        assertTrue(key("a", 1).compareTo(key("a", 1, "b", 1)) < 0);
+        assertTrue(key("a", 1).compareTo(key("b", 1)) < 0);
+    }
+
+    @Test
+    public void testSortSpec() throws Exception {
+        BSONKeyComparator comparator = comparator("{a: 1, b: -1}", null, false);
+
+        BSONKey first = key("a", 1, "b", 9, "c", "z");
+        BSONKey second = key("b", 5, "a", 1);
+        BSONKey third = key("a", 1);
+        BSONKey fourth = key("a", 2, "b", 100);
+
+        List<BSONKey> ordered = Arrays.asList(first, second, third, fourth);
+        for (int i = 0; i < ordered.size(); i++) {
+            for (int j = 0; j < ordered.size(); j++) {
+                int expected = i < j ? -1 : (i == j ? 0 : 1);
+                assertEquals(i + " " + j, expected,
+                        Integer.signum(rawCompare(comparator, ordered.get(i), ordered.get(j))));
+                assertEquals(expected, Integer.signum(comparator.compare(ordered.get(i), ordered.get(j))));
+            }
+        }
+
+        // fields outside the spec don't matter
+        assertEquals(0, rawCompare(comparator, key("a", 1, "b", 2, "c", 3), key("b", 2, "a", 1.0)));
+        assertFalse(comparator.getOrder() == BSONOrder.NATURAL);
+    }
+
+    @Test
+    public void testPathsAndArrays() throws Exception {
+        BSONKeyComparator ascending = comparator("{\"a.b\": 1}", null, false);
+        BSONKeyComparator descending = comparator("{\"a.b\": -1}", null, false);
+
+        BSONKey nested = key("a", new BasicBSONObject("b", 5));
+        BSONKey array = key("a", new BasicBSONObject("b", list(3, 8)));
+        BSONKey arrayOfDocuments = key("a", list(new BasicBSONObject("b", 4), new BasicBSONObject("b", 9)));
+        BSONKey missing = key("a", new BasicBSONObject("c", 1));
+
+        // ascending sorts by the smallest value: missing, 3, 4, 5
+        assertTrue(rawCompare(ascending, missing, array) < 0);
+        assertTrue(rawCompare(ascending, array, arrayOfDocuments) < 0);
+        assertTrue(rawCompare(ascending, arrayOfDocuments, nested) < 0);
+
+        // descending sorts by the largest value: 9, 8, 5, missing
+        assertTrue(rawCompare(descending, arrayOfDocuments, array) < 0);
+        assertTrue(rawCompare(descending, array, nested) < 0);
+        assertTrue(rawCompare(descending, nested, missing) < 0);
+
+        // a missing field sorts as null
+        assertEquals(0, rawCompare(ascending, missing, key("a", new BasicBSONObject("b", null))));
+    }
+
+    @Test
+    public void testGroupingAndPartitioning() throws Exception {
+        BSONKeyComparator grouping = comparator("{user: 1, ts: 1}", "{user: 1}", true);
+        Configuration conf = new Configuration();
+        BSONKeyComparator.setSortSpec(conf, "{user: 1, ts: 1}");
+        BSONKeyComparator.setGroupSpec(conf, "{user: 1}");
+        BSONKeyPartitioner<Object> partitioner = ReflectionUtils.newInstance(BSONKeyPartitioner.class, conf);
+
+        BSONKey early = key("user", 42, "ts", new Date(1000));
+        BSONKey late = key("user", 42L, "ts", new Date(2000));
+        assertEquals(0, rawCompare(grouping, early, late));
+        assertEquals(partitioner.getPartition(early, null, 97), partitioner.getPartition(late, null, 97));
+
+        int[] counts = new int[8];
+        for (int user = 0; user < 800; user++)
+            counts[partitioner.getPartition(key("user", "user" + user, "ts", new Date()), null, 8)]++;
+        for (int count : counts)
+            assertTrue(count > 50);
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        BSONObject doc = new BasicBSONObject("_id", new ObjectId()).append("n", 3);
+        BSONKey x = new BSONKey(doc);
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        x.write(out);
+        BSONKey y = new BSONKey();
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        y.readFields(in);
+
+        assertEquals(x, y);
+        assertEquals(x.hashCode(), y.hashCode());
+        assertFalse(y.isDecoded());
+
+        // a modified key is compared as it is now
+        y.put("n", 4);
+        assertTrue(x.compareTo(y) < 0);
+    }
+}
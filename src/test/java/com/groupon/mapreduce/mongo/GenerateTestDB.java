@@ -67,5 +67,8 @@ public class GenerateTestDB {
             coll1.insert(doc);
             coll2.insert(doc);
         }
+
+        coll1.ensureIndex(new BasicDBObject("key1", 1));
+        coll2.ensureIndex(new BasicDBObject("key2", -1));
     }
 }
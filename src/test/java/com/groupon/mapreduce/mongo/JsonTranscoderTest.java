@@ -0,0 +1,160 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.apache.hadoop.io.Text;
+import org.bson.BSONObject;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.BasicBSONList;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.MaxKey;
+import org.bson.types.MinKey;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonTranscoderTest {
+    private static final ObjectId ID = new ObjectId("51c9e1d2e4b0f1a2b3c4d5e6");
+
+    private static String transcode(JsonTranscoder.Mode mode, BSONObject doc) {
+        JsonTranscoder transcoder = new JsonTranscoder(mode);
+        byte[] bytes = new BasicBSONEncoder().encode(doc);
+        transcoder.transcode(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0);
+        return transcoder.toString();
+    }
+
+    private BasicBSONObject numbers() {
+        BasicBSONObject doc = new BasicBSONObject();
+        doc.put("_id", ID);
+        doc.put("i", -42);
+        doc.put("l", 1L << 40);
+        doc.put("d", 1.5);
+        doc.put("n", Double.NaN);
+        doc.put("t", new Date(1372143600123L));
+        doc.put("old", new Date(-1000L));
+        return doc;
+    }
+
+    @Test
+    public void testStrict() {
+        assertEquals("{\"_id\":{\"$oid\":\"51c9e1d2e4b0f1a2b3c4d5e6\"},\"i\":{\"$numberInt\":\"-42\"},"
+                + "\"l\":{\"$numberLong\":\"1099511627776\"},\"d\":{\"$numberDouble\":\"1.5\"},"
+                + "\"n\":{\"$numberDouble\":\"NaN\"},\"t\":{\"$date\":{\"$numberLong\":\"1372143600123\"}},"
+                + "\"old\":{\"$date\":{\"$numberLong\":\"-1000\"}}}",
+                transcode(JsonTranscoder.Mode.STRICT, numbers()));
+    }
+
+    @Test
+    public void testRelaxed() {
+        assertEquals("{\"_id\":{\"$oid\":\"51c9e1d2e4b0f1a2b3c4d5e6\"},\"i\":-42,\"l\":1099511627776,\"d\":1.5,"
+                + "\"n\":{\"$numberDouble\":\"NaN\"},\"t\":{\"$date\":\"2013-06-25T07:00:00.123Z\"},"
+                + "\"old\":{\"$date\":{\"$numberLong\":\"-1000\"}}}",
+                transcode(JsonTranscoder.Mode.RELAXED, numbers()));
+    }
+
+    @Test
+    public void testOtherTypes() {
+        BasicBSONObject doc = new BasicBSONObject();
+        doc.put("s", "quote\" slash\\ tab\t bell\u0007 café");
+        doc.put("b", true);
+        doc.put("z", null);
+        doc.put("a", new BasicBSONList() {{
+            add(1);
+            add(new BasicBSONObject("x", "y"));
+        }});
+        doc.put("bin", new Binary((byte) 0, new byte[] { 1, 2, 3, 4 }));
+        doc.put("re", Pattern.compile("^a.*", Pattern.CASE_INSENSITIVE));
+        doc.put("ts", new BSONTimestamp(1372143600, 7));
+        doc.put("code", new Code("f()"));
+        doc.put("min", new MinKey());
+        doc.put("max", new MaxKey());
+
+        assertEquals("{\"s\":\"quote\\\" slash\\\\ tab\\t bell\\u0007 café\",\"b\":true,\"z\":null,"
+                + "\"a\":[1,{\"x\":\"y\"}],\"bin\":{\"$binary\":{\"base64\":\"AQIDBA==\",\"subType\":\"00\"}},"
+                + "\"re\":{\"$regularExpression\":{\"pattern\":\"^a.*\",\"options\":\"i\"}},"
+                + "\"ts\":{\"$timestamp\":{\"t\":1372143600,\"i\":7}},\"code\":{\"$code\":\"f()\"},"
+                + "\"min\":{\"$minKey\":1},\"max\":{\"$maxKey\":1}}",
+                transcode(JsonTranscoder.Mode.RELAXED, doc));
+    }
+
+    @Test
+    public void testDecimal() {
+        assertEquals("1", JsonTranscoder.decimalString(1, 0x3040000000000000L));
+        assertEquals("-0.1", JsonTranscoder.decimalString(1, 0xB03E000000000000L));
+        assertEquals("1.2E+4", JsonTranscoder.decimalString(12, 0x3046000000000000L));
+        assertEquals("1E-7", JsonTranscoder.decimalString(1, 0x3032000000000000L));
+        assertEquals("-Infinity", JsonTranscoder.decimalString(0, 0xF800000000000000L));
+        assertEquals("NaN", JsonTranscoder.decimalString(0, 0x7C00000000000000L));
+    }
+
+    @Test
+    public void testLazyAndDecoded() {
+        BasicBSONObject doc = numbers();
+        byte[] bytes = new BasicBSONEncoder().encode(doc);
+        LazyWritableBSONObject lazy =
+                new LazyWritableBSONObject(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0);
+
+        JsonTranscoder transcoder = new JsonTranscoder(JsonTranscoder.Mode.STRICT);
+        Text fromLazy = new Text();
+        Text fromDecoded = new Text();
+        transcoder.transcode(lazy, fromLazy);
+        transcoder.transcode(new WritableBSONObject(doc), fromDecoded);
+
+        assertEquals(transcode(JsonTranscoder.Mode.STRICT, doc), fromLazy.toString());
+        assertEquals(fromLazy, fromDecoded);
+    }
+
+    @Test
+    public void testParsesBack() {
+        BasicBSONObject doc = new BasicBSONObject();
+        doc.put("_id", ID);
+        doc.put("name", "line\nbreak \"quoted\"");
+        doc.put("count", 12);
+        doc.put("nested", new BasicBSONObject("list", new BasicBSONList() {{
+            add("x");
+            add(2.5);
+        }}));
+
+        assertEquals(doc, JSON.parse(transcode(JsonTranscoder.Mode.RELAXED, doc)));
+    }
+}
@@ -0,0 +1,172 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LazyWritableBSONObjectTest {
+    private BasicBSONObject doc = new BasicBSONObject() {{
+        put("_id", new ObjectId());
+        put("a", 1);
+        put("b", 2L);
+        put("c", new BasicBSONObject() {{
+            put("x", 10.5);
+            put("y", "eleven");
+        }});
+        put("d", new BasicBSONList() {{
+            add(0);
+            add(new BasicBSONObject() {{
+                put("x", 1);
+                put("z", new BasicBSONList() {{
+                    add(4);
+                    add(5);
+                }});
+            }});
+            add(new BasicBSONObject() {{
+                put("x", 3);
+                put("z", new BasicBSONList() {{
+                    add(6);
+                    add(7);
+                }});
+            }});
+        }});
+        put("e", new Date(1234567890L));
+        put("f", Pattern.compile("ab+c"));
+        put("g", null);
+        put("h", true);
+    }};
+
+    private LazyWritableBSONObject lazy() {
+        byte[] bytes = new BasicBSONEncoder().encode(doc);
+        // put the document in the middle of a larger buffer, as it would be in an extent
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 20).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(10);
+        buffer.put(bytes);
+        return new LazyWritableBSONObject(buffer, 10);
+    }
+
+    @Test
+    public void testGet() {
+        LazyWritableBSONObject x = lazy();
+        for (String key : doc.keySet())
+            assertEquals(String.valueOf(doc.get(key)), String.valueOf(x.get(key)));
+        assertNull(x.get("missing"));
+        assertFalse(x.isDecoded());
+    }
+
+    @Test
+    public void testGetPath() {
+        LazyWritableBSONObject x = lazy();
+        String[] paths = {"a", "c.x", "c.y", "d.x", "d.z", "d.y.foo", "g", "missing"};
+        for (String path : paths) {
+            List expected = JobUtil.get(doc, path);
+            assertEquals(path, expected, x.getPath(path));
+        }
+        assertFalse(x.isDecoded());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        LazyWritableBSONObject x = lazy();
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        x.write(new DataOutputStream(byteStream));
+
+        LazyWritableBSONObject x2 = new LazyWritableBSONObject();
+        x2.readFields(new DataInputStream(new ByteArrayInputStream(byteStream.toByteArray())));
+
+        assertEquals(1, x2.get("a"));
+        assertEquals(x, x2);
+        assertEquals(new WritableBSONObject(doc), x2);
+        assertTrue(x2.isDecoded());
+    }
+
+    @Test
+    public void testReadFieldsReuse() throws Exception {
+        BasicBSONObject small = new BasicBSONObject("a", 7);
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream);
+        lazy().write(stream);
+        new WritableBSONObject(small).write(stream);
+        lazy().write(stream);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(byteStream.toByteArray()));
+
+        LazyWritableBSONObject x = new LazyWritableBSONObject();
+        x.readFields(in);
+        byte[] array = x.getBuffer().array();
+        assertEquals(new WritableBSONObject(doc), x);
+
+        x.readFields(in);
+        assertTrue(array == x.getBuffer().array());
+        assertFalse(x.isDecoded());
+        assertEquals(7, x.get("a"));
+        assertNull(x.get("b"));
+        assertEquals(new WritableBSONObject(small), x);
+
+        // decoding drops the buffer, but the array is still reused
+        x.readFields(in);
+        assertTrue(array == x.getBuffer().array());
+        assertEquals(2L, x.get("b"));
+    }
+
+    @Test
+    public void testPut() {
+        LazyWritableBSONObject x = lazy();
+        int length = x.getLength();
+        x.put("a", 5);
+        assertEquals(length, x.getLength());
+        assertTrue(x.isDecoded());
+        assertEquals(5, x.get("a"));
+        assertEquals(2L, x.get("b"));
+    }
+}
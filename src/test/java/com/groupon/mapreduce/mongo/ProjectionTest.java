@@ -0,0 +1,93 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProjectionTest {
+    private static final String DOC = "{_id: 1, a: 2, b: {c: 3, d: 4}, " +
+            "e: [5, {c: 6, d: 7}, [{c: 8}], {d: 9}], f: 10}";
+
+    private String project(String projection) {
+        byte[] bytes = new BasicBSONEncoder().encode((BSONObject) JSON.parse(DOC));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer projected = new Projection(projection).apply(buffer, 0);
+        return JSON.serialize(new BasicBSONDecoder().readObject(projected.array()));
+    }
+
+    private void check(String expected, String projection) {
+        assertEquals(JSON.serialize(JSON.parse(expected)), project(projection));
+    }
+
+    @Test
+    public void testInclude() {
+        check("{_id: 1, a: 2, f: 10}", "{a: 1, f: true}");
+        check("{_id: 1}", "{_id: 1}");
+        check("{a: 2}", "{a: 1, _id: 0}");
+    }
+
+    @Test
+    public void testIncludeNested() {
+        check("{_id: 1, b: {c: 3}, e: [{c: 6}, [{c: 8}], {}]}", "{\"b.c\": 1, \"e.c\": 1}");
+        check("{_id: 1, b: {c: 3, d: 4}}", "{b: 1, \"b.c\": 1}");
+        check("{_id: 1, a: 2}", "{a: 1, \"a.x\": 1}");
+    }
+
+    @Test
+    public void testExclude() {
+        check(DOC, "{}");
+        check("{a: 2, b: {c: 3, d: 4}, e: [5, {c: 6, d: 7}, [{c: 8}], {d: 9}], f: 10}", "{_id: 0}");
+        check("{_id: 1, b: {d: 4}, e: [5, {d: 7}, [{}], {d: 9}]}", "{a: 0, \"b.c\": 0, \"e.c\": 0, f: 0}");
+    }
+
+    @Test
+    public void testId() {
+        check("{_id: 1}", "{_id: 1}");
+        check("{_id: 1, b: {c: 3, d: 4}, e: [5, {c: 6, d: 7}, [{c: 8}], {d: 9}], f: 10}", "{a: 0, _id: 1}");
+        check("{b: {c: 3, d: 4}, e: [5, {c: 6, d: 7}, [{c: 8}], {d: 9}], f: 10}", "{a: 0, _id: 0}");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMixed() {
+        new Projection("{a: 1, b: 0}");
+    }
+}
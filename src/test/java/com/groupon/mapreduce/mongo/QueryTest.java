@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo;
+
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.BasicBSONEncoder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryTest {
+    private static final String DOC = "{_id: {$oid: \"5100f2a1a6d4e9ed9a8ec3d1\"}, a: 2, b: {c: \"xyz\", d: 4.5}, " +
+            "e: [5, {c: 6, d: [7, 8]}], f: null, g: {$date: \"2013-01-24T08:00:00Z\"}, h: true, i: [1, 2], " +
+            "j: 10000000000}";
+
+    private boolean matches(String query) {
+        byte[] bytes = new BasicBSONEncoder().encode((BSONObject) JSON.parse(DOC));
+        return new Query(query).matches(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0);
+    }
+
+    @Test
+    public void testEquals() {
+        assertTrue(matches("{a: 2}"));
+        assertTrue(matches("{a: 2.0}"));
+        assertTrue(matches("{a: {$eq: 2}}"));
+        assertFalse(matches("{a: 3}"));
+        assertFalse(matches("{a: \"2\"}"));
+        assertTrue(matches("{\"b.c\": \"xyz\"}"));
+        assertTrue(matches("{_id: {$oid: \"5100f2a1a6d4e9ed9a8ec3d1\"}}"));
+        assertTrue(matches("{h: true}"));
+        assertTrue(matches("{j: 10000000000}"));
+        assertTrue(matches("{i: [1, 2]}"));
+        assertTrue(matches("{b: {c: \"xyz\", d: 4.5}}"));
+        assertTrue(matches("{a: 2, \"b.d\": 4.5}"));
+        assertFalse(matches("{a: 2, \"b.d\": 4}"));
+    }
+
+    @Test
+    public void testNull() {
+        assertTrue(matches("{f: null}"));
+        assertTrue(matches("{missing: null}"));
+        assertFalse(matches("{a: null}"));
+        assertTrue(matches("{a: {$ne: null}}"));
+        assertFalse(matches("{f: {$ne: null}}"));
+    }
+
+    @Test
+    public void testArrays() {
+        assertTrue(matches("{e: 5}"));
+        assertTrue(matches("{i: 2}"));
+        assertTrue(matches("{\"e.c\": 6}"));
+        assertTrue(matches("{\"e.d\": 8}"));
+        assertTrue(matches("{\"e.0\": 5}"));
+        assertFalse(matches("{\"e.c\": 5}"));
+        assertTrue(matches("{i: {$gt: 1, $lt: 2}}"));
+    }
+
+    @Test
+    public void testRanges() {
+        assertTrue(matches("{a: {$gt: 1}}"));
+        assertFalse(matches("{a: {$gt: 2}}"));
+        assertTrue(matches("{a: {$gte: 2, $lte: 2}}"));
+        assertTrue(matches("{\"b.d\": {$lt: 4.6}}"));
+        assertTrue(matches("{\"b.c\": {$gt: \"xy\", $lt: \"xz\"}}"));
+        assertFalse(matches("{\"b.c\": {$gt: 1}}"));
+        assertTrue(matches("{g: {$gt: {$date: \"2013-01-01T00:00:00Z\"}}}"));
+        assertTrue(matches("{_id: {$gt: {$oid: \"5100f2a1a6d4e9ed9a8ec3d0\"}}}"));
+    }
+
+    private static boolean matches(BSONObject doc, BSONObject query) {
+        byte[] bytes = new BasicBSONEncoder().encode(doc);
+        return new Query(query).matches(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN), 0);
+    }
+
+    @Test
+    public void testSpecialDoubles() {
+        BSONObject doc = new BasicBSONObject("z", -0.0).append("n", Double.NaN);
+
+        // -0.0 equals 0.0 and NaN equals itself, as in Mongo's sort order
+        assertTrue(matches(doc, new BasicBSONObject("z", 0.0)));
+        assertTrue(matches(doc, new BasicBSONObject("z", 0)));
+        assertTrue(matches(doc, new BasicBSONObject("z", new BasicBSONObject("$gte", 0.0))));
+        assertFalse(matches(doc, new BasicBSONObject("z", new BasicBSONObject("$lt", 0.0))));
+        assertTrue(matches(doc, new BasicBSONObject("n", Double.NaN)));
+
+        // and NaN is below every other number
+        assertTrue(matches(doc, new BasicBSONObject("n", new BasicBSONObject("$lt", Double.NEGATIVE_INFINITY))));
+        assertFalse(matches(doc, new BasicBSONObject("n", new BasicBSONObject("$gt", 0.0))));
+    }
+
+    @Test
+    public void testInAndExists() {
+        assertTrue(matches("{a: {$in: [1, 2, 3]}}"));
+        assertFalse(matches("{a: {$in: [\"2\"]}}"));
+        assertTrue(matches("{a: {$nin: [1, 3]}}"));
+        assertTrue(matches("{missing: {$in: [null]}}"));
+        assertTrue(matches("{\"e.d\": {$exists: true}}"));
+        assertTrue(matches("{f: {$exists: true}}"));
+        assertFalse(matches("{missing: {$exists: true}}"));
+        assertTrue(matches("{\"b.missing\": {$exists: false}}"));
+    }
+
+    @Test
+    public void testLogical() {
+        assertTrue(matches("{$or: [{a: 1}, {a: 2}]}"));
+        assertFalse(matches("{$or: [{a: 1}, {a: 3}]}"));
+        assertTrue(matches("{$and: [{a: 2}, {h: true}]}"));
+        assertFalse(matches("{$and: [{a: 2}, {h: false}]}"));
+        assertTrue(matches("{$or: [{$and: [{a: 2}, {h: false}]}, {\"e.c\": 6}]}"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnsupported() {
+        new Query("{a: {$where: \"true\"}}");
+    }
+}
@@ -32,6 +32,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo;
 
+import org.bson.BasicBSONObject;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
@@ -60,4 +61,31 @@ public class WritableBSONObjectTest {
 
         assertEquals(x, x2);
     }
+
+    @Test
+    public void testReuse() throws Exception {
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            longString.append(i);
+        BasicBSONObject large = new BasicBSONObject("key1", longString.toString());
+        large.put("key2", new BasicBSONObject("nested", 1));
+        BasicBSONObject small = new BasicBSONObject("key1", 2);
+
+        // a large document then a smaller one through the same objects, so stale bytes would show up
+        WritableBSONObject x = new WritableBSONObject();
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream);
+        x.setBSONObject(large);
+        x.write(stream);
+        x.setBSONObject(small);
+        x.write(stream);
+
+        WritableBSONObject x2 = new WritableBSONObject();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(byteStream.toByteArray()));
+        x2.readFields(in);
+        assertEquals(large, x2.getBSONObject());
+        x2.readFields(in);
+        assertEquals(small, x2.getBSONObject());
+        assertEquals(-1, in.read());
+    }
 }
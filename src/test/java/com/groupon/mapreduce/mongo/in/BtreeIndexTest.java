@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import org.bson.types.Binary;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BtreeIndexTest {
+    /**
+     * Build a bucket laid out as mongod writes version 1 buckets, with key data packed down from the end of the
+     * bucket and a 16 byte node per key after the 22 byte header.
+     */
+    private static ByteBuffer bucket(byte[][] keys, int[] recordOffsets) {
+        ByteBuffer bucket = ByteBuffer.allocate(BtreeIndex.BUCKET_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        bucket.putInt(0, -1);
+        bucket.putInt(7, -1);
+        bucket.putShort(14, (short) 1);
+        bucket.putShort(20, (short) keys.length);
+
+        int top = BtreeIndex.BUCKET_SIZE;
+        for (int i = 0; i < keys.length; i++) {
+            top -= keys[i].length;
+            for (int j = 0; j < keys[i].length; j++)
+                bucket.put(top + j, keys[i][j]);
+
+            int node = BtreeIndex.BUCKET_HEADER_SIZE + i * BtreeIndex.KEY_NODE_SIZE;
+            bucket.putInt(node, -1);
+            bucket.putInt(node + 7, recordOffsets[i]);
+            bucket.put(node + 11, (byte) 1);
+            bucket.putShort(node + 14, (short) (top - BtreeIndex.BUCKET_HEADER_SIZE));
+        }
+        return bucket;
+    }
+
+    /**
+     * A compact key, as a type byte followed by a value for each field.
+     */
+    private static byte[] key(Object... parts) {
+        ByteBuffer key = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        for (Object part : parts) {
+            if (part instanceof Integer)
+                key.put((byte) (int) (Integer) part);
+            else if (part instanceof Double)
+                key.putDouble((Double) part);
+            else
+                key.put((byte[]) part);
+        }
+        return Arrays.copyOf(key.array(), key.position());
+    }
+
+    @Test
+    public void testNumberKeys() {
+        // ints and longs are written as doubles, marked by 0x10 and 0x20 in the type byte; 0x40 means more follow
+        ByteBuffer bucket = bucket(new byte[][] {
+                key(0x14 | 0x40, 5.0, 0x24 | 0x40, (double) (1L << 40), 0x04, 2.5),
+                key(0x14 | 0x40, -7.0, 0x24, -3.0),
+        }, new int[] { 1024, 2048 });
+
+        assertEquals(2, BtreeIndex.keyCount(bucket));
+        assertEquals((1L << 32) | 1024, BtreeIndex.recordLoc(bucket, 0));
+
+        List<Object> first = BtreeIndex.decodeKey(bucket, BtreeIndex.keyOffset(bucket, 0));
+        assertEquals(Arrays.<Object>asList(5, 1L << 40, 2.5), first);
+        List<Object> second = BtreeIndex.decodeKey(bucket, BtreeIndex.keyOffset(bucket, 1));
+        assertEquals(Arrays.<Object>asList(-7, -3L), second);
+    }
+
+    @Test
+    public void testBinaryKeys() {
+        // the length code is in the high nibble, and subtypes from 0x80 are stored as 0x08 and up
+        ByteBuffer bucket = bucket(new byte[][] {
+                key(0x07 | 0x40, 0x20, new byte[] { 1, 2 }, 0x07, 0x48, new byte[] { 1, 2, 3, 4 }),
+        }, new int[] { 4096 });
+
+        List<Object> key = BtreeIndex.decodeKey(bucket, BtreeIndex.keyOffset(bucket, 0));
+        Binary general = (Binary) key.get(0);
+        Binary user = (Binary) key.get(1);
+        assertEquals(0, general.getType());
+        assertArrayEquals(new byte[] { 1, 2 }, general.getData());
+        assertEquals((byte) 0x80, user.getType());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, user.getData());
+    }
+}
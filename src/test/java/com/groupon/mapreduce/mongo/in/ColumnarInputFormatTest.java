@@ -0,0 +1,192 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import com.groupon.mapreduce.mongo.ColumnarSchema;
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import com.groupon.mapreduce.mongo.out.ColumnarRecordWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.bson.BSONObject;
+import org.bson.BasicBSONObject;
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarInputFormatTest {
+    private static final int ROWS = 1000;
+    private static final Path PATH = new Path("target/columnar/part-m-00000.col");
+    private static List<BSONObject> documents = null;
+
+    // ObjectIds differ each time they are made, so the documents are only made once
+    private static synchronized List<BSONObject> getDocuments() {
+        if (documents != null)
+            return documents;
+        documents = new ArrayList<BSONObject>();
+
+        for (int i = 0; i < ROWS; i++) {
+            BasicBSONObject document = new BasicBSONObject();
+            document.put("_id", new ObjectId(new Date(1370044800000L + i * 1000L)));
+            document.put("n", i);
+            document.put("status", i % 3 == 0 ? "active" : "inactive");
+            if (i < ROWS / 2)
+                document.put("flag", i % 2 == 0);
+            document.put("user", new BasicBSONObject("name", "user" + i));
+            BasicBSONList tags = new BasicBSONList();
+            tags.add("t" + (i % 5));
+            document.put("tags", tags);
+            documents.add(document);
+        }
+
+        return documents;
+    }
+
+    private static Configuration writeFile() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        FileSystem fs = PATH.getFileSystem(conf);
+
+        ColumnarRecordWriter writer = new ColumnarRecordWriter(fs.create(PATH, true), null, 100);
+        for (BSONObject document : getDocuments())
+            writer.write(NullWritable.get(), new WritableBSONObject(document));
+        writer.close(null);
+
+        return conf;
+    }
+
+    private static List<WritableBSONObject> read(Configuration conf, List<Long> keys) throws Exception {
+        FileSystem fs = PATH.getFileSystem(conf);
+        FileSplit split = new FileSplit(PATH, 0, fs.getFileStatus(PATH).getLen(), new String[0]);
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        List<WritableBSONObject> values = new ArrayList<WritableBSONObject>();
+        RecordReader<LongWritable, WritableBSONObject> reader =
+                new ColumnarInputFormat().createRecordReader(split, context);
+        reader.initialize(split, context);
+        while (reader.nextKeyValue()) {
+            keys.add(reader.getCurrentKey().get());
+            values.add(reader.getCurrentValue());
+        }
+        reader.close();
+
+        return values;
+    }
+
+    @Test
+    public void testInferredSchema() throws Exception {
+        ColumnarSchema schema = ColumnarSchema.infer(getDocuments());
+
+        assertEquals(ColumnarSchema.Type.OBJECTID, schema.getType(schema.indexOf("_id")));
+        assertEquals(ColumnarSchema.Type.INT, schema.getType(schema.indexOf("n")));
+        assertEquals(ColumnarSchema.Type.STRING, schema.getType(schema.indexOf("status")));
+        assertEquals(ColumnarSchema.Type.BOOL, schema.getType(schema.indexOf("flag")));
+        assertEquals(ColumnarSchema.Type.STRING, schema.getType(schema.indexOf("user.name")));
+        assertEquals(ColumnarSchema.Type.JSON, schema.getType(schema.indexOf("tags")));
+        assertEquals(schema.toString(), new ColumnarSchema(schema.toString()).toString());
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Configuration conf = writeFile();
+        List<Long> keys = new ArrayList<Long>();
+        List<WritableBSONObject> values = read(conf, keys);
+        List<BSONObject> documents = getDocuments();
+
+        assertEquals(ROWS, values.size());
+        for (int i = 0; i < ROWS; i++) {
+            assertEquals((long) i, (long) keys.get(i));
+            assertEquals(documents.get(i).toString(), values.get(i).getBSONObject().toString());
+        }
+    }
+
+    @Test
+    public void testColumns() throws Exception {
+        Configuration conf = writeFile();
+        ColumnarInputFormat.setColumns(conf, "n", "user.name", "missing");
+        ColumnarInputFormat.setFilter(conf, "{n: {$gte: 250, $lt: 300}}");
+
+        List<Long> keys = new ArrayList<Long>();
+        List<WritableBSONObject> values = read(conf, keys);
+
+        assertEquals(50, values.size());
+        for (int i = 0; i < values.size(); i++) {
+            BSONObject document = values.get(i).getBSONObject();
+            assertEquals(250L + i, (long) keys.get(i));
+            assertEquals(250 + i, document.get("n"));
+            assertEquals("user" + (250 + i), values.get(i).getPath("user.name").get(0));
+            assertNull(document.get("_id"));
+            assertFalse(document.containsField("missing"));
+        }
+
+        ColumnarInputFormat.setFilter(conf, "{status: \"active\"}");
+        values = read(conf, new ArrayList<Long>());
+        assertEquals((ROWS + 2) / 3, values.size());
+        assertTrue(values.get(0).getBSONObject().containsField("n"));
+    }
+
+    @Test
+    public void testInitializeTwice() throws Exception {
+        Configuration conf = writeFile();
+        FileSystem fs = PATH.getFileSystem(conf);
+        FileSplit split = new FileSplit(PATH, 0, fs.getFileStatus(PATH).getLen(), new String[0]);
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        // the order MapTask calls these in, which may initialize a reader createRecordReader initialized already
+        RecordReader<LongWritable, WritableBSONObject> reader =
+                new ColumnarInputFormat().createRecordReader(split, context);
+        reader.initialize(split, context);
+        reader.initialize(split, context);
+
+        int rows = 0;
+        while (reader.nextKeyValue())
+            rows++;
+        reader.close();
+
+        assertEquals(ROWS, rows);
+    }
+}
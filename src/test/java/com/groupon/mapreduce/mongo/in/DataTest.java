@@ -36,39 +36,62 @@ import com.groupon.mapreduce.mongo.*;
 import com.groupon.mapreduce.mongo.in.MongoInputFormat;
 import com.groupon.mapreduce.mongo.in.MongoInputSplit;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.bson.BSONObject;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 public class DataTest {
     private void testCollection(String coll, FileSystem fs, Path path) throws Exception {
         MongoInputFormat.setCollection(coll);
 
         MongoInputFormat inputFormat = new MongoInputFormat();
-        List<MongoInputSplit> splits = inputFormat.getSplitsFromFile(fs, path);
+        testSplits(inputFormat, inputFormat.getSplitsFromFile(fs, path));
+    }
 
-        Configuration conf = new Configuration();
+    private void testSplits(MongoInputFormat inputFormat, List<? extends InputSplit> splits) throws Exception {
+        testSplits(inputFormat, splits, new Configuration());
+    }
+
+    private void testSplits(MongoInputFormat inputFormat, List<? extends InputSplit> splits, Configuration conf)
+            throws Exception {
         conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
 
         TaskAttemptContext context = new TestTaskAttemptContext(conf);
         int count = 0;
 
-        for (MongoInputSplit split : splits) {
+        for (InputSplit split : splits) {
             RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
             while (reader.nextKeyValue()) {
                 assertNotNull(reader.getCurrentKey());
                 WritableBSONObject obj = reader.getCurrentValue();
+                if (obj instanceof LazyWritableBSONObject) {
+                    assertEquals(count, obj.get("key1"));
+                    assertEquals(count, obj.getPath("key4.key5").get(0));
+                    assertEquals(3, obj.getPath("key6").size());
+                }
                 Map record = obj.getBSONObject().toMap();
+                assertEquals(record.get("_id").toString(), reader.getCurrentKey().toString());
 
                 Assert.assertEquals(new Integer(count), JobUtil.get(record, "key1").get(0));
                 assertEquals(new Integer(count * 2), JobUtil.get(record, "key2").get(0));
@@ -96,4 +119,592 @@ public class DataTest {
         testCollection(GenerateTestDB.COLL_NAME_1, fs, path);
         testCollection(GenerateTestDB.COLL_NAME_2, fs, path);
     }
+
+    @Test
+    public void testCombinedData() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<MongoInputSplit> splits = inputFormat.getSplitsFromFile(fs, path);
+        List<MongoCombinedInputSplit> combined = MongoInputFormat.combineSplits(splits, 4 * 1024 * 1024);
+
+        assertTrue(combined.size() < splits.size());
+        testSplits(inputFormat, combined);
+    }
+
+    @Test
+    public void testStreamingData() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        Configuration conf = new Configuration();
+        // smaller than some documents, so the buffer has to grow as well as slide
+        MongoInputFormat.setStreamBufferSize(conf, 64);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        testSplits(inputFormat, inputFormat.getSplitsFromFile(fs, path), conf);
+    }
+
+    @Test
+    public void testLazyData() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_2);
+
+        Configuration conf = new Configuration();
+        MongoInputFormat.setLazyValues(conf, true);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        testSplits(inputFormat, inputFormat.getSplitsFromFile(fs, path), conf);
+    }
+
+    @Test
+    public void testProjectedData() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        MongoInputFormat.setProjection(conf, "{key1: 1, \"key4.key5\": 1, _id: 0}");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        int count = 0;
+        for (InputSplit split : inputFormat.getSplitsFromFile(fs, path)) {
+            RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue()) {
+                assertEquals("", reader.getCurrentKey().toString());
+                Map record = reader.getCurrentValue().getBSONObject().toMap();
+
+                assertEquals(2, record.size());
+                assertEquals(count, JobUtil.get(record, "key1").get(0));
+                assertEquals(count, JobUtil.get(record, "key4.key5").get(0));
+                count++;
+            }
+        }
+
+        assertEquals(GenerateTestDB.NUM_RECORDS, count);
+    }
+
+    @Test
+    public void testQueryData() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        MongoInputFormat.setQuery(conf, "{\"key4.key5\": {$gte: 100, $lt: 200}, key6: \"two\"}");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        int count = 0;
+        for (InputSplit split : inputFormat.getSplitsFromFile(fs, path)) {
+            RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue()) {
+                Map record = reader.getCurrentValue().getBSONObject().toMap();
+                assertEquals(100 + count, JobUtil.get(record, "key1").get(0));
+                count++;
+            }
+        }
+
+        assertEquals(100, count);
+    }
+
+    @Test
+    public void testDiskLocKeys() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoDiskLocInputFormat inputFormat = new MongoDiskLocInputFormat();
+        HashSet<Long> keys = new HashSet<Long>();
+        for (InputSplit split : new MongoInputFormat().getSplitsFromFile(fs, path)) {
+            RecordReader<LongWritable, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue())
+                keys.add(reader.getCurrentKey().get());
+        }
+
+        assertEquals(GenerateTestDB.NUM_RECORDS, keys.size());
+    }
+
+    @Test
+    public void testReusedObjects() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        MongoInputFormat inputFormat = new MongoInputFormat();
+
+        Configuration conf = new Configuration();
+        MongoInputFormat.setReuseObjects(conf, true);
+        testSplits(inputFormat, inputFormat.getSplitsFromFile(fs, path), conf);
+
+        conf = new Configuration();
+        MongoInputFormat.setReuseObjects(conf, true);
+        MongoInputFormat.setLazyValues(conf, true);
+        MongoInputFormat.setStreamBufferSize(conf, 4096);
+        testSplits(inputFormat, inputFormat.getSplitsFromFile(fs, path), conf);
+    }
+
+    @Test
+    public void testProgress() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<MongoInputSplit> splits = inputFormat.getSplitsFromFile(fs, path);
+        InputSplit combined = MongoInputFormat.combineSplits(splits, Long.MAX_VALUE).get(0);
+
+        RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(combined, context);
+        float last = reader.getProgress();
+        assertEquals(0.0f, last, 0.0f);
+
+        int count = 0;
+        boolean halfway = false;
+        while (reader.nextKeyValue()) {
+            float progress = reader.getProgress();
+            assertTrue(progress >= last && progress <= 1.0f);
+            last = progress;
+
+            if (++count == GenerateTestDB.NUM_RECORDS / 2)
+                halfway = progress > 0.25f && progress < 0.75f;
+        }
+
+        assertTrue(halfway);
+        assertEquals(1.0f, reader.getProgress(), 0.0f);
+    }
+
+    @Test
+    public void testProgressInitializedTwice() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<MongoInputSplit> splits = inputFormat.getSplitsFromFile(fs, path);
+        InputSplit combined = MongoInputFormat.combineSplits(splits, Long.MAX_VALUE).get(0);
+
+        // a reader initialized once, as by createRecordReader, is at the same progress on the last Record as one
+        // which MapTask initializes again
+        float once = readProgress(inputFormat.createRecordReader(combined, context), combined, context, false);
+        float twice = readProgress(inputFormat.createRecordReader(combined, context), combined, context, true);
+        assertTrue(once > 0.75f);
+        assertEquals(once, twice, 0.0f);
+    }
+
+    private static float readProgress(RecordReader<Text, WritableBSONObject> reader, InputSplit split,
+                                      TaskAttemptContext context, boolean initialize) throws Exception {
+        if (initialize)
+            reader.initialize(split, context);
+
+        int count = 0;
+        float last = 0.0f;
+        while (reader.nextKeyValue()) {
+            last = reader.getProgress();
+            count++;
+        }
+        assertEquals(GenerateTestDB.NUM_RECORDS, count);
+        assertEquals(1.0f, reader.getProgress(), 0.0f);
+        reader.close();
+
+        return last;
+    }
+
+    @Test
+    public void testPhysicalScan() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_2);
+
+        Configuration conf = new Configuration();
+        MongoInputFormat.setPhysicalScan(conf, true);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        testSplits(inputFormat, inputFormat.getSplitsFromFile(fs, path), conf);
+    }
+
+    @Test
+    public void testPhysicalScanCollections() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        MongoInputFormat.setPhysicalScan(conf, true);
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<MongoInputSplit> splits;
+
+        try {
+            MongoInputFormat.setCollections(GenerateTestDB.COLL_NAME_1, GenerateTestDB.COLL_NAME_2);
+            splits = inputFormat.getSplitsFromFile(fs, path);
+        }
+        finally {
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+
+        // one split holding the extents of both collections, which each have their own deleted records
+        List<MongoCombinedInputSplit> combined = MongoInputFormat.combineSplits(splits, Long.MAX_VALUE);
+        assertEquals(1, combined.size());
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(combined.get(0), context);
+        while (reader.nextKeyValue()) {
+            String namespace = conf.get(MongoInputFormat.NAMESPACE);
+            counts.put(namespace, (counts.containsKey(namespace) ? counts.get(namespace) : 0) + 1);
+        }
+
+        assertEquals(2, counts.size());
+        assertEquals(GenerateTestDB.NUM_RECORDS,
+                (int) counts.get(GenerateTestDB.DB_NAME + "." + GenerateTestDB.COLL_NAME_1));
+        assertEquals(GenerateTestDB.NUM_RECORDS,
+                (int) counts.get(GenerateTestDB.DB_NAME + "." + GenerateTestDB.COLL_NAME_2));
+    }
+
+    @Test
+    public void testShards() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        // both paths find the same directory, which stands in for two shards holding the same data
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        MongoInputFormat.setMongoDirectories(new Path("src/test/db"), new Path("src/test/d?"));
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<InputSplit> splits;
+        try {
+            splits = inputFormat.getSplits(context);
+        }
+        finally {
+            MongoInputFormat.setMongoDirectory(new Path("src/test"));
+        }
+
+        assertEquals(2 * MongoInputFormatTest.getSplits().size(), splits.size());
+        int count = 0;
+
+        for (InputSplit split : splits) {
+            RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue()) {
+                assertEquals("db", conf.get(MongoInputFormat.SHARD));
+                count++;
+            }
+        }
+
+        assertEquals(2 * GenerateTestDB.NUM_RECORDS, count);
+    }
+
+    @Test
+    public void testShardMissingCollection() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        // a shard whose namespace file is empty, so that it holds none of the collections
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        FSDataOutputStream stream = fs.create(new Path("target/missing/db/" + GenerateTestDB.DB_NAME + ".ns"), true);
+        stream.write(new byte[16 * NamespaceIndex.NODE_SIZE]);
+        stream.close();
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        MongoInputFormat.setMongoDirectories(new Path("src/test/db"), new Path("target/missing/db"));
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<InputSplit> splits;
+        boolean failed = false;
+        try {
+            splits = inputFormat.getSplits(context);
+
+            // a collection in neither directory still fails
+            MongoInputFormat.setCollections(GenerateTestDB.COLL_NAME_1, "nothere");
+            try {
+                inputFormat.getSplits(context);
+            }
+            catch (RuntimeException e) {
+                failed = true;
+            }
+        }
+        finally {
+            MongoInputFormat.setMongoDirectory(new Path("src/test"));
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+
+        assertTrue(failed);
+        assertEquals(MongoInputFormatTest.getSplits().size(), splits.size());
+        int count = 0;
+
+        for (InputSplit split : splits) {
+            RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue())
+                count++;
+        }
+
+        assertEquals(GenerateTestDB.NUM_RECORDS, count);
+    }
+
+    @Test
+    public void testCollections() throws Exception {
+        Path path = new Path(NamespaceIndexTest.DB_FILE);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<MongoInputSplit> listed;
+        List<MongoInputSplit> all;
+
+        try {
+            MongoInputFormat.setCollections(GenerateTestDB.COLL_NAME_1, GenerateTestDB.COLL_NAME_2);
+            listed = inputFormat.getSplitsFromFile(fs, path);
+            MongoInputFormat.setAllCollections();
+            all = inputFormat.getSplitsFromFile(fs, path);
+        }
+        finally {
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+
+        assertEquals(listed, all);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for (InputSplit split : listed) {
+            RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue()) {
+                String namespace = conf.get(MongoInputFormat.NAMESPACE);
+                counts.put(namespace, (counts.containsKey(namespace) ? counts.get(namespace) : 0) + 1);
+            }
+        }
+
+        assertEquals(2, counts.size());
+        assertEquals(GenerateTestDB.NUM_RECORDS,
+                (int) counts.get(GenerateTestDB.DB_NAME + "." + GenerateTestDB.COLL_NAME_1));
+        assertEquals(GenerateTestDB.NUM_RECORDS,
+                (int) counts.get(GenerateTestDB.DB_NAME + "." + GenerateTestDB.COLL_NAME_2));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test/db"));
+        MongoInputFormat.setCollections(GenerateTestDB.COLL_NAME_1, GenerateTestDB.COLL_NAME_2, "nothere");
+
+        MongoStatsInputFormat inputFormat = new MongoStatsInputFormat();
+        List<InputSplit> splits;
+        try {
+            splits = inputFormat.getSplits(context);
+        }
+        finally {
+            MongoInputFormat.setMongoDirectory(new Path("src/test"));
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+
+        assertEquals(1, splits.size());
+        RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(splits.get(0), context);
+
+        for (String collection : new String[] {GenerateTestDB.COLL_NAME_1, GenerateTestDB.COLL_NAME_2}) {
+            assertTrue(reader.nextKeyValue());
+            assertEquals(GenerateTestDB.DB_NAME + "." + collection, reader.getCurrentKey().toString());
+
+            BSONObject stats = reader.getCurrentValue().getBSONObject();
+            assertEquals("db", stats.get("shard"));
+            assertEquals((long) GenerateTestDB.NUM_RECORDS, stats.get("count"));
+        }
+
+        assertFalse(reader.nextKeyValue());
+    }
+
+    private void testIndexRange(String collection, String range, String field, int from, int to,
+                                int expected) throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test/db"));
+        MongoInputFormat.setCollection(collection);
+        MongoInputFormat.setIndexRange(range);
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        List<InputSplit> splits;
+        try {
+            splits = inputFormat.getSplits(context);
+        }
+        finally {
+            MongoInputFormat.setIndexRange(null);
+            MongoInputFormat.setMongoDirectory(new Path("src/test"));
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+
+        // a split ends where the next split of its extent begins, or else just after its last Record
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        for (int i = 0; i < splits.size(); i++) {
+            MongoInputSplit split = (MongoInputSplit) splits.get(i);
+            MongoInputSplit next = i + 1 < splits.size() ? (MongoInputSplit) splits.get(i + 1) : null;
+            int[] records = split.getRecords();
+
+            if (next != null && next.getExtent().equals(split.getExtent())) {
+                assertEquals(next.getStart(), split.getEnd());
+            }
+            else {
+                int last = records[records.length - 1];
+                assertEquals(last + new Record(split.getExtent(), last, fs).getLength(), split.getEnd());
+            }
+        }
+
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (InputSplit split : splits) {
+            RecordReader<Text, WritableBSONObject> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue()) {
+                int value = (Integer) reader.getCurrentValue().get(field);
+                assertTrue(value >= from && value < to);
+                assertTrue(seen.add(value));
+            }
+        }
+
+        assertEquals(expected, seen.size());
+    }
+
+    @Test
+    public void testIndexRange() throws Exception {
+        testIndexRange(GenerateTestDB.COLL_NAME_1, "{key1: {$gte: 1000, $lt: 2000}}", "key1", 1000, 2000, 1000);
+        // key2 is indexed in descending order, and every value of it is even
+        testIndexRange(GenerateTestDB.COLL_NAME_2, "{key2: {$gt: 99, $lte: 300}}", "key2", 100, 301, 101);
+    }
+
+    private void testIndexKeys(String collection, String indexName, String field, int step) throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("src/test/db"));
+        MongoInputFormat.setCollection(collection);
+        MongoIndexInputFormat.setIndexName(indexName);
+
+        MongoIndexInputFormat inputFormat = new MongoIndexInputFormat();
+        List<InputSplit> splits;
+        try {
+            splits = inputFormat.getSplits(context);
+        }
+        finally {
+            MongoInputFormat.setMongoDirectory(new Path("src/test"));
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+
+        HashSet<Integer> values = new HashSet<Integer>();
+        HashSet<Long> locs = new HashSet<Long>();
+        for (InputSplit split : splits) {
+            RecordReader<WritableBSONObject, LongWritable> reader = inputFormat.createRecordReader(split, context);
+            while (reader.nextKeyValue()) {
+                int value = (Integer) reader.getCurrentKey().get(field);
+                assertEquals(0, value % step);
+                assertTrue(value >= 0 && value < GenerateTestDB.NUM_RECORDS * step);
+                assertTrue(values.add(value));
+                assertTrue(locs.add(reader.getCurrentValue().get()));
+            }
+            reader.close();
+        }
+
+        // every value of the field is found once, so each int key was decoded to the value it was written from
+        assertEquals(GenerateTestDB.NUM_RECORDS, values.size());
+        assertEquals(GenerateTestDB.DB_NAME + "." + collection, conf.get(MongoInputFormat.NAMESPACE));
+    }
+
+    @Test
+    public void testIndexKeys() throws Exception {
+        testIndexKeys(GenerateTestDB.COLL_NAME_1, "key1_1", "key1", 1);
+        testIndexKeys(GenerateTestDB.COLL_NAME_2, "key2_-1", "key2", 2);
+    }
+
+    @Test
+    public void testPacked() throws Exception {
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        Path out = new Path("target/packed/db/" + GenerateTestDB.DB_NAME + PackedMongoFile.EXTENSION);
+        List<String> namespaces = Arrays.asList(GenerateTestDB.DB_NAME + "." + GenerateTestDB.COLL_NAME_1,
+                GenerateTestDB.DB_NAME + "." + GenerateTestDB.COLL_NAME_2);
+
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        long length = PackedMongoFile.pack(fs, new Path(NamespaceIndexTest.DB_FILE), namespaces, fs, out,
+                ReflectionUtils.newInstance(DefaultCodec.class, conf), 1024 * 1024);
+
+        long dataLength = 0;
+        for (int fileNum = 0; fs.exists(new Path("src/test/db/" + GenerateTestDB.DB_NAME + "." + fileNum)); fileNum++)
+            dataLength += fs.getFileStatus(new Path("src/test/db/" + GenerateTestDB.DB_NAME + "." + fileNum)).getLen();
+        assertTrue(length < dataLength);
+
+        TaskAttemptContext context = new TestTaskAttemptContext(conf);
+
+        MongoInputFormat.setDatabase(GenerateTestDB.DB_NAME);
+        MongoInputFormat.setMongoDirectory(new Path("target/packed/db"));
+
+        MongoInputFormat inputFormat = new MongoInputFormat();
+        try {
+            for (String collection : new String[] {GenerateTestDB.COLL_NAME_1, GenerateTestDB.COLL_NAME_2}) {
+                MongoInputFormat.setCollection(collection);
+                List<InputSplit> splits = inputFormat.getSplits(context);
+                assertTrue(((MongoInputSplit) splits.get(0)).isPacked());
+                testSplits(inputFormat, splits, conf);
+            }
+        }
+        finally {
+            MongoInputFormat.setMongoDirectory(new Path("src/test"));
+            MongoInputFormat.setCollection(GenerateTestDB.COLL_NAME_1);
+        }
+    }
 }
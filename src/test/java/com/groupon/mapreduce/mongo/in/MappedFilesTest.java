@@ -0,0 +1,72 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.in;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedFilesTest {
+    private static final Path PATH = new Path("target/mapped/data.0");
+
+    private static void write(FileSystem fs, byte value, int length) throws Exception {
+        FSDataOutputStream stream = fs.create(PATH, true);
+        for (int i = 0; i < length; i++)
+            stream.write(value);
+        stream.close();
+    }
+
+    @Test
+    public void testReplacedFile() throws Exception {
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        write(fs, (byte) 1, 100);
+
+        MappedFiles.acquire();
+        try {
+            assertEquals(1, MappedFiles.slice(fs, PATH, 10, 10).get(0));
+
+            // a file replaced while the mapping is cached is mapped again
+            write(fs, (byte) 2, 200);
+            assertEquals(2, MappedFiles.slice(fs, PATH, 150, 10).get(0));
+        }
+        finally {
+            MappedFiles.release();
+        }
+
+        write(fs, (byte) 3, 200);
+        assertEquals(3, MappedFiles.slice(fs, PATH, 150, 10).get(0));
+    }
+}
@@ -32,6 +32,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
+import com.groupon.mapreduce.mongo.GenerateTestDB;
 import com.groupon.mapreduce.mongo.in.MongoInputFormat;
 import com.groupon.mapreduce.mongo.in.MongoInputSplit;
 import com.groupon.mapreduce.mongo.in.Record;
@@ -42,6 +43,8 @@ import org.junit.Test;
 import java.util.Iterator;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class MongoInputFormatTest {
@@ -71,4 +74,69 @@ public class MongoInputFormatTest {
             }
         }
     }
+
+    @Test
+    public void getSubExtentSplitsTest() {
+        List<MongoInputSplit> splits;
+        MongoInputFormat.setMaxSplitSize(256 * 1024);
+
+        try {
+            splits = getSplits();
+        }
+        finally {
+            MongoInputFormat.setMaxSplitSize(128 * 1024 * 1024);
+        }
+
+        assertTrue(splits.size() > 7);
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        boolean[] seen = new boolean[GenerateTestDB.NUM_RECORDS];
+        int count = 0;
+
+        for (MongoInputSplit split : splits) {
+            Extent extent = split.getExtent();
+            Iterator<Record> i = split.isWholeExtent() ? extent.iterator(fs) :
+                    extent.iterator(fs, split.getStart(), split.getEnd());
+
+            while (i.hasNext()) {
+                int key = (Integer) i.next().getContent(fs).get("key1");
+                assertFalse(seen[key]);
+                seen[key] = true;
+                count++;
+            }
+        }
+
+        assertEquals(GenerateTestDB.NUM_RECORDS, count);
+    }
+
+    @Test
+    public void splitPlanCacheTest() throws Exception {
+        FileSystem fs = NamespaceIndexTest.getFilesystem();
+        Path sidecar = new Path(NamespaceIndexTest.DB_FILE + ".testcoll1.splits");
+        List<MongoInputSplit> planned = getSplits();
+        MongoInputFormat.setSplitPlanCache(true);
+
+        try {
+            assertEquals(planned, getSplits());
+            assertTrue(fs.exists(sidecar));
+
+            List<MongoInputSplit> loaded = getSplits();
+            assertEquals(planned, loaded);
+            for (int i = 0; i < planned.size(); i++)
+                assertEquals(planned.get(i).getHostBytes(), loaded.get(i).getHostBytes());
+
+            // a plan for another split size doesn't match the fingerprint
+            MongoInputFormat.setMaxSplitSize(256 * 1024);
+            try {
+                assertTrue(getSplits().size() > planned.size());
+            }
+            finally {
+                MongoInputFormat.setMaxSplitSize(128 * 1024 * 1024);
+            }
+            assertEquals(planned, getSplits());
+        }
+        finally {
+            MongoInputFormat.setSplitPlanCache(false);
+            fs.delete(sidecar, false);
+        }
+    }
 }
@@ -33,6 +33,8 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.groupon.mapreduce.mongo.in;
 
 import com.groupon.mapreduce.mongo.in.MongoInputSplit;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.Path;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
@@ -42,6 +44,8 @@ import java.io.DataOutputStream;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class MongoInputSplitTest {
     @Test
@@ -61,4 +65,64 @@ public class MongoInputSplitTest {
 
         assertEquals(split1, split2);
     }
+
+    @Test
+    public void TestCombinedSerialization() throws Exception {
+        List<MongoInputSplit> splits = MongoInputFormatTest.getSplits();
+
+        MongoCombinedInputSplit split1 = MongoInputFormat.combineSplits(splits, Long.MAX_VALUE).get(0);
+        MongoCombinedInputSplit split2 = new MongoCombinedInputSplit();
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream);
+
+        split1.write(stream);
+        byte[] output = byteStream.toByteArray();
+
+        split2.readFields(new DataInputStream(new ByteArrayInputStream(output)));
+
+        assertEquals(splits.size(), split2.getSplits().size());
+        assertEquals(split1, split2);
+    }
+
+    @Test
+    public void TestListedSerialization() throws Exception {
+        MongoInputSplit whole = MongoInputFormatTest.getSplits().get(0);
+        MongoInputSplit split1 = new MongoInputSplit(whole.getExtent(), new int[] {200, 340, 480}, 620,
+                new BlockLocation[0]);
+        MongoInputSplit split2 = new MongoInputSplit();
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream);
+
+        split1.write(stream);
+        byte[] output = byteStream.toByteArray();
+
+        split2.readFields(new DataInputStream(new ByteArrayInputStream(output)));
+
+        assertEquals(split1, split2);
+        assertEquals(200, split2.getStart());
+        assertFalse(split2.isWholeExtent());
+    }
+
+    @Test
+    public void TestPackedSerialization() throws Exception {
+        MongoInputSplit whole = MongoInputFormatTest.getSplits().get(0);
+        MongoInputSplit split1 = new MongoInputSplit(whole.getExtent(), Extent.HEADER_SIZE,
+                whole.getExtent().getLength(), new Path("db/deepmr_test.packed"), 1024, 4096, new BlockLocation[0]);
+        MongoInputSplit split2 = new MongoInputSplit();
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(byteStream);
+
+        split1.write(stream);
+        byte[] output = byteStream.toByteArray();
+
+        split2.readFields(new DataInputStream(new ByteArrayInputStream(output)));
+
+        assertEquals(split1, split2);
+        assertTrue(split2.isPacked());
+        assertEquals(1024, split2.getPackedOffset());
+        assertEquals(4096, split2.getPackedLength());
+    }
 }
@@ -32,6 +32,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package com.groupon.mapreduce.mongo.in;
 
+import com.groupon.mapreduce.mongo.GenerateTestDB;
 import com.groupon.mapreduce.mongo.in.Extent;
 import com.groupon.mapreduce.mongo.in.Namespace;
 import com.groupon.mapreduce.mongo.in.NamespaceIndex;
@@ -44,9 +45,14 @@ import org.junit.Test;
 
 import java.io.FileNotFoundException;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class NamespaceIndexTest {
@@ -111,4 +117,63 @@ public class NamespaceIndexTest {
             }
         }
     }
+
+    @Test
+    public void testExtentScanner() throws FileNotFoundException {
+        NamespaceIndex nsi = getNamespaceIndex();
+
+        for (String name : new String[] {"deepmr_test.testcoll1", "deepmr_test.testcoll2"}) {
+            Namespace namespace = nsi.getNamespace(name);
+            List<Extent> extents = new ExtentScanner(namespace, 4).getExtents();
+            namespace.close();
+
+            Iterator<Extent> i = namespace.extentIterator();
+            for (Extent extent : extents) {
+                assertEquals(i.next(), extent);
+                assertEquals(name, extent.getNamespace());
+            }
+            assertFalse(i.hasNext());
+        }
+    }
+
+    @Test
+    public void testExtentScannerCollections() throws FileNotFoundException {
+        NamespaceIndex nsi = getNamespaceIndex();
+        List<Namespace> namespaces = Arrays.asList(nsi.getNamespace("deepmr_test.testcoll2"),
+                nsi.getNamespace("deepmr_test.testcoll1"));
+
+        List<Extent> extents = new ExtentScanner(namespaces, 4).getExtents();
+        Iterator<Extent> scanned = extents.iterator();
+
+        for (Namespace namespace : namespaces) {
+            namespace.close();
+            for (Iterator<Extent> i = namespace.extentIterator(); i.hasNext(); )
+                assertEquals(i.next(), scanned.next());
+        }
+        assertFalse(scanned.hasNext());
+    }
+
+    @Test
+    public void testDetails() throws FileNotFoundException {
+        NamespaceIndex nsi = getNamespaceIndex();
+
+        for (String name : new String[] {"deepmr_test.testcoll1", "deepmr_test.testcoll2"}) {
+            NamespaceDetails details = nsi.getDetails(name);
+            assertEquals(name, details.getName());
+            assertEquals(GenerateTestDB.NUM_RECORDS, details.getRecordCount());
+            assertTrue(details.getPaddingFactor() >= 1.0);
+            assertFalse(details.isCapped());
+            assertEquals(details.getIndexCount(), details.getIndexes().size());
+
+            Extent last = null;
+            for (Iterator<Extent> i = nsi.getNamespace(name).extentIterator(); i.hasNext(); )
+                last = i.next();
+            assertEquals(last.getLength(), details.getLastExtentSize());
+        }
+
+        assertNull(nsi.getDetails("deepmr_test.nothere"));
+        assertNull(nsi.getNamespace("deepmr_test.testcoll"));
+        assertTrue(nsi.getNamespaceNames().contains("deepmr_test.testcoll1"));
+        assertTrue(nsi.getNamespaceNames().contains("deepmr_test.testcoll2"));
+    }
 }
@@ -0,0 +1,98 @@
+/*
+Copyright (c) 2013, Groupon, Inc.
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions
+are met:
+
+Redistributions of source code must retain the above copyright notice,
+this list of conditions and the following disclaimer.
+
+Redistributions in binary form must reproduce the above copyright
+notice, this list of conditions and the following disclaimer in the
+documentation and/or other materials provided with the distribution.
+
+Neither the name of GROUPON nor the names of its contributors may be
+used to endorse or promote products derived from this software without
+specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+package com.groupon.mapreduce.mongo.out;
+
+import com.groupon.mapreduce.mongo.LazyWritableBSONObject;
+import com.groupon.mapreduce.mongo.WritableBSONObject;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.bson.BSONObject;
+import org.bson.BasicBSONDecoder;
+import org.bson.BasicBSONEncoder;
+import org.bson.BasicBSONObject;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BSONFileOutputFormatTest {
+    private static final Path PATH = new Path("target/bson/part-m-00000.bson");
+
+    @Test
+    public void testWrite() throws Exception {
+        Configuration conf = new Configuration();
+        conf.set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem");
+        FileSystem fs = PATH.getFileSystem(conf);
+
+        List<BSONObject> documents = new ArrayList<BSONObject>();
+        for (int i = 0; i < 100; i++) {
+            BasicBSONObject document = new BasicBSONObject("_id", new ObjectId());
+            document.put("n", i);
+            document.put("name", "name" + i);
+            documents.add(document);
+        }
+
+        // lazy values are written from the middle of a larger buffer, as they are when read from an extent
+        byte[] encoded = new BasicBSONEncoder().encode(documents.get(0));
+        byte[] extent = new byte[encoded.length + 32];
+        System.arraycopy(encoded, 0, extent, 16, encoded.length);
+        ByteBuffer buffer = ByteBuffer.wrap(extent).order(ByteOrder.LITTLE_ENDIAN);
+
+        BSONFileRecordWriter<Text> writer = new BSONFileRecordWriter<Text>(fs.create(PATH, true));
+        writer.write(null, new LazyWritableBSONObject(buffer, 16));
+        for (int i = 1; i < documents.size(); i++)
+            writer.write(null, new WritableBSONObject(documents.get(i)));
+        writer.close(null);
+
+        FSDataInputStream in = fs.open(PATH);
+        byte[] first = new byte[encoded.length];
+        in.readFully(first);
+        assertArrayEquals(encoded, first);
+        in.seek(0);
+
+        BasicBSONDecoder decoder = new BasicBSONDecoder();
+        for (BSONObject document : documents)
+            assertEquals(document, decoder.readObject(in));
+        assertEquals(-1, in.read());
+        in.close();
+    }
+}